@@ -0,0 +1,407 @@
+package com.tinyj.infra.config;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * a typed handle to a configuration parameter.
+ * the handle holds the parsed value of the parameter and parses it again only when the
+ * ConfigurationManager publishes a new configuration snapshot (that is, after a reload).
+ * so reading the value on the hot path is a generation check plus a field read.
+ * the parsed value and the generation of its snapshot are published together, in an immutable holder,
+ * so a reader never sees a value with the generation of another snapshot, and a refresh from an older
+ * snapshot never replaces the value of a newer one.
+ *
+ * the int, long, double and boolean keys hold a primitive value and expose a primitive getter
+ * (for ex: <i>IntKey.getInt()</i>) which does not box the value.
+ *
+ * if the parameter is missing, or its value cannot be parsed, the key's default value is used.
+ *
+ * handles are created by the ConfigurationManager, for example:
+ *
+ *  ConfigKey.IntKey poolSize = ConfigurationManager.intKey("POOL_SIZE", 16);
+ *  ...
+ *  int size = poolSize.getInt();
+ *
+ * @author asaf.peeri
+ *
+ * @param <T> the type of the parameter value
+ */
+public abstract class ConfigKey<T>
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(ConfigKey.class);
+
+	//the name of the parameter
+	protected final String mName;
+
+	//the current value, with the generation of the snapshot it was parsed from. null before the first read
+	private final AtomicReference<ParsedValue> mParsedValue = new AtomicReference<ParsedValue>();
+
+
+	protected ConfigKey(String aName)
+	{
+		mName = aName;
+	}
+
+
+	/**
+	 * parses the given raw value.
+	 *
+	 * @param aRawValue the raw (trimmed) value of the parameter
+	 * @param aGeneration the generation of the snapshot the value is taken from
+	 *
+	 * @return the parsed value
+	 *
+	 * @throws IllegalArgumentException when the value cannot be parsed
+	 */
+	protected abstract ParsedValue parse(String aRawValue, long aGeneration);
+
+
+	/**
+	 * returns the default value
+	 *
+	 * @param aGeneration the generation of the snapshot the parameter is missing from
+	 *
+	 * @return the default value
+	 */
+	protected abstract ParsedValue useDefault(long aGeneration);
+
+
+	/**
+	 * gets the value of the parameter
+	 *
+	 * @return the value of the parameter, or the default value if the parameter is missing
+	 */
+	public abstract T get();
+
+
+	/**
+	 * returns the name of the parameter
+	 *
+	 * @return the name of the parameter
+	 */
+	public String getName()
+	{
+		return mName;
+	}
+
+
+	/**
+	 * returns the current value, parsed again if a new snapshot was published since the last parse, and counts
+	 * the read in the access metrics (if they are collected).
+	 * should be called by the getters to read the current value.
+	 */
+	protected final ParsedValue getParsedValue()
+	{
+		ConfigurationAccessMetrics accessMetrics = ConfigurationManager.sAccessMetrics;
+		if (accessMetrics != null)
+		{
+			accessMetrics.countRead(mName);
+		}
+
+		ConfigurationSnapshot snapshot = ConfigurationManager.sSnapshot;
+		ParsedValue parsedValue = mParsedValue.get();
+		if (parsedValue == null || parsedValue.mGeneration != snapshot.getGeneration())
+		{
+			parsedValue = refresh(snapshot);
+		}
+
+		return parsedValue;
+	}
+
+
+	private ParsedValue refresh(ConfigurationSnapshot aSnapshot)
+	{
+		long generation = aSnapshot.getGeneration();
+		String rawValue = aSnapshot.getParam(mName);
+		ParsedValue parsedValue;
+		if (rawValue == null)
+		{
+			parsedValue = useDefault(generation);
+		}
+		else
+		{
+			try
+			{
+				parsedValue = parse(rawValue, generation);
+			}
+			catch (IllegalArgumentException iae)
+			{
+				sLogger.warn("Value '" + rawValue + "' of parameter " + mName + " cannot be parsed. using the default value.", iae);
+				parsedValue = useDefault(generation);
+			}
+		}
+
+		//a thread that refreshed from a newer snapshot meanwhile keeps its value
+		ParsedValue currentValue;
+		do
+		{
+			currentValue = mParsedValue.get();
+			if (currentValue != null && currentValue.mGeneration >= generation)
+			{
+				break;
+			}
+		}
+		while (!mParsedValue.compareAndSet(currentValue, parsedValue));
+
+		return parsedValue;
+	}
+
+
+	public String toString()
+	{
+		return mName + "=" + get();
+	}
+
+
+
+	/////////ParsedValue class ////////////////////
+	//an immutable parsed value, with the generation of the snapshot it was parsed from
+	protected static class ParsedValue
+	{
+		protected final long mGeneration;
+
+		protected ParsedValue(long aGeneration)
+		{
+			mGeneration = aGeneration;
+		}
+	}
+
+
+
+	/////////IntValue class ////////////////////
+	protected static final class IntValue extends ParsedValue
+	{
+		protected final int mValue;
+
+		protected IntValue(long aGeneration, int aValue)
+		{
+			super(aGeneration);
+			mValue = aValue;
+		}
+	}
+
+
+
+	/////////IntKey class ////////////////////
+	public static final class IntKey extends ConfigKey<Integer>
+	{
+		private final int mDefault;
+
+		IntKey(String aName, int aDefault)
+		{
+			super(aName);
+			mDefault = aDefault;
+		}
+
+		protected ParsedValue parse(String aRawValue, long aGeneration)
+		{
+			return new IntValue(aGeneration, Integer.parseInt(aRawValue));
+		}
+
+		protected ParsedValue useDefault(long aGeneration)
+		{
+			return new IntValue(aGeneration, mDefault);
+		}
+
+		public int getInt()
+		{
+			return ((IntValue)getParsedValue()).mValue;
+		}
+
+		public Integer get()
+		{
+			return getInt();
+		}
+	}
+
+
+
+	/////////LongValue class ////////////////////
+	protected static final class LongValue extends ParsedValue
+	{
+		protected final long mValue;
+
+		protected LongValue(long aGeneration, long aValue)
+		{
+			super(aGeneration);
+			mValue = aValue;
+		}
+	}
+
+
+
+	/////////LongKey class ////////////////////
+	public static final class LongKey extends ConfigKey<Long>
+	{
+		private final long mDefault;
+
+		LongKey(String aName, long aDefault)
+		{
+			super(aName);
+			mDefault = aDefault;
+		}
+
+		protected ParsedValue parse(String aRawValue, long aGeneration)
+		{
+			return new LongValue(aGeneration, Long.parseLong(aRawValue));
+		}
+
+		protected ParsedValue useDefault(long aGeneration)
+		{
+			return new LongValue(aGeneration, mDefault);
+		}
+
+		public long getLong()
+		{
+			return ((LongValue)getParsedValue()).mValue;
+		}
+
+		public Long get()
+		{
+			return getLong();
+		}
+	}
+
+
+
+	/////////DoubleValue class ////////////////////
+	protected static final class DoubleValue extends ParsedValue
+	{
+		protected final double mValue;
+
+		protected DoubleValue(long aGeneration, double aValue)
+		{
+			super(aGeneration);
+			mValue = aValue;
+		}
+	}
+
+
+
+	/////////DoubleKey class ////////////////////
+	public static final class DoubleKey extends ConfigKey<Double>
+	{
+		private final double mDefault;
+
+		DoubleKey(String aName, double aDefault)
+		{
+			super(aName);
+			mDefault = aDefault;
+		}
+
+		protected ParsedValue parse(String aRawValue, long aGeneration)
+		{
+			return new DoubleValue(aGeneration, Double.parseDouble(aRawValue));
+		}
+
+		protected ParsedValue useDefault(long aGeneration)
+		{
+			return new DoubleValue(aGeneration, mDefault);
+		}
+
+		public double getDouble()
+		{
+			return ((DoubleValue)getParsedValue()).mValue;
+		}
+
+		public Double get()
+		{
+			return getDouble();
+		}
+	}
+
+
+
+	/////////BooleanValue class ////////////////////
+	protected static final class BooleanValue extends ParsedValue
+	{
+		protected final boolean mValue;
+
+		protected BooleanValue(long aGeneration, boolean aValue)
+		{
+			super(aGeneration);
+			mValue = aValue;
+		}
+	}
+
+
+
+	/////////BooleanKey class ////////////////////
+	public static final class BooleanKey extends ConfigKey<Boolean>
+	{
+		private final boolean mDefault;
+
+		BooleanKey(String aName, boolean aDefault)
+		{
+			super(aName);
+			mDefault = aDefault;
+		}
+
+		protected ParsedValue parse(String aRawValue, long aGeneration)
+		{
+			return new BooleanValue(aGeneration, Boolean.parseBoolean(aRawValue));
+		}
+
+		protected ParsedValue useDefault(long aGeneration)
+		{
+			return new BooleanValue(aGeneration, mDefault);
+		}
+
+		public boolean getBoolean()
+		{
+			return ((BooleanValue)getParsedValue()).mValue;
+		}
+
+		public Boolean get()
+		{
+			return getBoolean();
+		}
+	}
+
+
+
+	/////////StringValue class ////////////////////
+	protected static final class StringValue extends ParsedValue
+	{
+		protected final String mValue;
+
+		protected StringValue(long aGeneration, String aValue)
+		{
+			super(aGeneration);
+			mValue = aValue;
+		}
+	}
+
+
+
+	/////////StringKey class ////////////////////
+	public static final class StringKey extends ConfigKey<String>
+	{
+		private final String mDefault;
+
+		StringKey(String aName, String aDefault)
+		{
+			super(aName);
+			mDefault = aDefault;
+		}
+
+		protected ParsedValue parse(String aRawValue, long aGeneration)
+		{
+			return new StringValue(aGeneration, aRawValue);
+		}
+
+		protected ParsedValue useDefault(long aGeneration)
+		{
+			return new StringValue(aGeneration, mDefault);
+		}
+
+		public String get()
+		{
+			return ((StringValue)getParsedValue()).mValue;
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package com.tinyj.infra.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * collects the reads of the configuration parameters, in order to find the parameters that are read on hot
+ * paths and the parameters that are never read.
+ *
+ * the metrics are collected only when enabled by the local parameter CONFIG_ACCESS_METRICS, or by calling
+ * <i>ConfigurationManager.enableAccessMetrics()</i>. when disabled, the reads pay a single null check.
+ *
+ * every read of a parameter is counted in a LongAdder of the parameter (which is striped, so concurrent readers
+ * of a hot parameter do not contend on a single counter). one of every <i>sample rate</i> reads is also timed, and
+ * its latency is added to a histogram whose buckets are powers of 2 of nanoseconds.
+ * the reads are counted for at most <i>max tracked keys</i> parameter names, so reads of missing or dynamically
+ * built names cannot grow the metrics without a bound. the reads of the names beyond the limit are only counted in total.
+ * the metrics also hold the contention on the configuration lock. readers never take the lock (they read the
+ * published snapshot), so the contention is the time the reloads waited for each other.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConfigurationAccessMetrics
+{
+	//the default number of reads per timed read
+	public static final int DEFAULT_SAMPLE_RATE = 64;
+
+	//the default maximal number of parameter names whose reads are counted
+	public static final int DEFAULT_MAX_TRACKED_KEYS = 4096;
+
+	private static final int HISTOGRAM_BUCKETS = 64;
+
+	protected final int mSampleRate;
+	protected final int mMaxTrackedKeys;
+	protected final long mStartTime;
+	protected final long mStartNanos;
+
+	//the reads count of each parameter
+	protected final ConcurrentHashMap<String, LongAdder> mReadCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	//the reads of the parameters that were not tracked, since max tracked keys names were already tracked
+	protected final LongAdder mUntrackedReads = new LongAdder();
+
+	//the sampled read latencies. bucket i holds the latencies in [2^(i-1), 2^i) nanoseconds
+	protected final AtomicLongArray mLatencyHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+	protected final LongAdder mSampledReads = new LongAdder();
+	protected final LongAdder mSampledNanos = new LongAdder();
+
+	//the configuration lock acquisitions, the ones that had to wait, the total and maximal wait and the total hold
+	protected final LongAdder mLockAcquisitions = new LongAdder();
+	protected final LongAdder mLockContentions = new LongAdder();
+	protected final LongAdder mLockWaitNanos = new LongAdder();
+	protected volatile long mLockMaxWaitNanos;
+	protected final LongAdder mLockHoldNanos = new LongAdder();
+
+
+	/**
+	 * creates new metrics, which track up to DEFAULT_MAX_TRACKED_KEYS parameters
+	 *
+	 * @param aSampleRate the number of reads per timed read (1 times every read)
+	 */
+	public ConfigurationAccessMetrics(int aSampleRate)
+	{
+		this(aSampleRate, DEFAULT_MAX_TRACKED_KEYS);
+	}
+
+
+	/**
+	 * creates new metrics
+	 *
+	 * @param aSampleRate the number of reads per timed read (1 times every read)
+	 * @param aMaxTrackedKeys the maximal number of parameter names whose reads are counted
+	 */
+	public ConfigurationAccessMetrics(int aSampleRate, int aMaxTrackedKeys)
+	{
+		if (aSampleRate < 1)
+		{
+			throw new IllegalArgumentException("The sample rate must be positive: " + aSampleRate);
+		}
+
+		if (aMaxTrackedKeys < 1)
+		{
+			throw new IllegalArgumentException("The max tracked keys must be positive: " + aMaxTrackedKeys);
+		}
+
+		mSampleRate = aSampleRate;
+		mMaxTrackedKeys = aMaxTrackedKeys;
+		mStartTime = System.currentTimeMillis();
+		mStartNanos = System.nanoTime();
+	}
+
+
+	/**
+	 * reads a parameter from the given snapshot, and records the read
+	 *
+	 * @param aSnapshot the snapshot to read from
+	 * @param aParamName the parameter name
+	 *
+	 * @return the parameter value, or null if the parameter does not exist
+	 */
+	public String read(ConfigurationSnapshot aSnapshot, String aParamName)
+	{
+		countRead(aParamName);
+
+		if (mSampleRate > 1 && ThreadLocalRandom.current().nextInt(mSampleRate) != 0)
+		{
+			return aSnapshot.getParam(aParamName);
+		}
+
+		long start = System.nanoTime();
+		String paramValue = aSnapshot.getParam(aParamName);
+		recordLatency(System.nanoTime() - start);
+		return paramValue;
+	}
+
+
+	/**
+	 * counts a read of the given parameter, without timing it. used by the typed keys, which hold their parsed value
+	 *
+	 * @param aParamName the parameter name
+	 */
+	public void countRead(String aParamName)
+	{
+		LongAdder counter = mReadCounts.get(aParamName);
+		if (counter == null)
+		{
+			if (mReadCounts.size() >= mMaxTrackedKeys)
+			{
+				mUntrackedReads.increment();
+				return;
+			}
+
+			//a race may track a few names above the limit
+			LongAdder newCounter = new LongAdder();
+			counter = mReadCounts.putIfAbsent(aParamName, newCounter);
+			if (counter == null)
+			{
+				counter = newCounter;
+			}
+		}
+
+		counter.increment();
+	}
+
+
+	protected void recordLatency(long aNanos)
+	{
+		int bucket = HISTOGRAM_BUCKETS - Long.numberOfLeadingZeros(Math.max(aNanos, 0));
+		mLatencyHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+		mSampledReads.increment();
+		mSampledNanos.add(aNanos);
+	}
+
+
+	/**
+	 * records an acquisition of the configuration lock
+	 *
+	 * @param aWaitNanos the time waited for the lock
+	 * @param aContended true if the lock was held by another thread when requested
+	 */
+	public void recordLockAcquired(long aWaitNanos, boolean aContended)
+	{
+		mLockAcquisitions.increment();
+		if (aContended)
+		{
+			mLockContentions.increment();
+			mLockWaitNanos.add(aWaitNanos);
+			if (aWaitNanos > mLockMaxWaitNanos)
+			{
+				//a lost update only loses a maximum that was about to be replaced anyway
+				mLockMaxWaitNanos = aWaitNanos;
+			}
+		}
+	}
+
+
+	/**
+	 * records a release of the configuration lock
+	 *
+	 * @param aHoldNanos the time the lock was held
+	 */
+	public void recordLockReleased(long aHoldNanos)
+	{
+		mLockHoldNanos.add(aHoldNanos);
+	}
+
+
+	/**
+	 * returns the parameters with the most reads, in a descending order of reads
+	 *
+	 * @param aCount the maximal number of parameters to return
+	 *
+	 * @return the reads of the parameters with the most reads
+	 */
+	public List<KeyReads> getTopReadKeys(int aCount)
+	{
+		List<KeyReads> keysReads = new ArrayList<KeyReads>(mReadCounts.size());
+		double elapsedSeconds = getElapsedSeconds();
+		for (Entry<String, LongAdder> entry:mReadCounts.entrySet())
+		{
+			keysReads.add(new KeyReads(entry.getKey(), entry.getValue().sum(), elapsedSeconds));
+		}
+
+		Collections.sort(keysReads, new Comparator<KeyReads>()
+		{
+			public int compare(KeyReads aKeyReads1, KeyReads aKeyReads2)
+			{
+				return Long.compare(aKeyReads2.getReads(), aKeyReads1.getReads());
+			}
+		});
+
+		return keysReads.size() > aCount ? new ArrayList<KeyReads>(keysReads.subList(0, aCount)) : keysReads;
+	}
+
+
+	/**
+	 * returns the parameters of the given snapshot that were never read since the metrics were enabled
+	 *
+	 * @param aSnapshot the snapshot whose parameters are checked
+	 *
+	 * @return the sorted names of the parameters that were never read
+	 */
+	public Set<String> getNeverReadKeys(ConfigurationSnapshot aSnapshot)
+	{
+		Set<String> neverReadKeys = new TreeSet<String>();
+		for (String paramName:aSnapshot.getParams().keySet())
+		{
+			if (!mReadCounts.containsKey(paramName))
+			{
+				neverReadKeys.add(paramName);
+			}
+		}
+
+		return neverReadKeys;
+	}
+
+
+	/**
+	 * returns the number of reads of the given parameter
+	 *
+	 * @param aParamName the parameter name
+	 *
+	 * @return the number of reads
+	 */
+	public long getReads(String aParamName)
+	{
+		LongAdder counter = mReadCounts.get(aParamName);
+		return counter == null ? 0 : counter.sum();
+	}
+
+
+	/**
+	 * returns an estimation of the given percentile of the sampled read latencies.
+	 * the estimation is the upper bound of the histogram bucket the percentile falls in.
+	 *
+	 * @param aPercentile the percentile, between 0 and 100
+	 *
+	 * @return the estimated latency in nanoseconds, or 0 if no read was sampled
+	 */
+	public long getLatencyPercentileNanos(double aPercentile)
+	{
+		long[] histogram = getLatencyHistogram();
+		long total = 0;
+		for (long count:histogram)
+		{
+			total += count;
+		}
+
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long threshold = (long)Math.ceil(total * aPercentile / 100);
+		long accumulated = 0;
+		for (int i=0 ; i<histogram.length ; ++i)
+		{
+			accumulated += histogram[i];
+			if (accumulated >= Math.max(threshold, 1))
+			{
+				return i == 0 ? 0 : (1L << i) - 1;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+
+	/**
+	 * returns a copy of the sampled read latencies histogram. bucket i holds the number of
+	 * latencies in [2^(i-1), 2^i) nanoseconds (bucket 0 holds the latencies of 0 nanoseconds)
+	 *
+	 * @return the histogram
+	 */
+	public long[] getLatencyHistogram()
+	{
+		long[] histogram = new long[HISTOGRAM_BUCKETS];
+		for (int i=0 ; i<HISTOGRAM_BUCKETS ; ++i)
+		{
+			histogram[i] = mLatencyHistogram.get(i);
+		}
+
+		return histogram;
+	}
+
+
+	/**
+	 * @return the reads of the parameters that were not tracked, since the maximal number of names was already tracked
+	 */
+	public long getUntrackedReads()
+	{
+		return mUntrackedReads.sum();
+	}
+
+
+	public int getMaxTrackedKeys()
+	{
+		return mMaxTrackedKeys;
+	}
+
+
+	public long getSampledReads()
+	{
+		return mSampledReads.sum();
+	}
+
+
+	public long getAverageLatencyNanos()
+	{
+		long sampledReads = mSampledReads.sum();
+		return sampledReads == 0 ? 0 : mSampledNanos.sum() / sampledReads;
+	}
+
+
+	public long getLockAcquisitions()
+	{
+		return mLockAcquisitions.sum();
+	}
+
+
+	public long getLockContentions()
+	{
+		return mLockContentions.sum();
+	}
+
+
+	public long getLockWaitNanos()
+	{
+		return mLockWaitNanos.sum();
+	}
+
+
+	public long getLockMaxWaitNanos()
+	{
+		return mLockMaxWaitNanos;
+	}
+
+
+	public long getLockHoldNanos()
+	{
+		return mLockHoldNanos.sum();
+	}
+
+
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+
+	/**
+	 * @return the time the metrics started, in milliseconds
+	 */
+	public long getStartTime()
+	{
+		return mStartTime;
+	}
+
+
+	protected double getElapsedSeconds()
+	{
+		return Math.max(System.nanoTime() - mStartNanos, 1) / 1e9;
+	}
+
+
+	/**
+	 * builds a readable report of the metrics
+	 *
+	 * @param aSnapshot the snapshot whose never read parameters are reported
+	 * @param aTopCount the number of the most read parameters to report
+	 *
+	 * @return the report
+	 */
+	public String getReport(ConfigurationSnapshot aSnapshot, int aTopCount)
+	{
+		StringBuilder report = new StringBuilder();
+		report.append("Configuration access metrics for the last ").append((long)getElapsedSeconds()).append(" seconds:\n");
+
+		report.append("top ").append(aTopCount).append(" read parameters:\n");
+		for (KeyReads keyReads:getTopReadKeys(aTopCount))
+		{
+			report.append("  ").append(keyReads).append('\n');
+		}
+
+		Set<String> neverReadKeys = getNeverReadKeys(aSnapshot);
+		report.append(neverReadKeys.size()).append(" parameters were never read: ").append(neverReadKeys).append('\n');
+
+		long untrackedReads = getUntrackedReads();
+		if (untrackedReads > 0)
+		{
+			report.append(untrackedReads).append(" reads of parameters beyond the ").append(mMaxTrackedKeys).append(" tracked ones were not counted by name\n");
+		}
+
+		report.append("read latency (1 of ").append(mSampleRate).append(" reads sampled, ").append(getSampledReads()).append(" samples): avg=")
+			.append(getAverageLatencyNanos()).append("ns, p50<=").append(getLatencyPercentileNanos(50))
+			.append("ns, p99<=").append(getLatencyPercentileNanos(99)).append("ns\n");
+
+		report.append("configuration lock: acquisitions=").append(getLockAcquisitions())
+			.append(", contended=").append(getLockContentions())
+			.append(", waitMillis=").append(getLockWaitNanos() / 1000000)
+			.append(", maxWaitMillis=").append(getLockMaxWaitNanos() / 1000000)
+			.append(", holdMillis=").append(getLockHoldNanos() / 1000000);
+
+		return report.toString();
+	}
+
+
+	public String toString()
+	{
+		return getReport(ConfigurationManager.getSnapshot(), 10);
+	}
+
+
+
+	/////////KeyReads class ////////////////////
+	public static class KeyReads
+	{
+		protected final String mKey;
+		protected final long mReads;
+		protected final double mReadsPerSecond;
+
+		public KeyReads(String aKey, long aReads, double aElapsedSeconds)
+		{
+			mKey = aKey;
+			mReads = aReads;
+			mReadsPerSecond = aReads / aElapsedSeconds;
+		}
+
+		public String getKey()
+		{
+			return mKey;
+		}
+
+		public long getReads()
+		{
+			return mReads;
+		}
+
+		public double getReadsPerSecond()
+		{
+			return mReadsPerSecond;
+		}
+
+		public String toString()
+		{
+			return mKey + ": " + mReads + " reads (" + String.format("%.1f", mReadsPerSecond) + "/s)";
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.tinyj.infra.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+
+/**
+ * describes the changes of the configuration parameters between two snapshots.
+ * the event holds only the parameters that actually changed, and only those whose names start
+ * with the prefix the listener was registered with.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConfigurationChangeEvent
+{
+	protected final String mPrefix;
+	protected final long mGeneration;
+	protected final Map<String, String> mAddedParams;
+	protected final Map<String, String> mChangedParams;
+	protected final Map<String, String> mRemovedParams;
+
+
+	public ConfigurationChangeEvent(String aPrefix, long aGeneration, Map<String, String> aAddedParams, Map<String, String> aChangedParams, Map<String, String> aRemovedParams)
+	{
+		mPrefix = aPrefix;
+		mGeneration = aGeneration;
+		mAddedParams = Collections.unmodifiableMap(aAddedParams);
+		mChangedParams = Collections.unmodifiableMap(aChangedParams);
+		mRemovedParams = Collections.unmodifiableMap(aRemovedParams);
+	}
+
+
+	/**
+	 * computes the changes between two snapshots
+	 *
+	 * @param aOldSnapshot the snapshot before the change
+	 * @param aNewSnapshot the snapshot after the change
+	 *
+	 * @return the changes of all the parameters (with an empty prefix)
+	 */
+	public static ConfigurationChangeEvent diff(ConfigurationSnapshot aOldSnapshot, ConfigurationSnapshot aNewSnapshot)
+	{
+		Map<String, String> oldParams = aOldSnapshot.getParams();
+		Map<String, String> newParams = aNewSnapshot.getParams();
+		Map<String, String> added = new HashMap<String, String>();
+		Map<String, String> changed = new HashMap<String, String>();
+		Map<String, String> removed = new HashMap<String, String>();
+
+		for (Entry<String, String> entry:newParams.entrySet())
+		{
+			String oldValue = oldParams.get(entry.getKey());
+			if (oldValue == null)
+			{
+				added.put(entry.getKey(), entry.getValue());
+			}
+			else if (!oldValue.equals(entry.getValue()))
+			{
+				changed.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (Entry<String, String> entry:oldParams.entrySet())
+		{
+			if (!newParams.containsKey(entry.getKey()))
+			{
+				removed.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return new ConfigurationChangeEvent("", aNewSnapshot.getGeneration(), added, changed, removed);
+	}
+
+
+	/**
+	 * returns the part of this event whose parameters names start with the given prefix
+	 *
+	 * @param aPrefix the prefix of the parameters names
+	 *
+	 * @return the filtered event
+	 */
+	public ConfigurationChangeEvent filter(String aPrefix)
+	{
+		if (aPrefix.length() == 0 || aPrefix.equals("*"))
+		{
+			return this;
+		}
+
+		return new ConfigurationChangeEvent(aPrefix, mGeneration, filter(mAddedParams, aPrefix), filter(mChangedParams, aPrefix), filter(mRemovedParams, aPrefix));
+	}
+
+
+	private static Map<String, String> filter(Map<String, String> aParams, String aPrefix)
+	{
+		Map<String, String> result = new HashMap<String, String>();
+		for (Entry<String, String> entry:aParams.entrySet())
+		{
+			if (entry.getKey().startsWith(aPrefix))
+			{
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * returns true if no parameter was added, changed or removed
+	 *
+	 * @return true if the event is empty
+	 */
+	public boolean isEmpty()
+	{
+		return mAddedParams.isEmpty() && mChangedParams.isEmpty() && mRemovedParams.isEmpty();
+	}
+
+
+	/**
+	 * returns the prefix the event was filtered by
+	 *
+	 * @return the prefix of the parameters in the event
+	 */
+	public String getPrefix()
+	{
+		return mPrefix;
+	}
+
+
+	/**
+	 * returns the generation of the snapshot the event leads to
+	 *
+	 * @return the generation of the new snapshot
+	 */
+	public long getGeneration()
+	{
+		return mGeneration;
+	}
+
+
+	/**
+	 * returns the parameters that were added, with their values
+	 *
+	 * @return the added parameters
+	 */
+	public Map<String, String> getAddedParams()
+	{
+		return mAddedParams;
+	}
+
+
+	/**
+	 * returns the parameters whose values changed, with their new values
+	 *
+	 * @return the changed parameters
+	 */
+	public Map<String, String> getChangedParams()
+	{
+		return mChangedParams;
+	}
+
+
+	/**
+	 * returns the parameters that were removed, with their last values
+	 *
+	 * @return the removed parameters
+	 */
+	public Map<String, String> getRemovedParams()
+	{
+		return mRemovedParams;
+	}
+
+
+	public String toString()
+	{
+		return "[prefix:" + mPrefix + ",generation:" + mGeneration + ",added:" + mAddedParams + ",changed:" + mChangedParams + ",removed:" + mRemovedParams + "]";
+	}
+}
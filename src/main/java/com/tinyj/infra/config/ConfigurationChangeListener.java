@@ -0,0 +1,24 @@
+package com.tinyj.infra.config;
+
+
+/**
+ * a listener to the changes of the configuration parameters.
+ * listeners are registered using <i>ConfigurationManager.addListener()</i>, with a prefix of the
+ * parameters names they are interested in.
+ *
+ * the listeners are notified in a background thread of the ConfigurationManager, so they never block
+ * a reload. when several reloads happen while a notification is pending, they are coalesced into a
+ * single event.
+ *
+ * @author asaf.peeri
+ *
+ */
+public interface ConfigurationChangeListener
+{
+	/**
+	 * called after the configuration changed
+	 *
+	 * @param aEvent the parameters that were added, changed or removed since the previous notification
+	 */
+	public void configurationChanged(ConfigurationChangeEvent aEvent);
+}
@@ -0,0 +1,79 @@
+package com.tinyj.infra.config;
+
+
+/**
+ * the timing breakdown of the last load of a local configuration file.
+ * used to measure the startup (cold start) time spent on loading the configuration, per file.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConfigurationFileLoadTiming
+{
+	protected final String mFileName;
+	protected final long mSizeInBytes;
+	protected final long mReadNanos;
+	protected final long mParseNanos;
+	protected final long mLoadTime;
+
+
+	public ConfigurationFileLoadTiming(String aFileName, long aSizeInBytes, long aReadNanos, long aParseNanos, long aLoadTime)
+	{
+		mFileName = aFileName;
+		mSizeInBytes = aSizeInBytes;
+		mReadNanos = aReadNanos;
+		mParseNanos = aParseNanos;
+		mLoadTime = aLoadTime;
+	}
+
+
+	/**
+	 * @return the name of the configuration file
+	 */
+	public String getFileName()
+	{
+		return mFileName;
+	}
+
+
+	/**
+	 * @return the size of the file, in bytes
+	 */
+	public long getSizeInBytes()
+	{
+		return mSizeInBytes;
+	}
+
+
+	/**
+	 * @return the time spent on reading the file, in nanoseconds
+	 */
+	public long getReadNanos()
+	{
+		return mReadNanos;
+	}
+
+
+	/**
+	 * @return the time spent on parsing the file, in nanoseconds
+	 */
+	public long getParseNanos()
+	{
+		return mParseNanos;
+	}
+
+
+	/**
+	 * @return the time (in milliseconds since the epoch) when the file was loaded
+	 */
+	public long getLoadTime()
+	{
+		return mLoadTime;
+	}
+
+
+	public String toString()
+	{
+		return "[file:" + mFileName + ",bytes:" + mSizeInBytes + ",readMicros:" + (mReadNanos / 1000) + ",parseMicros:" + (mParseNanos / 1000) + "]";
+	}
+}
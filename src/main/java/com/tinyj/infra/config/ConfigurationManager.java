@@ -7,37 +7,64 @@ import static com.tinyj.infra.config.InfraConfigConstants.CONF_TABLE_NAME;
 import static com.tinyj.infra.config.InfraConfigConstants.CONF_TABLE_PARAM_NAME_COLUMN;
 import static com.tinyj.infra.config.InfraConfigConstants.CONF_TABLE_PARAM_VALUE_COLUMN;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_CONFIGURATION_SYSTEM_PROPERTY;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_ACCESS_METRICS;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_ACCESS_METRICS_SAMPLE_RATE;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_DATA_SOURCE_CONTEXT_FACTORY;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_DATA_SOURCE_JNDI_NAME;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_DATA_SOURCE_PROVIDER_URL;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_JDBC_DATABASE_DRIVER;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_JDBC_DATABASE_PASS;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_JDBC_DATABASE_REPLICA_URLS;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_JDBC_DATABASE_URL;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_JDBC_DATABASE_USER;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_LOAD_REMOTE;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_REMOTE_REFRESH_INTERVAL_MS;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_REMOTE_VERSION_COLUMN;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_SNAPSHOT_CACHE_FILE;
 import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_USE_DATA_SOURCE;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES;
+import static com.tinyj.infra.config.InfraConfigConstants.LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES_DEBOUNCE_MS;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 import com.tinyj.infra.db.DBConnectionManager;
+import com.tinyj.infra.db.JDBCConnectionPoolConfig;
+import com.tinyj.infra.db.ReplicaRouter;
 import com.tinyj.infra.exception.ConfigurationException;
 import com.tinyj.infra.exception.DBConnectionException;
 import com.tinyj.infra.log.BaseLoggerWrapper;
 import com.tinyj.infra.log.Log4jWrapper;
-import com.tinyj.infra.properties.PropertiesUtils;
 
 public class ConfigurationManager 
 {
@@ -48,6 +75,11 @@ public class ConfigurationManager
 	protected static String sConfigurationFilesNamesConcatenated;
 	protected static String[] sConfigurationFilesNames;
 	protected static Properties sLocalParameters = new Properties();
+	protected static Map<String, Properties> sLocalFilesParameters = new LinkedHashMap<String, Properties>();
+	
+	//the timings of the last load of each local file, and of the last load of all the local files
+	protected static final ConcurrentHashMap<String, ConfigurationFileLoadTiming> sLocalFilesLoadTimings = new ConcurrentHashMap<String, ConfigurationFileLoadTiming>();
+	protected static volatile long sLastLocalLoadNanos;
 	protected static Properties sRemoteParameters = new Properties();
 	
 	protected static boolean sUseDataSource;
@@ -59,10 +91,52 @@ public class ConfigurationManager
 	protected static String sJDBCUsername;
 	protected static String sJDBCPassword;
 	
-	protected static DBConnectionManager sConManager;
+	//volatile, since the refreshes replace it under the remote load mutex while the DB updates may read it
+	protected static volatile DBConnectionManager sConManager;
+	
+	//the connection parameters sConManager was created from. a load with the same parameters keeps it
+	private static List<String> sConManagerParameters;
 	
+	//the write lock serializes the reloads. readers do not take any lock, they read the
+	//immutable snapshot which is published through the volatile reference below
 	protected static ReentrantReadWriteLock sLock;
 	
+	protected static volatile ConfigurationSnapshot sSnapshot = ConfigurationSnapshot.EMPTY;
+	
+	//watches the local configuration files when enabled
+	protected static LocalConfigurationWatcher sLocalConfigurationWatcher;
+	
+	//serializes the loads of the remote parameters (full loads and delta refreshes). readers never take it
+	private static final Object sRemoteLoadMutex = new Object();
+	
+	//true if the remote parameters were loaded from the DB
+	protected static boolean sRemoteLoaded;
+	
+	//the optional version (or last modified) column of the remote configuration table, and the highest version loaded
+	protected static String sRemoteVersionColumn;
+	protected static long sRemoteVersion;
+	protected static boolean sRemoteVersionIsTime;
+	
+	//the local file the last loaded remote parameters are cached in (null if disabled), and whether the
+	//remote parameters currently published were taken from that file because the DB was not loaded yet
+	protected static String sSnapshotCacheFileName;
+	protected static volatile boolean sServingSnapshotCache;
+	
+	//refreshes the remote parameters in the background when enabled
+	protected static ScheduledExecutorService sRemoteRefreshExecutor;
+	
+	//the registered change listeners, and the single background thread that notifies them.
+	//at most one notification is pending at a time, so reloads that happen meanwhile are coalesced into it
+	protected static final CopyOnWriteArrayList<ListenerRegistration> sListeners = new CopyOnWriteArrayList<ListenerRegistration>();
+	protected static final AtomicBoolean sListenersNotificationPending = new AtomicBoolean();
+	protected static ExecutorService sListenersExecutor;
+	
+	//the access metrics of the parameters. null when the metrics are not collected
+	protected static volatile ConfigurationAccessMetrics sAccessMetrics;
+	
+	//the time the write lock was taken, for the access metrics. guarded by the write lock
+	private static long sLockAcquiredNanos;
+	
 	
 	
 	//init the configuration manager upon static initialization
@@ -72,6 +146,22 @@ public class ConfigurationManager
 		{
 			sLock = new ReentrantReadWriteLock();
 			initConfiguration();
+			
+			if (CONFIGURATION_TRUE.equalsIgnoreCase(getParam(LOCAL_PARAM_CONFIG_ACCESS_METRICS)))
+			{
+				enableAccessMetrics(getParamAsInt(LOCAL_PARAM_CONFIG_ACCESS_METRICS_SAMPLE_RATE, ConfigurationAccessMetrics.DEFAULT_SAMPLE_RATE));
+			}
+			
+			if (CONFIGURATION_TRUE.equalsIgnoreCase(getParam(LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES)))
+			{
+				startLocalConfigurationWatcher(getParamAsLong(LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES_DEBOUNCE_MS, LocalConfigurationWatcher.DEFAULT_DEBOUNCE_MILLIS));
+			}
+			
+			long remoteRefreshInterval = getParamAsLong(LOCAL_PARAM_CONFIG_REMOTE_REFRESH_INTERVAL_MS, 0);
+			if (remoteRefreshInterval > 0)
+			{
+				startRemoteRefresh(remoteRefreshInterval);
+			}
 		}
 		catch(Throwable t)
 		{
@@ -100,6 +190,15 @@ public class ConfigurationManager
 	}
 	
 	
+	/**
+	 * gets the parameters whose names start with the given prefix, whether they are local or remote parameters.
+	 * the prefix "*" returns all the parameters. when a parameter exists both locally and remotely, the local
+	 * value is returned.
+	 * 
+	 * @param aPrefix the prefix of the parameters names
+	 * 
+	 * @return an unmodifiable set of the parameters entries, or null if the prefix is null
+	 */
 	public static Set<Entry<Object, Object>> getParamsWithPrefix(String aPrefix)
 	{
 		if (aPrefix == null)
@@ -107,54 +206,8 @@ public class ConfigurationManager
 			return null;
 		}
 
-		Set<Entry<Object, Object>> localEntries = null;
-		Set<Entry<Object, Object>> remoteEntries = null;
-		
-		if (sLocalParameters != null)
-		{
-			localEntries = sLocalParameters.entrySet();
-		}
-		
-		if (sRemoteParameters != null)
-		{
-			remoteEntries = sRemoteParameters.entrySet();
-		}
-		
-		
-		Set<Entry<Object,Object>> result = new HashSet<Entry<Object,Object>>();
-		handleEntries(aPrefix,localEntries,result);
-		handleEntries(aPrefix,remoteEntries,result);
-				
-		
-		return result;
-		
-	}
-	
-	
-	
-	
-	private static void handleEntries(String aPrefix, Set<Entry<Object, Object>> aEntries, Set<Entry<Object, Object>> aResult)
-	{
-		if (aEntries == null || aPrefix == null)
-		{
-			return;
-		}
-		if (aPrefix.equals("*"))
-		{
-			aResult.addAll(aEntries);
-			return;
-		}
-		
-		for (Entry<Object,Object> entry:aEntries)
-		{
-			String name = (String)entry.getKey();
-			if (name.indexOf(aPrefix) == 0)
-			{
-				aResult.add(entry);
-			}
-		}
-		
-		 
+		//the snapshot keeps the parameters sorted and caches the results per prefix until the next reload
+		return sSnapshot.getParamsWithPrefix(aPrefix);
 	}
 
 
@@ -167,43 +220,82 @@ public class ConfigurationManager
 	 */
 	public static String getParam(String aParamName)
 	{
-		try
-		{
-			sLock.readLock().lock();
-			//there is no support for null parameter name
-			if (aParamName == null)
-			{
-				return null;
-			}
-			
-			//first look the param in the local props, if not found - look in the remote props
-			String paramValue = sLocalParameters.getProperty(aParamName.trim());
-			if (paramValue == null)
-			{
-				//the parameter is not found in the local props. look in the remote props
-				paramValue = sRemoteParameters.getProperty(aParamName);
-				if (paramValue == null)
-				{
-					//the parameter is not found in the local and remote props
-					return null;
-				}
-			}
-
-			//return what was found
-			return paramValue.trim();
-		}
-		catch (Exception ex)
+		//there is no support for null parameter name
+		if (aParamName == null)
 		{
-			ex.printStackTrace();
 			return null;
 		}
-		finally
+		
+		//the snapshot holds the merged local and remote parameters (local parameters first),
+		//with their values already trimmed
+		ConfigurationAccessMetrics accessMetrics = sAccessMetrics;
+		if (accessMetrics != null)
 		{
-			sLock.readLock().unlock();
+			return accessMetrics.read(sSnapshot, aParamName);
 		}
+		return sSnapshot.getParam(aParamName);
+	}
+	
+	
+	/**
+	 * starts collecting the access metrics of the parameters (see ConfigurationAccessMetrics).
+	 * if the metrics are already collected, they are restarted.
+	 * 
+	 * @param aSampleRate the number of parameter reads per timed read
+	 */
+	public static void enableAccessMetrics(int aSampleRate)
+	{
+		sAccessMetrics = new ConfigurationAccessMetrics(aSampleRate);
+	}
+	
+	
+	/**
+	 * stops collecting the access metrics of the parameters
+	 */
+	public static void disableAccessMetrics()
+	{
+		sAccessMetrics = null;
+	}
+	
+	
+	/**
+	 * returns the access metrics of the parameters
+	 * 
+	 * @return the access metrics, or null if they are not collected
+	 */
+	public static ConfigurationAccessMetrics getAccessMetrics()
+	{
+		return sAccessMetrics;
+	}
+	
+	
+	/**
+	 * builds a report of the access metrics: the most read parameters, the parameters that were never read,
+	 * the read latency and the contention on the configuration lock.
+	 * 
+	 * @param aTopCount the number of the most read parameters to report
+	 * 
+	 * @return the report, or null if the access metrics are not collected
+	 */
+	public static String getAccessMetricsReport(int aTopCount)
+	{
+		ConfigurationAccessMetrics accessMetrics = sAccessMetrics;
+		return accessMetrics == null ? null : accessMetrics.getReport(sSnapshot, aTopCount);
 	}
 
 	
+	/**
+	 * returns the current immutable snapshot of the configuration parameters.
+	 * the returned snapshot never changes; a new one is published on every reload.
+	 * 
+	 * @return the current configuration snapshot
+	 */
+	public static ConfigurationSnapshot getSnapshot()
+	{
+		return sSnapshot;
+	}
+	
+	
 	/**
 	 * Gets the parameter according to its name and converts the value to int
 	 * @param aParamName name of parameter
@@ -218,36 +310,21 @@ public class ConfigurationManager
 	
 	public static int getParamAsInt(String aParamName, int aDefaultValue)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefaultValue;
 		}
-		
-		String paramValStr = getParam(aParamName);
 		return Integer.parseInt(paramValStr);
 	}
 	
 	
 	public static boolean isPresent(String aParamName)
 	{
-		try
-		{
-			sLock.readLock().lock();
-
-			String paramValStr = getParam(aParamName);
-			return paramValStr != null;
-		}
-		catch (Exception ex)
-		{
-			return false;
-		}
-		finally
-		{
-			sLock.readLock().unlock();
-		}
-		
-		
+		return getParam(aParamName) != null;
 	}
+	
+	
 	/**
 	 * Gets the parameter according to its name and converts the value to long
 	 * @param aParamName name of parameter
@@ -261,11 +338,11 @@ public class ConfigurationManager
 	
 	public static long getParamAsLong(String aParamName, long aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Long.parseLong(paramValStr);
 	}
 	
@@ -285,11 +362,11 @@ public class ConfigurationManager
 	
 	public static byte getParamAsByte(String aParamName, byte aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Byte.parseByte(paramValStr);
 	}
 	
@@ -307,11 +384,11 @@ public class ConfigurationManager
 	
 	public static short getParamAsShort(String aParamName, short aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Short.parseShort(paramValStr);
 	}
 	
@@ -329,11 +406,11 @@ public class ConfigurationManager
 	
 	public static float getParamAsFloat(String aParamName, float aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
-			return aDefault; 
+			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Float.parseFloat(paramValStr);
 	}
 	
@@ -353,11 +430,11 @@ public class ConfigurationManager
 	
 	public static double getParamAsDouble(String aParamName, double aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Double.parseDouble(paramValStr);
 	}
 	
@@ -377,14 +454,83 @@ public class ConfigurationManager
 	
 	public static boolean getParamAsBoolean(String aParamName, boolean aDefault)
 	{
-		if (!isPresent(aParamName))
+		String paramValStr = getParam(aParamName);
+		if (paramValStr == null)
 		{
 			return aDefault;
 		}
-		String paramValStr = getParam(aParamName);
 		return Boolean.parseBoolean(paramValStr);
 	}
 	
+	/**
+	 * creates a typed handle to an int parameter. the handle parses the value only once per
+	 * configuration reload, and its <i>getInt()</i> does not box the value.
+	 * 
+	 * @param aParamName name of parameter
+	 * @param aDefault the value to use when the parameter is missing or cannot be parsed
+	 * @return the handle to the parameter
+	 */
+	public static ConfigKey.IntKey intKey(String aParamName, int aDefault)
+	{
+		return new ConfigKey.IntKey(aParamName, aDefault);
+	}
+	
+	
+	/**
+	 * creates a typed handle to a long parameter. the handle parses the value only once per
+	 * configuration reload, and its <i>getLong()</i> does not box the value.
+	 * 
+	 * @param aParamName name of parameter
+	 * @param aDefault the value to use when the parameter is missing or cannot be parsed
+	 * @return the handle to the parameter
+	 */
+	public static ConfigKey.LongKey longKey(String aParamName, long aDefault)
+	{
+		return new ConfigKey.LongKey(aParamName, aDefault);
+	}
+	
+	
+	/**
+	 * creates a typed handle to a double parameter. the handle parses the value only once per
+	 * configuration reload, and its <i>getDouble()</i> does not box the value.
+	 * 
+	 * @param aParamName name of parameter
+	 * @param aDefault the value to use when the parameter is missing or cannot be parsed
+	 * @return the handle to the parameter
+	 */
+	public static ConfigKey.DoubleKey doubleKey(String aParamName, double aDefault)
+	{
+		return new ConfigKey.DoubleKey(aParamName, aDefault);
+	}
+	
+	
+	/**
+	 * creates a typed handle to a boolean parameter. the handle parses the value only once per
+	 * configuration reload, and its <i>getBoolean()</i> does not box the value.
+	 * 
+	 * @param aParamName name of parameter
+	 * @param aDefault the value to use when the parameter is missing
+	 * @return the handle to the parameter
+	 */
+	public static ConfigKey.BooleanKey booleanKey(String aParamName, boolean aDefault)
+	{
+		return new ConfigKey.BooleanKey(aParamName, aDefault);
+	}
+	
+	
+	/**
+	 * creates a typed handle to a string parameter.
+	 * 
+	 * @param aParamName name of parameter
+	 * @param aDefault the value to use when the parameter is missing
+	 * @return the handle to the parameter
+	 */
+	public static ConfigKey.StringKey stringKey(String aParamName, String aDefault)
+	{
+		return new ConfigKey.StringKey(aParamName, aDefault);
+	}
+	
+	
 	/**
 	 * save a remote parameter
 	 * @param aParamName - paramter name tu update
@@ -396,6 +542,17 @@ public class ConfigurationManager
 	}
 	
 	
+	/**
+	 * save several remote parameters at once, in a single DB transaction.
+	 * only parameters that already exist in the remote configuration table are updated.
+	 * @param aParams - the parameters to update, by their names
+	 */
+	public static void saveParams(Map<String, String> aParams)
+	{
+		saveParametersToDB(aParams);
+	}
+	
+	
 	
 	/**
 	 * returns the properties table that is holding the local parameters
@@ -489,217 +646,676 @@ public class ConfigurationManager
 	
 	
 	/**
-	 * this method initialize the local properties configuration file and the
-	 * remote DB configuration file
+	 * starts watching the local configuration files in the background. a file is reloaded only when
+	 * its modification time and content change, after no further changes were made to it for the
+	 * given debounce time. if the watcher is already running, it is restarted.
 	 * 
-	 * @throws ConfigurationException when any com.tinyj.infra.exception occures
+	 * @param aDebounceMillis the time (in milliseconds) to wait after the last change before reloading
+	 * 
+	 * @throws ConfigurationException when the files cannot be watched
 	 */
-	protected static void initConfiguration()
-		throws ConfigurationException
+	public static synchronized void startLocalConfigurationWatcher(long aDebounceMillis)
 	{
+		stopLocalConfigurationWatcher();
+		
 		try
 		{
-			sLock.writeLock().lock();
-			String msg = "initConfiguration() started.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
-			initLocalConfiguration();
-			initRemoteConfiguration();
-			msg = "initConfiguration() ended.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
-		
+			sLocalConfigurationWatcher = new LocalConfigurationWatcher(sConfigurationFilesNames, aDebounceMillis);
+			sLocalConfigurationWatcher.start();
+			sLogger.info("Watching the local configuration files: " + sConfigurationFilesNamesConcatenated);
 		}
-		catch (ConfigurationException ex)
+		catch (IOException ioe)
 		{
-			throw ex;
+			String errMsg = "Could not watch the local configuration files " + sConfigurationFilesNamesConcatenated + ".";
+			sLogger.error(errMsg, ioe);
+			throw new ConfigurationException(errMsg);
 		}
-		finally
+	}
+	
+	
+	
+	/**
+	 * stops watching the local configuration files, if they are watched
+	 */
+	public static synchronized void stopLocalConfigurationWatcher()
+	{
+		if (sLocalConfigurationWatcher != null)
 		{
-			sLock.writeLock().unlock();
-
+			sLocalConfigurationWatcher.stop();
+			sLocalConfigurationWatcher = null;
 		}
-	
 	}
 	
 	
 	
 	/**
-	 * initialize the local configuration from the configuration file set by the <i>com.tinyj.infra.config.local</i>
-	 * system property
+	 * this method initialize the local properties configuration file and the
+	 * remote DB configuration file
+	 * 
+	 * @throws ConfigurationException when any com.tinyj.infra.exception occures
 	 */
-	protected static void initLocalConfiguration()
+	protected static void initConfiguration()
+		throws ConfigurationException
 	{
-		String currConfigFileName = null;
-		FileInputStream fis = null;
+		String msg = "initConfiguration() started.";
+		System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+		sLogger.debug(msg);
 		
-		try
+		//both the local and remote parameters are loaded (outside the lock) before publishing,
+		//so the readers see a single swap from the old configuration to the new one.
+		//if the remote parameters fail to load, the new local parameters are still published
+		Map<String, Properties> localFilesParameters = loadLocalFiles();
+		Properties localParameters = mergeLocalFiles(localFilesParameters);
+		
+		synchronized (sRemoteLoadMutex)
 		{
-			sLock.writeLock().lock();
-			String msg = "initLocalConfiguration() started.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
-			sConfigurationFilesNamesConcatenated = System.getProperty(LOCAL_CONFIGURATION_SYSTEM_PROPERTY);
-			if (sConfigurationFilesNamesConcatenated == null)
-			{
-				String errMsg = "Configuarion file not set. Please set the System property '" + LOCAL_CONFIGURATION_SYSTEM_PROPERTY + "' to point the location of the configuration properties file.";
-				System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-				sLogger.fatal(errMsg);
-				throw new ConfigurationException(errMsg);
-			}
-			else
+			//on the first load, serve the cached remote parameters (if there is a valid cache) instead of
+			//waiting for the DB. the DB is loaded in the background and replaces them
+			ConfigurationSnapshotCache snapshotCache = sSnapshot.getGeneration() == 0 ? readSnapshotCache(localParameters) : null;
+			if (snapshotCache != null)
 			{
-				msg = "ConfigurationManager is going to parse the configuration file(s): " + sConfigurationFilesNamesConcatenated;
-				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-				sLogger.debug(msg);
-				
-				//check if we have more than one configuration file in the system property
-				if (sConfigurationFilesNamesConcatenated.indexOf(";") == -1)
+				try
 				{
-					//there is only one configuration file
-					msg = "ConfigurationManager: there is only one configuration file to parse";
-					System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-					sLogger.debug(msg);
-					
-					sConfigurationFilesNames = new String[1];
-					sConfigurationFilesNames[0] = sConfigurationFilesNamesConcatenated;
+					lockForReload();
+					sLocalFilesParameters = localFilesParameters;
+					sLocalParameters = localParameters;
+					sRemoteParameters = snapshotCache.getRemoteParameters();
+					sRemoteVersion = snapshotCache.getRemoteVersion();
+					sRemoteVersionIsTime = snapshotCache.isRemoteVersionTime();
+					sServingSnapshotCache = true;
+					publishSnapshot();
 				}
-				else
+				finally
 				{
-					//there are multiple configuration files, so split the string by ";"
-					msg = "ConfigurationManager: there are multiple configuration files to parse";
-					System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-					sLogger.debug(msg);
-					
-					sConfigurationFilesNames = sConfigurationFilesNamesConcatenated.split(";");
+					unlockAfterReload();
 				}
+				
+				startSnapshotCacheRefresh();
+				msg = "initConfiguration() ended. serving " + sRemoteParameters.size() + " cached remote parameters until the DB is loaded.";
+				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+				sLogger.debug(msg);
+				return;
 			}
 			
-			
-			sLocalParameters = new Properties();
-			Properties tempLocalParameters = new Properties();
-						
-			for (int i=0 ; i<sConfigurationFilesNames.length ; ++i)
+			Properties remoteParameters = null;
+			try
+			{
+				remoteParameters = loadRemoteParameters(localParameters);
+			}
+			finally
 			{
-				currConfigFileName = sConfigurationFilesNames[i];
-				
-				//check if the configuration file exists
-				File configurationFile = new File(currConfigFileName);
-				if (!configurationFile.exists())
-				{
-					String errMsg = "Configuarion file " + currConfigFileName + " does not exist. if you intended to specify multiple configuration files, make sure they are separated by ';' character (not ',')";
-					System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-					sLogger.fatal(errMsg);
-					throw new ConfigurationException(errMsg);
-				}
-				else
-				{
-					msg = "ConfigurationManager: loading configuration file: " + currConfigFileName;
-					System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-					sLogger.debug(msg);
-				}
-				
-				
-				//as in Java 1.5, properties file can only be loaded nativley in ISO 8859-1 encoding
-				//we try to "override" this by using our proprietary method inside PropertiesUtils
-				//if it fails, then we try to use the native Properties.load
-				fis = new FileInputStream(configurationFile);
-				//tempLocalParameters.load(fis);
 				try
 				{
-					tempLocalParameters = PropertiesUtils.loadProperties(fis, "UTF-8");
+					lockForReload();
+					sLocalFilesParameters = localFilesParameters;
+					sLocalParameters = localParameters;
+					if (remoteParameters != null)
+					{
+						sRemoteParameters = remoteParameters;
+					}
+					publishSnapshot();
 				}
-				catch (Exception e)
+				finally
 				{
-					sLogger.error("error loading configuration properties file in UTF-8. trying native Properties load...", e);
-					tempLocalParameters.load(fis);
+					unlockAfterReload();
 				}
-				
-				sLocalParameters.putAll(tempLocalParameters);
-				fis.close();
 			}
-			
-			
-			msg = "initLocalConfiguration() ended.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
-		}
-		catch (ConfigurationException ce)
-		{
-			throw ce;
 		}
-		catch(FileNotFoundException fnfe)
-		{
-			String errMsg = "Configuarion file " + currConfigFileName + " does not exist.";
-			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-			sLogger.fatal(errMsg, fnfe);
-			throw new ConfigurationException(errMsg);
+		
+		msg = "initConfiguration() ended.";
+		System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+		sLogger.debug(msg);
+	}
+	
+	
+	
+	/**
+	 * reads the snapshot cache file set by the local parameter CONFIG_SNAPSHOT_CACHE_FILE, if the remote
+	 * configuration should be loaded.
+	 * 
+	 * @param aLocalParameters the local parameters
+	 * 
+	 * @return the cache, or null if there is no valid cache
+	 */
+	protected static ConfigurationSnapshotCache readSnapshotCache(Properties aLocalParameters)
+	{
+		sSnapshotCacheFileName = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_SNAPSHOT_CACHE_FILE);
+		if (sSnapshotCacheFileName == null || !CONFIGURATION_TRUE.equalsIgnoreCase(aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_LOAD_REMOTE)))
+		{
+			return null;
+		}
+		
+		return ConfigurationSnapshotCache.read(new File(sSnapshotCacheFileName.trim()));
+	}
+	
+	
+	
+	/**
+	 * writes the given remote parameters, which were just loaded from the DB, to the snapshot cache file (if set).
+	 * should be called while holding the remote load mutex.
+	 * 
+	 * @param aRemoteParameters the remote parameters
+	 */
+	protected static void writeSnapshotCache(Properties aRemoteParameters)
+	{
+		if (sSnapshotCacheFileName == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			new ConfigurationSnapshotCache(aRemoteParameters, sRemoteVersion, sRemoteVersionIsTime).write(new File(sSnapshotCacheFileName.trim()));
+		}
+		catch (IOException ioe)
+		{
+			//the cache is only an optimization of the startup
+			sLogger.warn("Could not write the configuration snapshot cache " + sSnapshotCacheFileName + ".", ioe);
+		}
+	}
+	
+	
+	
+	//loads the remote parameters from the DB in a background thread, replacing the cached ones.
+	//if the DB cannot be loaded, the cached parameters stay published, and the next refreshRemote() tries again
+	private static void startSnapshotCacheRefresh()
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					initRemoteConfiguration();
+				}
+				catch (Throwable t)
+				{
+					sLogger.error("Could not load the remote configuration. keeping the cached remote configuration.", t);
+				}
+			}
+		}, "ConfigurationManager-SnapshotCacheRefresh");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	
+	/**
+	 * initialize the local configuration from the configuration file set by the <i>com.tinyj.infra.config.local</i>
+	 * system property
+	 */
+	protected static void initLocalConfiguration()
+	{
+		Map<String, Properties> localFilesParameters = loadLocalFiles();
+		Properties localParameters = mergeLocalFiles(localFilesParameters);
+		
+		try
+		{
+			lockForReload();
+			sLocalFilesParameters = localFilesParameters;
+			sLocalParameters = localParameters;
+			publishSnapshot();
+		}
+		finally
+		{
+			unlockAfterReload();
+		}
+	}
+	
+	
+	
+	/**
+	 * takes the write lock before replacing the parameters. the wait for the lock is recorded in the access
+	 * metrics, if they are collected.
+	 */
+	protected static void lockForReload()
+	{
+		ConfigurationAccessMetrics accessMetrics = sAccessMetrics;
+		if (accessMetrics == null)
+		{
+			sLock.writeLock().lock();
+			return;
+		}
+		
+		long start = System.nanoTime();
+		boolean contended = !sLock.writeLock().tryLock();
+		if (contended)
+		{
+			sLock.writeLock().lock();
+		}
+		accessMetrics.recordLockAcquired(System.nanoTime() - start, contended);
+		sLockAcquiredNanos = System.nanoTime();
+	}
+	
+	
+	
+	/**
+	 * releases the write lock taken by lockForReload()
+	 */
+	protected static void unlockAfterReload()
+	{
+		ConfigurationAccessMetrics accessMetrics = sAccessMetrics;
+		if (accessMetrics != null && sLockAcquiredNanos != 0)
+		{
+			accessMetrics.recordLockReleased(System.nanoTime() - sLockAcquiredNanos);
+		}
+		sLockAcquiredNanos = 0;
+		sLock.writeLock().unlock();
+	}
+	
+	
+	
+	/**
+	 * publishes a new immutable snapshot built from the current local and remote parameters.
+	 * should be called while holding the write lock, after the parameters were replaced.
+	 */
+	protected static void publishSnapshot()
+	{
+		sSnapshot = new ConfigurationSnapshot(sLocalParameters, sRemoteParameters, sSnapshot.getGeneration() + 1);
+		
+		//the listeners are notified in the background, so a slow listener never blocks the reload
+		if (!sListeners.isEmpty() && sListenersNotificationPending.compareAndSet(false, true))
+		{
+			getListenersExecutor().execute(new Runnable()
+			{
+				public void run()
+				{
+					notifyListeners();
+				}
+			});
+		}
+	}
+	
+	
+	
+	private static synchronized ExecutorService getListenersExecutor()
+	{
+		if (sListenersExecutor == null)
+		{
+			sListenersExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable aRunnable)
+				{
+					Thread thread = new Thread(aRunnable, "ConfigurationManager-Listeners");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return sListenersExecutor;
+	}
+	
+	
+	
+	//notifies the listeners on the changes since the snapshot each of them saw last. runs in the listeners thread
+	private static void notifyListeners()
+	{
+		//cleared before reading the snapshot, so a snapshot published from now on schedules another notification
+		sListenersNotificationPending.set(false);
+		ConfigurationSnapshot currentSnapshot = sSnapshot;
+		
+		//usually all the listeners saw the same snapshot, so the diff is computed once per previous snapshot
+		Map<ConfigurationSnapshot, ConfigurationChangeEvent> diffs = new HashMap<ConfigurationSnapshot, ConfigurationChangeEvent>();
+		
+		for (ListenerRegistration registration:sListeners)
+		{
+			if (registration.mLastSnapshot == currentSnapshot)
+			{
+				continue;
+			}
+			
+			ConfigurationChangeEvent diff = diffs.get(registration.mLastSnapshot);
+			if (diff == null)
+			{
+				diff = ConfigurationChangeEvent.diff(registration.mLastSnapshot, currentSnapshot);
+				diffs.put(registration.mLastSnapshot, diff);
+			}
+			registration.mLastSnapshot = currentSnapshot;
+			
+			ConfigurationChangeEvent event = diff.filter(registration.mPrefix);
+			if (event.isEmpty())
+			{
+				continue;
+			}
+			
+			try
+			{
+				registration.mListener.configurationChanged(event);
+			}
+			catch (Throwable t)
+			{
+				sLogger.error("Configuration change listener " + registration.mListener + " failed.", t);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * registers a listener to the changes of the parameters whose names start with the given prefix.
+	 * after every reload, the listener gets a single event with the parameters that were added, changed
+	 * or removed (if any of them start with the prefix). the listener is notified in a background thread.
+	 * 
+	 * @param aPrefix the prefix of the parameters names. an empty prefix or "*" for all the parameters
+	 * @param aListener the listener
+	 */
+	public static void addListener(String aPrefix, ConfigurationChangeListener aListener)
+	{
+		sListeners.add(new ListenerRegistration(aPrefix == null ? "" : aPrefix, aListener, sSnapshot));
+	}
+	
+	
+	
+	/**
+	 * unregisters a listener from all the prefixes it was registered with
+	 * 
+	 * @param aListener the listener
+	 */
+	public static void removeListener(ConfigurationChangeListener aListener)
+	{
+		for (ListenerRegistration registration:sListeners)
+		{
+			if (registration.mListener == aListener)
+			{
+				sListeners.remove(registration);
+			}
 		}
-		catch(IOException ioe)
+	}
+	
+	
+	
+	/**
+	 * loads the local configuration file(s) set by the <i>com.tinyj.infra.config.local</i>
+	 * system property. the current parameters are not changed.
+	 * 
+	 * @return the loaded parameters of each file, by the file name, in the declared order of the files
+	 */
+	protected static Map<String, Properties> loadLocalFiles()
+	{
+		String msg = "initLocalConfiguration() started.";
+		System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+		sLogger.debug(msg);
+		sConfigurationFilesNamesConcatenated = System.getProperty(LOCAL_CONFIGURATION_SYSTEM_PROPERTY);
+		if (sConfigurationFilesNamesConcatenated == null)
 		{
-			String errMsg = "could not read configuration file " + currConfigFileName + ".";
+			String errMsg = "Configuarion file not set. Please set the System property '" + LOCAL_CONFIGURATION_SYSTEM_PROPERTY + "' to point the location of the configuration properties file.";
 			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-			sLogger.fatal(errMsg, ioe);
+			sLogger.fatal(errMsg);
 			throw new ConfigurationException(errMsg);
 		}
-		finally
+		else
 		{
-			if (fis != null)
+			msg = "ConfigurationManager is going to parse the configuration file(s): " + sConfigurationFilesNamesConcatenated;
+			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+			sLogger.debug(msg);
+			
+			//check if we have more than one configuration file in the system property
+			if (sConfigurationFilesNamesConcatenated.indexOf(";") == -1)
+			{
+				//there is only one configuration file
+				msg = "ConfigurationManager: there is only one configuration file to parse";
+				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+				sLogger.debug(msg);
+				
+				sConfigurationFilesNames = new String[1];
+				sConfigurationFilesNames[0] = sConfigurationFilesNamesConcatenated;
+			}
+			else
+			{
+				//there are multiple configuration files, so split the string by ";"
+				msg = "ConfigurationManager: there are multiple configuration files to parse";
+				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+				sLogger.debug(msg);
+				
+				sConfigurationFilesNames = sConfigurationFilesNamesConcatenated.split(";");
+			}
+		}
+		
+		
+		//the files are read and parsed in parallel, and then kept in the declared order,
+		//so the files declared later still override the files declared before them
+		long startTime = System.nanoTime();
+		final String[] configFilesNames = sConfigurationFilesNames;
+		Map<String, Properties> localFilesParameters = new LinkedHashMap<String, Properties>();
+		if (configFilesNames.length == 1)
+		{
+			localFilesParameters.put(configFilesNames[0], loadLocalFile(configFilesNames[0]));
+		}
+		else
+		{
+			//the loading tasks must not touch the ConfigurationManager itself, as the first load runs
+			//during its static initialization (which would block the loading threads)
+			List<CompletableFuture<LocalConfigurationFile>> loads = new ArrayList<CompletableFuture<LocalConfigurationFile>>();
+			for (final String configFileName:configFilesNames)
+			{
+				loads.add(CompletableFuture.supplyAsync(new Supplier<LocalConfigurationFile>()
+				{
+					public LocalConfigurationFile get()
+					{
+						return LocalConfigurationFile.load(configFileName);
+					}
+				}));
+			}
+			
+			for (int i=0 ; i<configFilesNames.length ; ++i)
 			{
 				try
 				{
-					fis.close();
+					LocalConfigurationFile configFile = loads.get(i).join();
+					sLocalFilesLoadTimings.put(configFilesNames[i], configFile.getTiming());
+					localFilesParameters.put(configFilesNames[i], configFile.getParameters());
 				}
-				catch (IOException ioe)
+				catch (CompletionException ce)
 				{
-					String errMsg = "ConfigurationManager: could not close file input stream. ignoring...";
-					System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-					sLogger.fatal(errMsg, ioe);
+					if (ce.getCause() instanceof ConfigurationException)
+					{
+						throw (ConfigurationException)ce.getCause();
+					}
+					throw ce;
 				}
 			}
-			sLock.writeLock().unlock();
 		}
+		sLastLocalLoadNanos = System.nanoTime() - startTime;
+		
+		
+		msg = "initLocalConfiguration() ended. " + configFilesNames.length + " file(s) loaded in " + (sLastLocalLoadNanos / 1000000) + "ms: " + getLocalFilesLoadTimings();
+		System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+		sLogger.debug(msg);
+		return localFilesParameters;
+	}
+	
+	
+	
+	/**
+	 * returns the timing breakdown of the last load of each local configuration file, in the declared order of the files
+	 * 
+	 * @return the timings of the local configuration files
+	 */
+	public static List<ConfigurationFileLoadTiming> getLocalFilesLoadTimings()
+	{
+		List<ConfigurationFileLoadTiming> timings = new ArrayList<ConfigurationFileLoadTiming>();
+		String[] configFilesNames = sConfigurationFilesNames;
+		if (configFilesNames != null)
+		{
+			for (String configFileName:configFilesNames)
+			{
+				ConfigurationFileLoadTiming timing = sLocalFilesLoadTimings.get(configFileName);
+				if (timing != null)
+				{
+					timings.add(timing);
+				}
+			}
+		}
+		
+		return timings;
 	}
 	
 	
 	
+	/**
+	 * returns the total (wall clock) time of the last load of all the local configuration files
+	 * 
+	 * @return the time of the last local configuration load, in nanoseconds
+	 */
+	public static long getLastLocalLoadNanos()
+	{
+		return sLastLocalLoadNanos;
+	}
+	
+	
+	
+	/**
+	 * loads a single local configuration file
+	 * 
+	 * @param aConfigFileName the name of the configuration file
+	 * 
+	 * @return the parameters of the file
+	 */
+	protected static Properties loadLocalFile(String aConfigFileName)
+	{
+		LocalConfigurationFile configFile = LocalConfigurationFile.load(aConfigFileName);
+		sLocalFilesLoadTimings.put(aConfigFileName, configFile.getTiming());
+		return configFile.getParameters();
+	}
+	
+	
+	
+	/**
+	 * merges the given loaded local files into a single Properties. files declared later
+	 * override the parameters of files declared before them.
+	 * 
+	 * @param aLocalFilesParameters the parameters of each file, in the declared order of the files
+	 * 
+	 * @return the merged local parameters
+	 */
+	protected static Properties mergeLocalFiles(Map<String, Properties> aLocalFilesParameters)
+	{
+		Properties localParameters = new Properties();
+		for (Properties fileParameters:aLocalFilesParameters.values())
+		{
+			localParameters.putAll(fileParameters);
+		}
+		
+		return localParameters;
+	}
+	
+	
+	
+	/**
+	 * reloads only the given local configuration files, and keeps the parameters of the other
+	 * local files as they are. used by the LocalConfigurationWatcher when some of the files changed.
+	 * 
+	 * @param aConfigFileNames the names of the configuration files to reload
+	 */
+	protected static void reloadLocalFiles(Collection<String> aConfigFileNames)
+	{
+		try
+		{
+			lockForReload();
+			Map<String, Properties> localFilesParameters = new LinkedHashMap<String, Properties>(sLocalFilesParameters);
+			for (String configFileName:aConfigFileNames)
+			{
+				if (localFilesParameters.containsKey(configFileName))
+				{
+					localFilesParameters.put(configFileName, loadLocalFile(configFileName));
+				}
+			}
+			
+			sLocalFilesParameters = localFilesParameters;
+			sLocalParameters = mergeLocalFiles(localFilesParameters);
+			publishSnapshot();
+		}
+		finally
+		{
+			unlockAfterReload();
+		}
+	}
+	
+	
+	
+	
+	/**
+	 * initializes the remote configuration. parameters to the DB where the remote configuration sits should be
+	 * set in the local configuration (the properties file).
+	 * There are 2 ways to instantiate the DBConnectionManager in order to load the remote configuration: (1)using DataSource and (2)using pure JDBC.
+	 * there is also an option to choose whether to load the remote configuration or not using the local parameter:
+	 * 
+	 * CONFIG_LOAD_REMOTE = true | false
+	 * 
+	 * The needed local parameters for loading the remote configuration using a DataSource are:
+	 * 
+	 * CONFIG_USE_DATA_SOURCE = true
+	 * CONFIG_DS_JNDI_NAME = <i>the jndi name of the data source</i>
+	 * CONFIG_DS_CONTEXT_FACTORY  = <i>the context factory to use in order to lookup the data source JNDI</i>
+	 * CONFIG_DS_PROVIDER_URL = <i>the URL where the JNDI rests</i>
+	 * 
+	 * The needed local parameters for loading the remote configuration using a pure JDBC are:
+	 * 
+	 * CONFIG_USE_DATA_SOURCE = false
+	 * CONFIG_JDBC_DATABASE_DRIVER = <i>the JDBC driver class name</i> 
+	 * CONFIG_JDBC_DATABASE_URL = <i>the DB URL</i>
+	 * CONFIG_JDBC_DATABASE_USER = <i>the username to connect to the DB</i>
+	 * CONFIG_JDBC_DATABASE_PASS = <i>the password to connect to the DB</i>
+	 * CONFIG_JDBC_DATABASE_REPLICA_URLS = <i>optional. the comma separated URLs of the replicas to load the configuration from</i>
+	 * 
+	 */
+	protected static void initRemoteConfiguration()
+	{
+		synchronized (sRemoteLoadMutex)
+		{
+			//the parameters are loaded from the DB outside the lock. the lock is taken only to publish them
+			Properties remoteParameters = loadRemoteParameters(sLocalParameters);
+			publishRemoteParameters(remoteParameters);
+		}
+	}
+	
+	
+	
+	//publishes a new snapshot with the given remote parameters, unless they are equal to the current ones.
+	//should be called while holding the remote load mutex.
+	//returns true if a new snapshot was published
+	private static boolean publishRemoteParameters(Properties aRemoteParameters)
+	{
+		if (aRemoteParameters.equals(sRemoteParameters))
+		{
+			return false;
+		}
+		
+		try
+		{
+			lockForReload();
+			sRemoteParameters = aRemoteParameters;
+			publishSnapshot();
+		}
+		finally
+		{
+			unlockAfterReload();
+		}
+		return true;
+	}
+	
+	
 	
 	/**
-	 * initializes the remote configuration. parameters to the DB where the remote configuration sits should be
-	 * set in the local configuration (the properties file).
-	 * There are 2 ways to instantiate the DBConnectionManager in order to load the remote configuration: (1)using DataSource and (2)using pure JDBC.
-	 * there is also an option to choose whether to load the remote configuration or not using the local parameter:
-	 * 
-	 * CONFIG_LOAD_REMOTE = true | false
-	 * 
-	 * The needed local parameters for loading the remote configuration using a DataSource are:
+	 * loads the remote parameters into a new Properties object, according to the local parameters
+	 * (see initRemoteConfiguration()). the current parameters are not changed.
+	 * should be called while holding the remote load mutex.
 	 * 
-	 * CONFIG_USE_DATA_SOURCE = true
-	 * CONFIG_DS_JNDI_NAME = <i>the jndi name of the data source</i>
-	 * CONFIG_DS_CONTEXT_FACTORY  = <i>the context factory to use in order to lookup the data source JNDI</i>
-	 * CONFIG_DS_PROVIDER_URL = <i>the URL where the JNDI rests</i>
-	 * 
-	 * The needed local parameters for loading the remote configuration using a pure JDBC are:
-	 * 
-	 * CONFIG_USE_DATA_SOURCE = false
-	 * CONFIG_JDBC_DATABASE_DRIVER = <i>the JDBC driver class name</i> 
-	 * CONFIG_JDBC_DATABASE_URL = <i>the DB URL</i>
-	 * CONFIG_JDBC_DATABASE_USER = <i>the username to connect to the DB</i>
-	 * CONFIG_JDBC_DATABASE_PASS = <i>the password to connect to the DB</i>
+	 * @param aLocalParameters the local parameters that configure the remote configuration
 	 * 
+	 * @return the loaded remote parameters. an empty Properties if the remote configuration should not be loaded
 	 */
-	protected static void initRemoteConfiguration()
+	protected static Properties loadRemoteParameters(Properties aLocalParameters)
 	{
 		//get from the properties file a parameter indicating whether to load the
 		//remote configuration from the DB
 		try 
 		{
-			sLock.writeLock().lock();
-
 			String msg = "initRemoteConfiguration() started.";
 			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 			sLogger.debug(msg);
-			String loadRemoteConfigParam = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_LOAD_REMOTE);
+			String loadRemoteConfigParam = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_LOAD_REMOTE);
 			if (loadRemoteConfigParam == null || !loadRemoteConfigParam.equalsIgnoreCase(CONFIGURATION_TRUE))
 			{
 				//no need to load the remote configuration, so just create an empty Properties for it
@@ -708,14 +1324,14 @@ public class ConfigurationManager
 						"' to " + CONFIGURATION_TRUE + " if you want to load it.";
 				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 				sLogger.warn(msg);
-				sRemoteParameters = new Properties();
+				sRemoteLoaded = false;
 				msg = "initLocalConfiguration() ended.";
 				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 				sLogger.debug(msg);
-				return;
+				return new Properties();
 			}
 			
-			String useDataSourceParam = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_USE_DATA_SOURCE);
+			String useDataSourceParam = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_USE_DATA_SOURCE);
 			if (useDataSourceParam == null || !useDataSourceParam.equalsIgnoreCase(CONFIGURATION_TRUE))
 			{
 				//jdbc will be used to connect to the DB in order to load configuration
@@ -726,10 +1342,10 @@ public class ConfigurationManager
 				sLogger.debug(msg);
 				
 				sUseDataSource = false;
-				sJDBCDriverName = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_DRIVER);
-				sJDBCUrl = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_URL);
-				sJDBCUsername = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_USER);
-				sJDBCPassword = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_PASS);
+				sJDBCDriverName = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_DRIVER);
+				sJDBCUrl = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_URL);
+				sJDBCUsername = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_USER);
+				sJDBCPassword = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_PASS);
 				
 				if (sJDBCDriverName == null || sJDBCUrl == null || sJDBCUsername == null || sJDBCPassword == null)
 				{
@@ -744,11 +1360,8 @@ public class ConfigurationManager
 					throw new ConfigurationException(errMsg);
 				}
 				
-				//init the DB connection manager
-				
-					sConManager = new DBConnectionManager(sJDBCDriverName, sJDBCUrl, sJDBCUsername, sJDBCPassword);
-				
-				
+				//init the DB connection manager. the parameters are loaded from the replicas, if any
+				initConManager(aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_JDBC_DATABASE_REPLICA_URLS));
 				
 			}
 			else
@@ -761,9 +1374,9 @@ public class ConfigurationManager
 				sLogger.debug(msg);
 				
 				sUseDataSource = true;
-				sDataSourceJNDIName = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_JNDI_NAME);
-				sJNDIContextFactory = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_CONTEXT_FACTORY);
-				sJNDIProviderURL = sLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_PROVIDER_URL);
+				sDataSourceJNDIName = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_JNDI_NAME);
+				sJNDIContextFactory = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_CONTEXT_FACTORY);
+				sJNDIProviderURL = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_DATA_SOURCE_PROVIDER_URL);
 				
 				if (sDataSourceJNDIName == null || sJNDIContextFactory == null || sJNDIProviderURL == null)
 				{
@@ -780,7 +1393,7 @@ public class ConfigurationManager
 				//init the DB connection manager
 				try 
 				{
-					sConManager = new DBConnectionManager(sDataSourceJNDIName, sJNDIContextFactory, sJNDIProviderURL);
+					initConManager(null);
 				} 
 				catch (DBConnectionException e) 
 				{
@@ -792,12 +1405,22 @@ public class ConfigurationManager
 				
 			}
 			
+			//a version column enables the delta refresh of the remote parameters
+			sRemoteVersionColumn = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_REMOTE_VERSION_COLUMN);
+			sSnapshotCacheFileName = aLocalParameters.getProperty(LOCAL_PARAM_CONFIG_SNAPSHOT_CACHE_FILE);
+			
 			//go to load the parameters from the database
-			loadParametersFromDB();
+			Properties remoteParameters = loadParametersFromDB();
+			sRemoteLoaded = true;
+			sServingSnapshotCache = false;
+			if (!remoteParameters.equals(sRemoteParameters))
+			{
+				writeSnapshotCache(remoteParameters);
+			}
 			msg = "initRemoteConfiguration() ended.";
 			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 			sLogger.debug(msg);
-			
+			return remoteParameters;
 		} 
 		catch (ConfigurationException e)
 		{
@@ -812,69 +1435,167 @@ public class ConfigurationManager
 		}
 		catch (Exception e)
 		{
+			//keep the previous remote parameters
+			return sRemoteParameters;
 		}
-		finally
+		
+	}
+	
+	
+	
+	
+	//creates the DB connection manager from the connection parameters (which were already read and validated),
+	//unless the current one was created from the same parameters. a reload with the same connection
+	//parameters keeps the connection pool instead of replacing it
+	private static void initConManager(String aReplicaUrls)
+		throws DBConnectionException
+	{
+		String replicaUrls = aReplicaUrls == null || aReplicaUrls.trim().isEmpty() ? null : aReplicaUrls.trim();
+		List<String> conManagerParameters = sUseDataSource ? 
+				Arrays.asList(sDataSourceJNDIName, sJNDIContextFactory, sJNDIProviderURL) : 
+				Arrays.asList(sJDBCDriverName, sJDBCUrl, replicaUrls, sJDBCUsername, sJDBCPassword);
+		if (sConManager != null && conManagerParameters.equals(sConManagerParameters))
 		{
-			sLock.writeLock().unlock();
+			return;
 		}
 		
+		if (sUseDataSource)
+		{
+			replaceConManager(new DBConnectionManager(sDataSourceJNDIName, sJNDIContextFactory, sJNDIProviderURL));
+		}
+		else if (replicaUrls == null)
+		{
+			replaceConManager(new DBConnectionManager(sJDBCDriverName, sJDBCUrl, sJDBCUsername, sJDBCPassword));
+		}
+		else
+		{
+			replaceConManager(new DBConnectionManager(sJDBCDriverName, sJDBCUrl, Arrays.asList(replicaUrls.split("\\s*,\\s*")), 
+					sJDBCUsername, sJDBCPassword, new JDBCConnectionPoolConfig(), ReplicaRouter.Selection.ROUND_ROBIN));
+		}
+		sConManagerParameters = conManagerParameters;
 	}
 	
 	
 	
+	//replaces the DB connection manager, and closes the connection pool of the previous one
+	private static void replaceConManager(DBConnectionManager aConManager)
+	{
+		DBConnectionManager previousConManager = sConManager;
+		sConManager = aConManager;
+		if (previousConManager != null)
+		{
+			previousConManager.close();
+		}
+	}
+	
+	
 	
 	/**
-	 * loads the remote parameters from the DB 
+	 * loads the remote parameters from the DB into a new Properties object.
+	 * if a version column is configured, the highest version loaded is kept for the following delta refreshes.
+	 * should be called while holding the remote load mutex.
+	 * 
+	 * @return the parameters loaded from the DB
 	 */
-	protected static void loadParametersFromDB()
+	protected static Properties loadParametersFromDB()
 	{
-		Connection con = null;
+		//logged only, since the periodic refreshes run it too. the loads of the configuration write to the system output stream
+		sLogger.debug("loadParametersFromDB() started.");
 		
-		String query = "select " + CONF_TABLE_PARAM_NAME_COLUMN + ", " + CONF_TABLE_PARAM_VALUE_COLUMN + 
-						" from " + CONF_TABLE_NAME;
+		Map<String, String> loadedParameters = queryParametersFromDB(false);
+		Properties remoteParameters = new Properties();
+		for (Entry<String, String> entry:loadedParameters.entrySet())
+		{
+			if (entry.getValue() != null)
+			{
+				remoteParameters.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		sLogger.debug("loadParametersFromDB() ended. " + remoteParameters.size() + " parameters loaded.");
+		return remoteParameters;
+	}
+	
+	
+	
+	/**
+	 * queries the remote parameters from the DB. when aChangedOnly is true, only the rows whose version
+	 * is higher than the highest version loaded so far are queried. the highest version loaded is updated.
+	 * should be called while holding the remote load mutex.
+	 * 
+	 * @param aChangedOnly true to query only the changed rows (requires a version column), false to query all the rows
+	 * 
+	 * @return the parameters queried, by their names. a null value means the parameter value is null in the DB
+	 */
+	protected static Map<String, String> queryParametersFromDB(boolean aChangedOnly)
+	{
+		Connection con = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
-
+		String versionColumn = sRemoteVersionColumn;
+		DBConnectionManager conManager = sConManager;
+		
+		StringBuilder query = new StringBuilder();
+		query.append("select ").append(CONF_TABLE_PARAM_NAME_COLUMN).append(", ").append(CONF_TABLE_PARAM_VALUE_COLUMN);
+		if (versionColumn != null)
+		{
+			query.append(", ").append(versionColumn);
+		}
+		query.append(" from ").append(CONF_TABLE_NAME);
+		if (aChangedOnly)
+		{
+			query.append(" where ").append(versionColumn).append(" > ?");
+		}
 
 		try 
 		{
-
-			sLock.writeLock().lock();
-			String msg = "loadParametersFromDB() started.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
-			//DBConnectionManager conMgr = new DB
-			String paramName = null;
-			String paramValue = null;
-			String parameterNameValuePrint = null;
+			Map<String, String> parameters = new HashMap<String, String>();
+			long maxVersion = aChangedOnly ? sRemoteVersion : Long.MIN_VALUE;
+			boolean debugEnabled = sLogger.isDebugEnabled();
 		
-			con = sConManager.createDBConnection();
-			ps = con.prepareStatement(query);
+			//the parameters are read from a replica, when there are replicas
+			con = conManager.createReadOnlyDBConnection();
+			ps = con.prepareStatement(query.toString());
+			if (aChangedOnly)
+			{
+				if (sRemoteVersionIsTime)
+				{
+					ps.setTimestamp(1, new Timestamp(sRemoteVersion));
+				}
+				else
+				{
+					ps.setLong(1, sRemoteVersion);
+				}
+			}
 			rs = ps.executeQuery();
 			
 			while (rs.next())
 			{
-				paramName = rs.getString(CONF_TABLE_PARAM_NAME_COLUMN);
-				paramValue = rs.getString(CONF_TABLE_PARAM_VALUE_COLUMN);
-				parameterNameValuePrint = "[" + paramName + ", " + paramValue + "]";
-				if (paramName == null || paramValue == null)
+				String paramName = rs.getString(CONF_TABLE_PARAM_NAME_COLUMN);
+				String paramValue = rs.getString(CONF_TABLE_PARAM_VALUE_COLUMN);
+				if (paramName == null || (paramValue == null && !aChangedOnly))
 				{
-					msg = "Parameter names or values cannot be null. It will not be added. " + parameterNameValuePrint;
-					System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-					sLogger.warn(msg);
+					sLogger.warn("Parameter names or values cannot be null. It will not be added. [" + paramName + ", " + paramValue + "]");
+					continue;
 				}
-				else
+				
+				if (debugEnabled)
+				{
+					sLogger.debug("Adding parameter: [" + paramName + ", " + paramValue + "]");
+				}
+				parameters.put(paramName, paramValue);
+				
+				if (versionColumn != null)
 				{
-					msg = "Adding parameter: " + parameterNameValuePrint;
-					System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-					sLogger.debug(msg);
-					sRemoteParameters.put(paramName, paramValue);
+					maxVersion = Math.max(maxVersion, readVersion(rs, versionColumn));
 				}
 			}
 			
-			msg = "loadParametersFromDB() ended.";
-			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
-			sLogger.debug(msg);
+			if (versionColumn != null)
+			{
+				sRemoteVersion = maxVersion;
+			}
+			return parameters;
 		}
 		catch (DBConnectionException dbce) 
 		{
@@ -892,9 +1613,159 @@ public class ConfigurationManager
 		}
 		finally
 		{
-			sLock.writeLock().unlock();
-
-			sConManager.closeResources(con, ps, rs);
+			conManager.closeResources(con, ps, rs);
+		}
+	}
+	
+	
+	
+	//reads the version of the current row. a time column is kept as milliseconds
+	private static long readVersion(ResultSet aRs, String aVersionColumn)
+		throws SQLException
+	{
+		Object version = aRs.getObject(aVersionColumn);
+		if (version instanceof java.util.Date)
+		{
+			sRemoteVersionIsTime = true;
+			return ((java.util.Date)version).getTime();
+		}
+		else if (version instanceof Number)
+		{
+			sRemoteVersionIsTime = false;
+			return ((Number)version).longValue();
+		}
+		
+		//a row without a version is loaded, but does not advance the version
+		return Long.MIN_VALUE;
+	}
+	
+	
+	
+	/**
+	 * refreshes the remote parameters. if the local parameter CONFIG_REMOTE_VERSION_COLUMN is set,
+	 * only the rows whose version is higher than the highest version loaded so far are fetched and merged
+	 * into the current remote parameters (a row whose value is null removes the parameter). otherwise, all the
+	 * remote parameters are reloaded.
+	 * the DB is queried outside the lock, and a new snapshot is published only if some parameter changed.
+	 * note that rows deleted from the table are not detected by the delta refresh. a full reloadRemote() removes them.
+	 */
+	public static void refreshRemote()
+	{
+		synchronized (sRemoteLoadMutex)
+		{
+			if (!sRemoteLoaded)
+			{
+				//the cached remote parameters are served because the DB could not be loaded yet. try again
+				if (sServingSnapshotCache)
+				{
+					initRemoteConfiguration();
+				}
+				return;
+			}
+			
+			if (sRemoteVersionColumn == null)
+			{
+				//without a version column all the parameters are reloaded, through the current connection manager.
+				//a new snapshot is published (and cached) only if some parameter changed
+				Properties remoteParameters = loadParametersFromDB();
+				if (publishRemoteParameters(remoteParameters))
+				{
+					sLogger.debug("refreshRemote(): the remote parameters changed.");
+					writeSnapshotCache(remoteParameters);
+				}
+				return;
+			}
+			
+			Map<String, String> changedParameters = queryParametersFromDB(true);
+			Properties remoteParameters = new Properties();
+			remoteParameters.putAll(sRemoteParameters);
+			boolean modified = false;
+			
+			for (Entry<String, String> entry:changedParameters.entrySet())
+			{
+				Object previousValue;
+				if (entry.getValue() == null)
+				{
+					previousValue = remoteParameters.remove(entry.getKey());
+					modified |= previousValue != null;
+				}
+				else
+				{
+					previousValue = remoteParameters.put(entry.getKey(), entry.getValue());
+					modified |= !entry.getValue().equals(previousValue);
+				}
+			}
+			
+			if (!modified)
+			{
+				return;
+			}
+			
+			sLogger.debug("refreshRemote(): " + changedParameters.size() + " remote parameters changed.");
+			try
+			{
+				lockForReload();
+				sRemoteParameters = remoteParameters;
+				publishSnapshot();
+			}
+			finally
+			{
+				unlockAfterReload();
+			}
+			writeSnapshotCache(remoteParameters);
+		}
+	}
+	
+	
+	
+	/**
+	 * starts refreshing the remote parameters in the background (see refreshRemote()) every given interval.
+	 * if the refresh is already scheduled, it is rescheduled with the new interval.
+	 * 
+	 * @param aIntervalMillis the interval between refreshes, in milliseconds
+	 */
+	public static synchronized void startRemoteRefresh(long aIntervalMillis)
+	{
+		stopRemoteRefresh();
+		
+		sRemoteRefreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable aRunnable)
+			{
+				Thread thread = new Thread(aRunnable, "ConfigurationManager-RemoteRefresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		sRemoteRefreshExecutor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					refreshRemote();
+				}
+				catch (Throwable t)
+				{
+					//keep the previous parameters, and try again on the next interval
+					sLogger.error("Could not refresh the remote configuration.", t);
+				}
+			}
+		}, aIntervalMillis, aIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	
+	/**
+	 * stops refreshing the remote parameters in the background, if they are refreshed
+	 */
+	public static synchronized void stopRemoteRefresh()
+	{
+		if (sRemoteRefreshExecutor != null)
+		{
+			sRemoteRefreshExecutor.shutdownNow();
+			sRemoteRefreshExecutor = null;
 		}
 	}
 	
@@ -906,52 +1777,163 @@ public class ConfigurationManager
 	 */
 	protected static void saveParameterToDB(String param, String paramvalue)
 	{
-		String msg = "saveParameterToDB() started.";
+		saveParametersToDB(Collections.singletonMap(param, paramvalue));
+	}
+	
+	
+	/**
+	 * updates the given parameters in the configuration table, using a single JDBC batch of prepared
+	 * statements in a single transaction. after the transaction is committed, the updated parameters are
+	 * applied to the current remote parameters directly (without reloading the table), and a new snapshot is published.
+	 * parameters that do not exist in the table are not inserted, and are not applied.
+	 * 
+	 * @param aParams the parameters to update, by their names
+	 */
+	protected static void saveParametersToDB(Map<String, String> aParams)
+	{
+		String msg = "saveParametersToDB() started.";
 		System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 		sLogger.debug(msg);
-		//DBConnectionManager conMgr = new DB
+		
+		if (aParams.isEmpty())
+		{
+			return;
+		}
+		
+		String query = "update " + CONF_TABLE_NAME + " set " + CONF_TABLE_PARAM_VALUE_COLUMN + " = ?" +
+						" where " + CONF_TABLE_PARAM_NAME_COLUMN + " = ?";
+		List<Entry<String, String>> params = new ArrayList<Entry<String, String>>(aParams.entrySet());
 		Connection con = null;
-
-		String query = "update " +  CONF_TABLE_NAME +" set "  + CONF_TABLE_PARAM_VALUE_COLUMN + " = " +paramvalue+
-						" where " + CONF_TABLE_PARAM_NAME_COLUMN + " = '" + param+"'";
 		PreparedStatement ps = null;
-		ResultSet rs = null;
-	
+		boolean autoCommit = true;
+		int[] updateCounts;
 		
-		try 
+		//the readers take no lock while the DB is updated. the remote load mutex is held, so a reload
+		//does not replace (and close) the connection manager during the update, or publish between the
+		//update and the apply of the updated parameters
+		synchronized (sRemoteLoadMutex)
 		{
-			sLock.writeLock().lock();
-			con = sConManager.createDBConnection();
-			ps = con.prepareStatement(query);
-			ps.executeUpdate();
+			DBConnectionManager conManager = sConManager;
+			try 
+			{
+				con = conManager.createDBConnection();
+				autoCommit = con.getAutoCommit();
+				con.setAutoCommit(false);
+				
+				ps = con.prepareStatement(query);
+				for (Entry<String, String> param:params)
+				{
+					ps.setString(1, param.getValue());
+					ps.setString(2, param.getKey());
+					ps.addBatch();
+				}
+				
+				updateCounts = ps.executeBatch();
+				con.commit();
+			}
+			catch (DBConnectionException dbce) 
+			{
+				String errMsg = "Could not save parameters to the DB.";
+				System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
+				sLogger.error(errMsg, dbce);
+				throw new ConfigurationException(errMsg);
+			}
+			catch (SQLException sqle) 
+			{
+				rollback(con);
+				String errMsg = "Could not save parameters to the DB.";
+				System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
+				sLogger.error(errMsg, sqle);
+				throw new ConfigurationException(errMsg);
+			}
+			finally
+			{
+				restoreAutoCommit(con, autoCommit);
+				conManager.closeResources(con, ps, null);
+			}
 			
-			//reloading remote configuration parameters
-			msg = "saveParameterToDB() reloading remote configuration.";
+			//apply the updated parameters to the current remote parameters
+			msg = "saveParametersToDB() applying the updated parameters to the remote configuration.";
 			System.out.println(msg); //write to the system output stream, just in case the logger isn't available
 			sLogger.debug(msg);
-			reloadRemote();
 			
-			sLogger.debug("saveParameterToDB() ended.");
+			Properties remoteParameters = new Properties();
+			remoteParameters.putAll(sRemoteParameters);
+			for (int i=0 ; i<params.size() ; ++i)
+			{
+				//drivers may not report the count of each statement in the batch
+				boolean updated = i >= updateCounts.length || updateCounts[i] > 0 || updateCounts[i] == Statement.SUCCESS_NO_INFO;
+				if (updated && params.get(i).getValue() != null)
+				{
+					remoteParameters.put(params.get(i).getKey(), params.get(i).getValue());
+				}
+				else if (updated)
+				{
+					remoteParameters.remove(params.get(i).getKey());
+				}
+			}
+			
+			if (publishRemoteParameters(remoteParameters))
+			{
+				writeSnapshotCache(remoteParameters);
+			}
 		}
-		catch (DBConnectionException dbce) 
+		
+		sLogger.debug("saveParametersToDB() ended.");
+	}
+	
+	
+	private static void rollback(Connection aCon)
+	{
+		if (aCon == null)
 		{
-			String errMsg = "Could not save a parameter to the DB.";
-			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-			sLogger.error(errMsg, dbce);
-			throw new ConfigurationException(errMsg);
+			return;
 		}
-		catch (SQLException sqle) 
+		
+		try
 		{
-			String errMsg = "Could not save a parameter to the DB.";
-			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
-			sLogger.error(errMsg, sqle);
-			throw new ConfigurationException(errMsg);
+			aCon.rollback();
 		}
-		finally
+		catch (SQLException sqle)
 		{
-			sConManager.closeResources(con, ps, rs);
-			sLock.writeLock().unlock();
-
+			sLogger.warn("Error rolling back the parameters update.", sqle);
+		}
+	}
+	
+	
+	private static void restoreAutoCommit(Connection aCon, boolean aAutoCommit)
+	{
+		if (aCon == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			aCon.setAutoCommit(aAutoCommit);
+		}
+		catch (SQLException sqle)
+		{
+			sLogger.warn("Error restoring the connection auto commit mode.", sqle);
+		}
+	}
+	
+	
+	
+	/////////ListenerRegistration class ////////////////////
+	protected static class ListenerRegistration
+	{
+		protected final String mPrefix;
+		protected final ConfigurationChangeListener mListener;
+		
+		//the last snapshot the listener was notified about. accessed only by the listeners thread
+		protected ConfigurationSnapshot mLastSnapshot;
+		
+		protected ListenerRegistration(String aPrefix, ConfigurationChangeListener aListener, ConfigurationSnapshot aSnapshot)
+		{
+			mPrefix = aPrefix;
+			mListener = aListener;
+			mLastSnapshot = aSnapshot;
 		}
 	}
 	
@@ -0,0 +1,280 @@
+package com.tinyj.infra.config;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * an immutable view of the configuration parameters at a given point in time.
+ * the local and remote parameters are merged once (local parameters take precedence over
+ * remote ones) and all the values are trimmed while building the snapshot, so reading a
+ * parameter from the snapshot takes no lock and allocates nothing.
+ *
+ * the ConfigurationManager publishes a new snapshot on every reload, so a snapshot that
+ * was already taken is never changed.
+ *
+ * the snapshot also holds the parameters sorted by name, so querying the parameters
+ * with a given prefix is a binary search (O(log n + k)). the results of the prefix queries
+ * are cached in the snapshot, so they are dropped on the next reload.
+ *
+ * @author asaf.peeri
+ *
+ */
+public final class ConfigurationSnapshot
+{
+	//an empty snapshot, used before the configuration is loaded for the first time
+	public static final ConfigurationSnapshot EMPTY = new ConfigurationSnapshot(null, null, 0);
+
+	//the merged parameters. never modified after construction
+	private final Map<String, String> mParams;
+
+	//the generation of the snapshot. every published snapshot gets a higher generation than the previous one
+	private final long mGeneration;
+
+	//the maximal number of prefixes whose query results are cached in the snapshot
+	private static final int MAX_CACHED_PREFIXES = 1024;
+
+	//the parameters as entries sorted by their names, for the prefix queries
+	private final Entry<Object, Object>[] mSortedEntries;
+	private final String[] mSortedNames;
+
+	//the cached prefix queries results
+	private final ConcurrentHashMap<String, Set<Entry<Object, Object>>> mPrefixQueriesCache = new ConcurrentHashMap<String, Set<Entry<Object, Object>>>();
+
+
+	/**
+	 * creates a snapshot from the given local and remote parameters.
+	 *
+	 * @param aLocalParameters the local parameters (may be null)
+	 * @param aRemoteParameters the remote parameters (may be null)
+	 * @param aGeneration the generation of the snapshot
+	 */
+	public ConfigurationSnapshot(Properties aLocalParameters, Properties aRemoteParameters, long aGeneration)
+	{
+		Map<String, String> params = new HashMap<String, String>();
+
+		//the remote parameters are added first, so the local parameters will override them
+		addParameters(aRemoteParameters, params);
+		addParameters(aLocalParameters, params);
+
+		mParams = Collections.unmodifiableMap(params);
+		mGeneration = aGeneration;
+
+		//build the prefix index
+		mSortedNames = params.keySet().toArray(new String[params.size()]);
+		Arrays.sort(mSortedNames);
+		mSortedEntries = createEntriesArray(mSortedNames.length);
+		for (int i=0 ; i<mSortedNames.length ; ++i)
+		{
+			mSortedEntries[i] = new SimpleImmutableEntry<Object, Object>(mSortedNames[i], params.get(mSortedNames[i]));
+		}
+	}
+
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Entry<Object, Object>[] createEntriesArray(int aSize)
+	{
+		return new Entry[aSize];
+	}
+
+
+	private static void addParameters(Properties aParameters, Map<String, String> aResult)
+	{
+		if (aParameters == null)
+		{
+			return;
+		}
+
+		for (Entry<Object, Object> entry:aParameters.entrySet())
+		{
+			if (entry.getKey() instanceof String && entry.getValue() instanceof String)
+			{
+				aResult.put((String)entry.getKey(), ((String)entry.getValue()).trim());
+			}
+		}
+	}
+
+
+	/**
+	 * gets a parameter value from the snapshot
+	 *
+	 * @param aParamName the parameter name (not null)
+	 *
+	 * @return the trimmed parameter value, or null if the parameter does not exist
+	 */
+	public String getParam(String aParamName)
+	{
+		String paramValue = mParams.get(aParamName);
+		if (paramValue == null)
+		{
+			//the name may have been given with surrounding spaces. trim() returns the same
+			//instance when there is nothing to trim, so the common path does not allocate
+			String trimmedName = aParamName.trim();
+			if (trimmedName != aParamName)
+			{
+				paramValue = mParams.get(trimmedName);
+			}
+		}
+
+		return paramValue;
+	}
+
+
+	/**
+	 * returns the parameters whose names start with the given prefix.
+	 * the prefix "*" returns all the parameters.
+	 *
+	 * @param aPrefix the prefix of the parameters names (not null)
+	 *
+	 * @return an unmodifiable set of the parameters entries whose names start with the given prefix
+	 */
+	public Set<Entry<Object, Object>> getParamsWithPrefix(String aPrefix)
+	{
+		Set<Entry<Object, Object>> result = mPrefixQueriesCache.get(aPrefix);
+		if (result != null)
+		{
+			return result;
+		}
+
+		if (aPrefix.equals("*"))
+		{
+			result = new EntriesRange(0, mSortedEntries.length);
+		}
+		else
+		{
+			int from = findFirstNotBefore(aPrefix);
+			int to = findFirstWithoutPrefix(aPrefix, from);
+			result = new EntriesRange(from, to);
+		}
+
+		//the cache is bounded, so arbitrary prefixes will not make the snapshot grow without limit
+		if (mPrefixQueriesCache.size() < MAX_CACHED_PREFIXES)
+		{
+			mPrefixQueriesCache.putIfAbsent(aPrefix, result);
+		}
+
+		return result;
+	}
+
+
+	//returns the index of the first name that is equal to or greater than the given name
+	private int findFirstNotBefore(String aName)
+	{
+		int index = Arrays.binarySearch(mSortedNames, aName);
+		return index >= 0 ? index : -(index + 1);
+	}
+
+
+	//returns the index of the first name (starting at aFrom) that does not start with the given prefix.
+	//the names with the prefix are contiguous in the sorted array, starting at aFrom
+	private int findFirstWithoutPrefix(String aPrefix, int aFrom)
+	{
+		int low = aFrom;
+		int high = mSortedNames.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (mSortedNames[mid].startsWith(aPrefix))
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+
+	/**
+	 * returns all the parameters of the snapshot as an unmodifiable map
+	 *
+	 * @return the parameters of the snapshot
+	 */
+	public Map<String, String> getParams()
+	{
+		return mParams;
+	}
+
+
+	/**
+	 * returns the generation of the snapshot. a snapshot published later always has a higher generation.
+	 *
+	 * @return the generation of the snapshot
+	 */
+	public long getGeneration()
+	{
+		return mGeneration;
+	}
+
+
+	/**
+	 * returns the number of parameters in the snapshot
+	 *
+	 * @return the number of parameters
+	 */
+	public int size()
+	{
+		return mParams.size();
+	}
+
+
+
+	/////////EntriesRange class ////////////////////
+	//an unmodifiable set view on a range of the sorted entries
+	private final class EntriesRange extends AbstractSet<Entry<Object, Object>>
+	{
+		private final int mFrom;
+		private final int mTo;
+
+		EntriesRange(int aFrom, int aTo)
+		{
+			mFrom = aFrom;
+			mTo = aTo;
+		}
+
+		public Iterator<Entry<Object, Object>> iterator()
+		{
+			return new Iterator<Entry<Object, Object>>()
+			{
+				private int mNext = mFrom;
+
+				public boolean hasNext()
+				{
+					return mNext < mTo;
+				}
+
+				public Entry<Object, Object> next()
+				{
+					if (mNext >= mTo)
+					{
+						throw new NoSuchElementException();
+					}
+					return mSortedEntries[mNext++];
+				}
+
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public int size()
+		{
+			return mTo - mFrom;
+		}
+	}
+}
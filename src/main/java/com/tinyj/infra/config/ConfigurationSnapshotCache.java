@@ -0,0 +1,263 @@
+package com.tinyj.infra.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * a local binary file holding the last remote parameters that were loaded successfully from the DB.
+ * it lets the ConfigurationManager start serving the remote parameters immediately, while the DB is
+ * queried in the background.
+ *
+ * the file holds a header, the highest version of the remote configuration table that was loaded (for
+ * the delta refresh), the parameters as length prefixed UTF-8 strings, and a CRC32 checksum of all the
+ * preceding bytes. a file with a wrong header or checksum is ignored.
+ * the file is written to a temporary file first, and then moved over the previous file, so a crash while
+ * writing never leaves a partial file.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConfigurationSnapshotCache
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(ConfigurationSnapshotCache.class);
+
+	//"TJCF"
+	private static final int MAGIC = 0x544A4346;
+	private static final int FORMAT_VERSION = 1;
+
+	//the magic, format version, remote version, version is time flag and size
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 1 + 4;
+	private static final int CHECKSUM_BYTES = 8;
+	//the length prefix of each string
+	private static final int LENGTH_BYTES = 4;
+
+	protected final Properties mRemoteParameters;
+	protected final long mRemoteVersion;
+	protected final boolean mRemoteVersionIsTime;
+
+
+	public ConfigurationSnapshotCache(Properties aRemoteParameters, long aRemoteVersion, boolean aRemoteVersionIsTime)
+	{
+		mRemoteParameters = aRemoteParameters;
+		mRemoteVersion = aRemoteVersion;
+		mRemoteVersionIsTime = aRemoteVersionIsTime;
+	}
+
+
+	/**
+	 * writes the cache to the given file
+	 *
+	 * @param aFile the cache file
+	 *
+	 * @throws IOException when the file cannot be written
+	 */
+	public void write(File aFile)
+		throws IOException
+	{
+		File directory = aFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(aFile.getName(), ".tmp", directory);
+
+		try
+		{
+			CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), new CRC32());
+			DataOutputStream out = new DataOutputStream(checkedOut);
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(mRemoteVersion);
+				out.writeBoolean(mRemoteVersionIsTime);
+				out.writeInt(mRemoteParameters.size());
+				for (Entry<Object, Object> entry:mRemoteParameters.entrySet())
+				{
+					writeString(out, (String)entry.getKey());
+					writeString(out, (String)entry.getValue());
+				}
+
+				//the checksum covers everything written before it
+				out.flush();
+				out.writeLong(checkedOut.getChecksum().getValue());
+			}
+			finally
+			{
+				out.close();
+			}
+
+			try
+			{
+				Files.move(tempFile.toPath(), aFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException amnse)
+			{
+				Files.move(tempFile.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+	}
+
+
+	/**
+	 * reads the cache from the given file
+	 *
+	 * @param aFile the cache file
+	 *
+	 * @return the cache, or null if the file does not exist or is not valid
+	 */
+	public static ConfigurationSnapshotCache read(File aFile)
+	{
+		if (!aFile.exists())
+		{
+			return null;
+		}
+
+		DataInputStream in = null;
+		try
+		{
+			CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(new FileInputStream(aFile)), new CRC32());
+			in = new DataInputStream(checkedIn);
+
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+			{
+				sLogger.warn("Configuration snapshot cache " + aFile + " has an unknown format. ignoring it.");
+				return null;
+			}
+
+			long remoteVersion = in.readLong();
+			boolean remoteVersionIsTime = in.readBoolean();
+			int size = in.readInt();
+
+			//the size and the lengths are checked against the bytes left in the file before they are used,
+			//since the checksum is verified only after the whole file is read
+			long remainingBytes = aFile.length() - HEADER_BYTES - CHECKSUM_BYTES;
+			if (size < 0 || size > remainingBytes / (2 * LENGTH_BYTES))
+			{
+				sLogger.warn("Configuration snapshot cache " + aFile + " is corrupted (invalid size " + size + "). ignoring it.");
+				return null;
+			}
+
+			Properties remoteParameters = new Properties();
+			for (int i=0 ; i<size ; ++i)
+			{
+				byte[] name = readBytes(in, remainingBytes);
+				remainingBytes -= name == null ? 0 : LENGTH_BYTES + name.length;
+				byte[] value = name == null ? null : readBytes(in, remainingBytes);
+				if (value == null)
+				{
+					sLogger.warn("Configuration snapshot cache " + aFile + " is corrupted (invalid string length). ignoring it.");
+					return null;
+				}
+				remainingBytes -= LENGTH_BYTES + value.length;
+				remoteParameters.put(new String(name, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+			}
+
+			long expectedChecksum = checkedIn.getChecksum().getValue();
+			if (in.readLong() != expectedChecksum)
+			{
+				sLogger.warn("Configuration snapshot cache " + aFile + " is corrupted (wrong checksum). ignoring it.");
+				return null;
+			}
+
+			return new ConfigurationSnapshotCache(remoteParameters, remoteVersion, remoteVersionIsTime);
+		}
+		catch (EOFException eofe)
+		{
+			sLogger.warn("Configuration snapshot cache " + aFile + " is truncated. ignoring it.");
+			return null;
+		}
+		catch (IOException ioe)
+		{
+			sLogger.warn("Could not read configuration snapshot cache " + aFile + ". ignoring it.", ioe);
+			return null;
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException ioe)
+				{
+					sLogger.warn("Error closing configuration snapshot cache " + aFile + ".", ioe);
+				}
+			}
+		}
+	}
+
+
+	private static void writeString(DataOutputStream aOut, String aString)
+		throws IOException
+	{
+		byte[] bytes = aString.getBytes(StandardCharsets.UTF_8);
+		aOut.writeInt(bytes.length);
+		aOut.write(bytes);
+	}
+
+
+	//reads the bytes of a length prefixed string. returns null if the length is negative,
+	//or longer than the given bytes remaining in the file
+	private static byte[] readBytes(DataInputStream aIn, long aRemainingBytes)
+		throws IOException
+	{
+		int length = aIn.readInt();
+		if (length < 0 || length > aRemainingBytes - LENGTH_BYTES)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		aIn.readFully(bytes);
+		return bytes;
+	}
+
+
+	/**
+	 * @return the remote parameters held by the cache
+	 */
+	public Properties getRemoteParameters()
+	{
+		return mRemoteParameters;
+	}
+
+
+	/**
+	 * @return the highest version of the remote configuration table that was loaded
+	 */
+	public long getRemoteVersion()
+	{
+		return mRemoteVersion;
+	}
+
+
+	/**
+	 * @return true if the version of the remote configuration table is a time (in milliseconds)
+	 */
+	public boolean isRemoteVersionTime()
+	{
+		return mRemoteVersionIsTime;
+	}
+}
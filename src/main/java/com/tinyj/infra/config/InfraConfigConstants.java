@@ -55,6 +55,33 @@ public class InfraConfigConstants
 	
 	//if the CONFIGURATION_USE_DATA_SOURCE is set to false, the db password
 	public static final String LOCAL_PARAM_CONFIG_JDBC_DATABASE_PASS = "CONFIG_JDBC_DATABASE_PASS";
+	
+	//if the CONFIGURATION_USE_DATA_SOURCE is set to false, the optional comma separated URLs of the replicas of the DB.
+	//when set, the remote configuration is loaded from the replicas, and saved to the primary
+	public static final String LOCAL_PARAM_CONFIG_JDBC_DATABASE_REPLICA_URLS = "CONFIG_JDBC_DATABASE_REPLICA_URLS";
+
+	//true if to watch the local configuration files in the background and reload them when they change
+	public static final String LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES = "CONFIG_WATCH_LOCAL_FILES";
+	
+	//the time (in milliseconds) to wait after the last change of a watched local configuration file before reloading it
+	public static final String LOCAL_PARAM_CONFIG_WATCH_LOCAL_FILES_DEBOUNCE_MS = "CONFIG_WATCH_LOCAL_FILES_DEBOUNCE_MS";
+
+	//the optional version column of the remote configuration table (a number, or a last modified time).
+	//when set, the remote parameters can be refreshed by fetching only the rows that changed
+	public static final String LOCAL_PARAM_CONFIG_REMOTE_VERSION_COLUMN = "CONFIG_REMOTE_VERSION_COLUMN";
+	
+	//the interval (in milliseconds) to refresh the remote configuration in the background. 0 or missing to disable
+	public static final String LOCAL_PARAM_CONFIG_REMOTE_REFRESH_INTERVAL_MS = "CONFIG_REMOTE_REFRESH_INTERVAL_MS";
+	
+	//the optional local file to cache the last loaded remote configuration in. when the file holds a valid cache,
+	//the cached remote parameters are served at startup and the DB is loaded in the background
+	public static final String LOCAL_PARAM_CONFIG_SNAPSHOT_CACHE_FILE = "CONFIG_SNAPSHOT_CACHE_FILE";
+	
+	//true to collect the access metrics of the configuration parameters (reads per parameter, read latency, lock contention)
+	public static final String LOCAL_PARAM_CONFIG_ACCESS_METRICS = "CONFIG_ACCESS_METRICS";
+	
+	//the number of parameter reads per timed read, when the access metrics are collected
+	public static final String LOCAL_PARAM_CONFIG_ACCESS_METRICS_SAMPLE_RATE = "CONFIG_ACCESS_METRICS_SAMPLE_RATE";
 
 	//the name of the table to take the remote configuration from
 	public static final String CONF_TABLE_NAME = "CONFIGURATION_PARAMS";
@@ -0,0 +1,131 @@
+package com.tinyj.infra.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Properties;
+
+import com.tinyj.infra.exception.ConfigurationException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+import com.tinyj.infra.properties.PropertiesUtils;
+
+
+/**
+ * a loaded local configuration file: its parameters, and the timing of its load.
+ *
+ * the file is read with a single bulk read and then parsed from memory. loading does not use
+ * the ConfigurationManager, so several files can be loaded in parallel threads while the
+ * ConfigurationManager is still being initialized.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class LocalConfigurationFile
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(LocalConfigurationFile.class);
+
+	protected final Properties mParameters;
+	protected final ConfigurationFileLoadTiming mTiming;
+
+
+	protected LocalConfigurationFile(Properties aParameters, ConfigurationFileLoadTiming aTiming)
+	{
+		mParameters = aParameters;
+		mTiming = aTiming;
+	}
+
+
+	/**
+	 * loads a local configuration file
+	 *
+	 * @param aConfigFileName the name of the configuration file
+	 *
+	 * @return the loaded file
+	 *
+	 * @throws ConfigurationException when the file does not exist or cannot be read
+	 */
+	public static LocalConfigurationFile load(String aConfigFileName)
+	{
+		try
+		{
+			//check if the configuration file exists
+			File configurationFile = new File(aConfigFileName);
+			if (!configurationFile.exists())
+			{
+				String errMsg = "Configuarion file " + aConfigFileName + " does not exist. if you intended to specify multiple configuration files, make sure they are separated by ';' character (not ',')";
+				System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
+				sLogger.fatal(errMsg);
+				throw new ConfigurationException(errMsg);
+			}
+			else
+			{
+				String msg = "ConfigurationManager: loading configuration file: " + aConfigFileName;
+				System.out.println(msg); //write to the system output stream, just in case the logger isn't available
+				sLogger.debug(msg);
+			}
+			
+			
+			//the file is read with a single bulk read, and then parsed from memory
+			long startTime = System.nanoTime();
+			byte[] content = Files.readAllBytes(configurationFile.toPath());
+			long readTime = System.nanoTime();
+			
+			//as in Java 1.5, properties file can only be loaded nativley in ISO 8859-1 encoding
+			//we try to "override" this by using our proprietary method inside PropertiesUtils
+			//if it fails, then we try to use the native Properties.load
+			Properties fileParameters = new Properties();
+			try
+			{
+				fileParameters = PropertiesUtils.loadProperties(content, "UTF-8");
+			}
+			catch (Exception e)
+			{
+				sLogger.error("error loading configuration properties file in UTF-8. trying native Properties load...", e);
+				fileParameters.load(new ByteArrayInputStream(content));
+			}
+			long parseTime = System.nanoTime();
+			
+			ConfigurationFileLoadTiming timing = new ConfigurationFileLoadTiming(aConfigFileName, content.length, readTime - startTime, parseTime - readTime, System.currentTimeMillis());
+			return new LocalConfigurationFile(fileParameters, timing);
+		}
+		catch (ConfigurationException ce)
+		{
+			throw ce;
+		}
+		catch(NoSuchFileException nsfe)
+		{
+			String errMsg = "Configuarion file " + aConfigFileName + " does not exist.";
+			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
+			sLogger.fatal(errMsg, nsfe);
+			throw new ConfigurationException(errMsg);
+		}
+		catch(IOException ioe)
+		{
+			String errMsg = "could not read configuration file " + aConfigFileName + ".";
+			System.err.println(errMsg); //write to the system error stream, just in case the logger isn't available
+			sLogger.fatal(errMsg, ioe);
+			throw new ConfigurationException(errMsg);
+		}
+	}
+
+
+	/**
+	 * @return the parameters of the file
+	 */
+	public Properties getParameters()
+	{
+		return mParameters;
+	}
+
+
+	/**
+	 * @return the timing of the load of the file
+	 */
+	public ConfigurationFileLoadTiming getTiming()
+	{
+		return mTiming;
+	}
+}
@@ -0,0 +1,275 @@
+package com.tinyj.infra.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.tinyj.infra.exception.ConfigurationException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * watches the local configuration files in the background and reloads the files that changed.
+ *
+ * the watcher registers the directories of the files with a <i>java.nio.file.WatchService</i>.
+ * when a file event arrives, the watcher waits for the debounce period to pass without any
+ * further events (so rapid successive edits cause a single reload), and then checks the content hash
+ * of every file that had an event, and reloads only the files whose content actually changed.
+ * the modification time is not relied on, since its granularity may hide an edit made right after the
+ * previous one.
+ * the new configuration is published as a new snapshot, so readers are never blocked.
+ *
+ * the watcher is started by the ConfigurationManager when the local parameter
+ * CONFIG_WATCH_LOCAL_FILES is set to true, or explicitly by calling
+ * <i>ConfigurationManager.startLocalConfigurationWatcher()</i>.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class LocalConfigurationWatcher implements Runnable
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(LocalConfigurationWatcher.class);
+
+	//the default time to wait after the last file event before reloading
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+	protected final long mDebounceMillis;
+	protected final WatchService mWatchService;
+
+	//the watched files names, by their directory, and the configuration file name of each watched file
+	protected final Map<Path, Set<Path>> mWatchedFilesByDirectory = new HashMap<Path, Set<Path>>();
+	protected final Map<Path, String> mConfigFileNames = new HashMap<Path, String>();
+
+	//the content hash of each file when it was last loaded
+	protected final Map<Path, Long> mContentHashes = new HashMap<Path, Long>();
+
+	//the files that had events since the last check. accessed only by the watcher thread
+	protected final Set<Path> mPendingFiles = new HashSet<Path>();
+
+	protected volatile boolean mRunning;
+	protected Thread mThread;
+
+
+	/**
+	 * creates a watcher for the given configuration files
+	 *
+	 * @param aConfigFileNames the configuration files to watch
+	 * @param aDebounceMillis the time to wait after the last file event before reloading
+	 *
+	 * @throws IOException when the files cannot be registered for watching
+	 */
+	public LocalConfigurationWatcher(String[] aConfigFileNames, long aDebounceMillis)
+		throws IOException
+	{
+		mDebounceMillis = aDebounceMillis;
+		mWatchService = FileSystems.getDefault().newWatchService();
+
+		for (String configFileName:aConfigFileNames)
+		{
+			Path file = Paths.get(configFileName).toAbsolutePath().normalize();
+			Path directory = file.getParent();
+
+			Set<Path> directoryFiles = mWatchedFilesByDirectory.get(directory);
+			if (directoryFiles == null)
+			{
+				directoryFiles = new HashSet<Path>();
+				mWatchedFilesByDirectory.put(directory, directoryFiles);
+				//editors that save by replacing the file create it again, so we watch for creations too
+				directory.register(mWatchService, ENTRY_CREATE, ENTRY_MODIFY);
+			}
+
+			directoryFiles.add(file.getFileName());
+			mConfigFileNames.put(file, configFileName);
+			mContentHashes.put(file, readContentHash(file));
+		}
+	}
+
+
+	/**
+	 * starts watching in a background daemon thread
+	 */
+	public synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+
+		mRunning = true;
+		mThread = new Thread(this, "LocalConfigurationWatcher");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+
+	/**
+	 * stops watching
+	 */
+	public synchronized void stop()
+	{
+		mRunning = false;
+		try
+		{
+			mWatchService.close();
+		}
+		catch (IOException ioe)
+		{
+			sLogger.warn("Error closing the watch service.", ioe);
+		}
+	}
+
+
+	public void run()
+	{
+		//the time when the pending reload should be done, or 0 when there are no pending events
+		long reloadDeadline = 0;
+
+		try
+		{
+			while (mRunning)
+			{
+				WatchKey key;
+				if (reloadDeadline == 0)
+				{
+					key = mWatchService.take();
+				}
+				else
+				{
+					long timeToWait = reloadDeadline - System.currentTimeMillis();
+					key = timeToWait > 0 ? mWatchService.poll(timeToWait, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if (key != null)
+				{
+					if (hasWatchedFileEvent(key))
+					{
+						//a new event postpones the reload, so successive edits cause a single reload
+						reloadDeadline = System.currentTimeMillis() + mDebounceMillis;
+					}
+					key.reset();
+				}
+				else if (reloadDeadline != 0)
+				{
+					reloadDeadline = 0;
+					reloadChangedFiles();
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ClosedWatchServiceException cwse)
+		{
+			//the watcher was stopped
+		}
+
+		sLogger.debug("LocalConfigurationWatcher stopped.");
+	}
+
+
+	//checks whether the events of the given key refer to one of the watched files, and adds those files to the pending files.
+	//when events were lost (an overflow), all the files of the directory are pending
+	protected boolean hasWatchedFileEvent(WatchKey aKey)
+	{
+		Path directory = (Path)aKey.watchable();
+		Set<Path> directoryFiles = mWatchedFilesByDirectory.get(directory);
+		boolean found = false;
+
+		for (WatchEvent<?> event:aKey.pollEvents())
+		{
+			if (directoryFiles == null)
+			{
+				continue;
+			}
+
+			if (event.kind() == OVERFLOW)
+			{
+				for (Path fileName:directoryFiles)
+				{
+					mPendingFiles.add(directory.resolve(fileName));
+				}
+				found = true;
+			}
+			else if (directoryFiles.contains(event.context()))
+			{
+				mPendingFiles.add(directory.resolve((Path)event.context()));
+				found = true;
+			}
+		}
+
+		return found;
+	}
+
+
+	//reloads the pending files whose content hash changed
+	protected void reloadChangedFiles()
+	{
+		List<String> changedConfigFileNames = new ArrayList<String>();
+		Map<Path, Long> changedHashes = new HashMap<Path, Long>();
+
+		for (Path file:mPendingFiles)
+		{
+			try
+			{
+				long contentHash = readContentHash(file);
+				if (contentHash != mContentHashes.get(file))
+				{
+					changedConfigFileNames.add(mConfigFileNames.get(file));
+					changedHashes.put(file, contentHash);
+				}
+			}
+			catch (IOException ioe)
+			{
+				//the file may be in the middle of being replaced. it will be checked on the next event
+				sLogger.warn("Could not check configuration file " + file + " for changes.", ioe);
+			}
+		}
+		mPendingFiles.clear();
+
+		if (changedConfigFileNames.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			sLogger.info("Reloading changed local configuration files: " + changedConfigFileNames);
+			ConfigurationManager.reloadLocalFiles(changedConfigFileNames);
+			mContentHashes.putAll(changedHashes);
+		}
+		catch (ConfigurationException ce)
+		{
+			//the previous configuration stays published
+			sLogger.error("Could not reload the changed local configuration files. keeping the previous configuration.", ce);
+		}
+	}
+
+
+	protected static long readContentHash(Path aFile)
+		throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(aFile));
+		return crc.getValue();
+	}
+}
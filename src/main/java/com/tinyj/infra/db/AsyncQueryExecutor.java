@@ -0,0 +1,274 @@
+package com.tinyj.infra.db;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tinyj.infra.exception.DBConnectionException;
+import com.tinyj.infra.exception.DBQueryException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * an asynchronous facade of a DBConnectionManager. the queries and updates run in the background
+ * and their results are returned as CompletableFutures, so the calling threads never wait for the DB.
+ *
+ * when the JVM supports virtual threads (Java 21 and above), every call runs in its own virtual thread,
+ * so thousands of pending calls cost only their (small) virtual threads. otherwise the calls run in a
+ * fixed pool of daemon platform threads, as large as the maximal concurrency, and the pending calls wait
+ * in its queue.
+ * in both cases, a semaphore sized to the connection pool limits the number of calls that hold a connection
+ * at the same time, so the pending calls never wait for a connection inside the pool.
+ *
+ * the per-call timeout is set as the query timeout of the statement (see <i>Statement.setQueryTimeout()</i>).
+ *
+ * @author asaf.peeri
+ *
+ */
+public class AsyncQueryExecutor
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(AsyncQueryExecutor.class);
+
+	protected final DBConnectionManager mConManager;
+	protected final int mMaxConcurrency;
+	protected final Semaphore mConcurrencyPermits;
+	protected final AtomicInteger mWaitingCalls = new AtomicInteger();
+	protected final ExecutorService mExecutor;
+	protected final boolean mVirtualThreads;
+
+
+	/**
+	 * creates an asynchronous executor
+	 *
+	 * @param aConManager the connection manager to run the calls with
+	 * @param aMaxConcurrency the maximal number of calls that run at the same time (usually the size of the connection pool)
+	 */
+	public AsyncQueryExecutor(DBConnectionManager aConManager, int aMaxConcurrency)
+	{
+		mConManager = aConManager;
+		mMaxConcurrency = aMaxConcurrency;
+		mConcurrencyPermits = new Semaphore(aMaxConcurrency, true);
+
+		ExecutorService virtualThreadsExecutor = createVirtualThreadsExecutor();
+		mVirtualThreads = virtualThreadsExecutor != null;
+		mExecutor = mVirtualThreads ? virtualThreadsExecutor : createPlatformThreadsExecutor(aMaxConcurrency);
+		sLogger.debug("AsyncQueryExecutor created with " + (mVirtualThreads ? "virtual" : "platform") +
+				" threads and a maximal concurrency of " + aMaxConcurrency + ".");
+	}
+
+
+	//the virtual threads API is called by reflection, so the library still compiles and runs on older JVMs
+	protected static ExecutorService createVirtualThreadsExecutor()
+	{
+		try
+		{
+			Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factoryMethod.invoke(null);
+		}
+		catch (Exception e)
+		{
+			//virtual threads are not supported (or not enabled) by this JVM
+			return null;
+		}
+	}
+
+
+	protected static ExecutorService createPlatformThreadsExecutor(int aThreads)
+	{
+		final AtomicInteger threadsCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(aThreads, new ThreadFactory()
+		{
+			public Thread newThread(Runnable aRunnable)
+			{
+				Thread thread = new Thread(aRunnable, "AsyncQueryExecutor-" + threadsCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * runs a query in the background
+	 *
+	 * @param aSql the SQL of the query
+	 * @param aParams the parameters of the query, or null if there are no parameters
+	 * @param aTimeoutSeconds the query timeout. 0 for no limit
+	 * @param aRowMapper maps each row to an element of the result
+	 *
+	 * @return a future of the mapped rows. completed exceptionally with a DBConnectionException or a DBQueryException on failure
+	 */
+	public <T> CompletableFuture<List<T>> queryAsync(final String aSql, final Object[] aParams, final int aTimeoutSeconds, final RowMapper<T> aRowMapper)
+	{
+		return submit(new Work<List<T>>()
+		{
+			public List<T> run()
+				throws DBConnectionException
+			{
+				return mConManager.queryForList(aSql, aParams, aTimeoutSeconds, aRowMapper);
+			}
+		});
+	}
+
+
+	/**
+	 * runs an update in the background
+	 *
+	 * @param aSql the SQL of the statement
+	 * @param aParams the parameters of the statement, or null if there are no parameters
+	 * @param aTimeoutSeconds the query timeout. 0 for no limit
+	 *
+	 * @return a future of the number of updated rows. completed exceptionally with a DBConnectionException or a DBQueryException on failure
+	 */
+	public CompletableFuture<Integer> updateAsync(final String aSql, final Object[] aParams, final int aTimeoutSeconds)
+	{
+		return submit(new Work<Integer>()
+		{
+			public Integer run()
+				throws DBConnectionException
+			{
+				return mConManager.update(aSql, aParams, aTimeoutSeconds);
+			}
+		});
+	}
+
+
+	/**
+	 * does a work with a connection in the background. the connection is closed when the work is done
+	 *
+	 * @param aCallback the work
+	 *
+	 * @return a future of the result of the work. completed exceptionally with a DBConnectionException or a DBQueryException on failure
+	 */
+	public <T> CompletableFuture<T> executeAsync(final ConnectionCallback<T> aCallback)
+	{
+		return submit(new Work<T>()
+		{
+			public T run()
+				throws DBConnectionException
+			{
+				Connection con = mConManager.createDBConnection();
+				try
+				{
+					return aCallback.doInConnection(con);
+				}
+				catch (SQLException sqle)
+				{
+					throw new DBQueryException("Could not execute an asynchronous DB work.", sqle);
+				}
+				finally
+				{
+					mConManager.closeResources(con, null, null);
+				}
+			}
+		});
+	}
+
+
+	protected <T> CompletableFuture<T> submit(final Work<T> aWork)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		mWaitingCalls.incrementAndGet();
+		try
+		{
+			mExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						mConcurrencyPermits.acquire();
+					}
+					catch (InterruptedException ie)
+					{
+						mWaitingCalls.decrementAndGet();
+						future.completeExceptionally(ie);
+						return;
+					}
+					mWaitingCalls.decrementAndGet();
+
+					try
+					{
+						future.complete(aWork.run());
+					}
+					catch (Throwable t)
+					{
+						future.completeExceptionally(t);
+					}
+					finally
+					{
+						mConcurrencyPermits.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ree)
+		{
+			//the executor was closed
+			mWaitingCalls.decrementAndGet();
+			future.completeExceptionally(ree);
+		}
+
+		return future;
+	}
+
+
+	/**
+	 * @return true if the calls run in virtual threads
+	 */
+	public boolean isVirtualThreads()
+	{
+		return mVirtualThreads;
+	}
+
+
+	/**
+	 * @return the number of calls that hold a connection right now
+	 */
+	public int getRunningCalls()
+	{
+		return mMaxConcurrency - mConcurrencyPermits.availablePermits();
+	}
+
+
+	/**
+	 * @return the number of calls waiting to run
+	 */
+	public int getWaitingCalls()
+	{
+		return mWaitingCalls.get();
+	}
+
+
+	public int getMaxConcurrency()
+	{
+		return mMaxConcurrency;
+	}
+
+
+	/**
+	 * stops accepting calls. the calls that were already submitted still run
+	 */
+	public void close()
+	{
+		mExecutor.shutdown();
+	}
+
+
+
+	/////////Work interface ////////////////////
+	protected static interface Work<T>
+	{
+		public T run()
+			throws DBConnectionException;
+	}
+}
@@ -0,0 +1,19 @@
+package com.tinyj.infra.db;
+
+
+/**
+ * gets the progress of a BatchWriter, after every executed batch
+ * 
+ * @author asaf.peeri
+ *
+ */
+public interface BatchListener
+{
+	/**
+	 * called after a batch was executed (and committed, if it was the last batch of a commit)
+	 * 
+	 * @param aBatch the report of the executed batch
+	 * @param aTotal the report of all the batches written so far
+	 */
+	public void batchExecuted(BatchWriter.BatchReport aBatch, BatchWriter.BatchReport aTotal);
+}
@@ -0,0 +1,381 @@
+package com.tinyj.infra.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import com.tinyj.infra.exception.DBConnectionException;
+import com.tinyj.infra.exception.DBQueryException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * writes a large number of rows with a single insert/update/merge statement, using JDBC batches.
+ *
+ * the rows are read one at a time from an Iterable, an Iterator or a Stream, bound to the statement and added
+ * to the batch, so only the rows of the current batch are held (by the driver) and the dataset is never held in memory.
+ * every <i>batch size</i> rows the batch is executed, and every <i>commit interval</i> batches the transaction is committed.
+ * when a batch fails, the uncommitted batches are rolled back, and the rows of the committed batches stay written.
+ * every commit invalidates the cached query results of the tables of the statement (see DBConnectionManager.enableResultCache()).
+ *
+ * the progress of every batch (its rows, time and throughput, and the totals so far) is logged in debug and
+ * reported to the BatchListener, if set.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class BatchWriter
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(BatchWriter.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_COMMIT_INTERVAL_BATCHES = 10;
+
+	protected final DBConnectionManager mConManager;
+	protected final String mSql;
+
+	//the number of rows per batch
+	protected int mBatchSize = DEFAULT_BATCH_SIZE;
+
+	//the number of batches per commit. 0 to commit once, after the last batch
+	protected int mCommitIntervalBatches = DEFAULT_COMMIT_INTERVAL_BATCHES;
+
+	//the maximal time for each batch to run. 0 for no limit
+	protected int mQueryTimeoutSeconds;
+
+	protected BatchListener mListener;
+
+
+	/**
+	 * creates a batch writer
+	 *
+	 * @param aConManager the connection manager to write with
+	 * @param aSql the SQL of the statement executed for every row
+	 */
+	public BatchWriter(DBConnectionManager aConManager, String aSql)
+	{
+		mConManager = aConManager;
+		mSql = aSql;
+	}
+
+
+	/**
+	 * writes the given rows
+	 *
+	 * @param aRows the rows
+	 * @param aBinder binds each row to the parameters of the statement
+	 *
+	 * @return the report of all the written batches
+	 *
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when a row cannot be bound or a batch fails. the committed batches stay written
+	 */
+	public <T> BatchReport write(Iterable<T> aRows, RowBinder<T> aBinder)
+		throws DBConnectionException
+	{
+		return write(aRows.iterator(), aBinder);
+	}
+
+
+	/**
+	 * writes the rows of the given stream. the stream is consumed but not closed
+	 *
+	 * @param aRows the rows
+	 * @param aBinder binds each row to the parameters of the statement
+	 *
+	 * @return the report of all the written batches
+	 *
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when a row cannot be bound or a batch fails. the committed batches stay written
+	 */
+	public <T> BatchReport write(Stream<T> aRows, RowBinder<T> aBinder)
+		throws DBConnectionException
+	{
+		return write(aRows.iterator(), aBinder);
+	}
+
+
+	/**
+	 * writes the given rows of parameters. the parameters of each row are set with <i>setObject()</i>
+	 *
+	 * @param aRows the parameters of the rows
+	 *
+	 * @return the report of all the written batches
+	 *
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when a row cannot be bound or a batch fails. the committed batches stay written
+	 */
+	public BatchReport writeParams(Iterable<Object[]> aRows)
+		throws DBConnectionException
+	{
+		return write(aRows.iterator(), new RowBinder<Object[]>()
+		{
+			public void bindRow(PreparedStatement aPs, Object[] aRow)
+				throws SQLException
+			{
+				DBConnectionManager.setParameters(aPs, aRow);
+			}
+		});
+	}
+
+
+	/**
+	 * writes the rows of the given iterator
+	 *
+	 * @param aRows the rows
+	 * @param aBinder binds each row to the parameters of the statement
+	 *
+	 * @return the report of all the written batches
+	 *
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when a row cannot be bound or a batch fails. the committed batches stay written
+	 */
+	public <T> BatchReport write(Iterator<T> aRows, RowBinder<T> aBinder)
+		throws DBConnectionException
+	{
+		Connection con = mConManager.createDBConnection();
+		PreparedStatement ps = null;
+		boolean restoreAutoCommit = false;
+
+		long start = System.nanoTime();
+		BatchReport total = new BatchReport(0, 0, 0, 0, 0);
+		int batchesSinceCommit = 0;
+		try
+		{
+			if (con.getAutoCommit())
+			{
+				con.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+
+			ps = con.prepareStatement(mSql);
+			if (mQueryTimeoutSeconds > 0)
+			{
+				ps.setQueryTimeout(mQueryTimeoutSeconds);
+			}
+
+			int batchSize = Math.max(mBatchSize, 1);
+			int batchRows = 0;
+			long batchStart = System.nanoTime();
+			while (aRows.hasNext())
+			{
+				aBinder.bindRow(ps, aRows.next());
+				ps.addBatch();
+
+				if (++batchRows == batchSize || !aRows.hasNext())
+				{
+					int updatedRows = countUpdatedRows(ps.executeBatch());
+
+					boolean commit = !aRows.hasNext() || (mCommitIntervalBatches > 0 && ++batchesSinceCommit >= mCommitIntervalBatches);
+					if (commit)
+					{
+						con.commit();
+						batchesSinceCommit = 0;
+						mConManager.writeExecuted(mSql);
+					}
+
+					long now = System.nanoTime();
+					BatchReport batch = new BatchReport(1, batchRows, updatedRows, commit ? batchRows : 0, now - batchStart);
+					total = new BatchReport(total.mBatches + 1, total.mRows + batchRows, total.mUpdatedRows + updatedRows,
+							commit ? total.mRows + batchRows : total.mCommittedRows, now - start);
+					batchExecuted(batch, total);
+
+					batchRows = 0;
+					batchStart = now;
+				}
+			}
+
+			sLogger.debug("BatchWriter.write(): " + total + " of " + mSql);
+			return total;
+		}
+		catch (SQLException sqle)
+		{
+			rollback(con);
+			String errMsg = "Could not write batch " + (total.mBatches + 1) + " of " + mSql + ". " + total.mCommittedRows + " rows were committed.";
+			sLogger.error(errMsg, sqle);
+			throw new DBQueryException(errMsg, sqle);
+		}
+		catch (RuntimeException re)
+		{
+			//thrown by the rows iterator or the binder
+			rollback(con);
+			throw re;
+		}
+		finally
+		{
+			if (restoreAutoCommit)
+			{
+				try
+				{
+					con.setAutoCommit(true);
+				}
+				catch (SQLException sqle)
+				{
+					sLogger.error("Could not restore the auto commit of the connection.", sqle);
+				}
+			}
+			mConManager.closeResources(con, ps, null);
+		}
+	}
+
+
+	protected void batchExecuted(BatchReport aBatch, BatchReport aTotal)
+	{
+		if (sLogger.isDebugEnabled())
+		{
+			sLogger.debug("BatchWriter: batch " + aTotal.mBatches + ": " + aBatch + ". total: " + aTotal);
+		}
+
+		if (mListener != null)
+		{
+			mListener.batchExecuted(aBatch, aTotal);
+		}
+	}
+
+
+	protected static int countUpdatedRows(int[] aUpdateCounts)
+	{
+		int updatedRows = 0;
+		for (int updateCount:aUpdateCounts)
+		{
+			//the drivers that do not know the count of a row return SUCCESS_NO_INFO
+			if (updateCount != Statement.SUCCESS_NO_INFO && updateCount > 0)
+			{
+				updatedRows += updateCount;
+			}
+		}
+
+		return updatedRows;
+	}
+
+
+	protected static void rollback(Connection aCon)
+	{
+		try
+		{
+			aCon.rollback();
+		}
+		catch (SQLException sqle)
+		{
+			sLogger.error("Could not roll back the uncommitted batches.", sqle);
+		}
+	}
+
+
+	public int getBatchSize()
+	{
+		return mBatchSize;
+	}
+
+
+	public void setBatchSize(int aBatchSize)
+	{
+		mBatchSize = aBatchSize;
+	}
+
+
+	public int getCommitIntervalBatches()
+	{
+		return mCommitIntervalBatches;
+	}
+
+
+	public void setCommitIntervalBatches(int aCommitIntervalBatches)
+	{
+		mCommitIntervalBatches = aCommitIntervalBatches;
+	}
+
+
+	public int getQueryTimeoutSeconds()
+	{
+		return mQueryTimeoutSeconds;
+	}
+
+
+	public void setQueryTimeoutSeconds(int aQueryTimeoutSeconds)
+	{
+		mQueryTimeoutSeconds = aQueryTimeoutSeconds;
+	}
+
+
+	public BatchListener getListener()
+	{
+		return mListener;
+	}
+
+
+	public void setListener(BatchListener aListener)
+	{
+		mListener = aListener;
+	}
+
+
+
+	/////////BatchReport class ////////////////////
+	public static class BatchReport
+	{
+		protected final int mBatches;
+		protected final long mRows;
+		protected final long mUpdatedRows;
+		protected final long mCommittedRows;
+		protected final long mNanos;
+
+		public BatchReport(int aBatches, long aRows, long aUpdatedRows, long aCommittedRows, long aNanos)
+		{
+			mBatches = aBatches;
+			mRows = aRows;
+			mUpdatedRows = aUpdatedRows;
+			mCommittedRows = aCommittedRows;
+			mNanos = aNanos;
+		}
+
+		public int getBatches()
+		{
+			return mBatches;
+		}
+
+		/**
+		 * @return the number of rows added to the batches
+		 */
+		public long getRows()
+		{
+			return mRows;
+		}
+
+		/**
+		 * @return the sum of the update counts returned by the batches (which do not include the rows whose count the driver does not know)
+		 */
+		public long getUpdatedRows()
+		{
+			return mUpdatedRows;
+		}
+
+		public long getCommittedRows()
+		{
+			return mCommittedRows;
+		}
+
+		/**
+		 * @return the time of binding, executing and committing the batches
+		 */
+		public long getNanos()
+		{
+			return mNanos;
+		}
+
+		public double getRowsPerSecond()
+		{
+			return mNanos == 0 ? 0 : mRows * 1e9 / mNanos;
+		}
+
+		public String toString()
+		{
+			return mBatches + " batches, " + mRows + " rows (" + mUpdatedRows + " updated, " + mCommittedRows + " committed) in " +
+					mNanos / 1000000 + " ms, " + String.format("%.0f", getRowsPerSecond()) + " rows/s";
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.tinyj.infra.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+
+/**
+ * a work done with a DB connection (see AsyncQueryExecutor.executeAsync()).
+ * the connection is closed after the work is done, so it should not be kept.
+ * 
+ * @author asaf.peeri
+ *
+ * @param <T> the type of the result of the work
+ */
+public interface ConnectionCallback<T>
+{
+	/**
+	 * does the work with the given connection
+	 * 
+	 * @param aCon the connection
+	 * 
+	 * @return the result of the work
+	 * 
+	 * @throws SQLException when the work fails
+	 */
+	public T doInConnection(Connection aCon)
+		throws SQLException;
+}
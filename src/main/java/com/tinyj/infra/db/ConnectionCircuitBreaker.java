@@ -0,0 +1,345 @@
+package com.tinyj.infra.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * a circuit breaker of the connection acquisitions, which stops the request threads from hammering a DB that is known to be down.
+ * it is used by a DBConnectionManager only when set (see DBConnectionManager.setCircuitBreaker()).
+ *
+ * the breaker starts CLOSED, and every acquisition is allowed. after <i>failure threshold</i> consecutive failed acquisitions
+ * it becomes OPEN, and every acquisition fails immediately. after <i>open duration</i> the first acquisition that comes
+ * moves it to HALF_OPEN and is let through as a probe, while the others still fail immediately. when the probe succeeds
+ * the breaker is CLOSED again, and when it fails the breaker is OPEN for another <i>open duration</i>.
+ * a probe that did not report in <i>open duration</i> is considered lost, and the next acquisition becomes the probe.
+ *
+ * the state and the time it was entered are swapped together in a single compare-and-set, so exactly one thread wins
+ * every transition. the transitions are counted, logged and kept in a buffer of the last transitions.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConnectionCircuitBreaker
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(ConnectionCircuitBreaker.class);
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION_MILLIS = 10 * 1000L;
+	public static final int DEFAULT_TRANSITIONS_BUFFER_SIZE = 32;
+
+	public static enum State {CLOSED, OPEN, HALF_OPEN}
+
+	protected final int mFailureThreshold;
+	protected final long mOpenDurationNanos;
+
+	//the current state, and the time it was entered
+	protected final AtomicReference<Status> mStatus = new AtomicReference<Status>(new Status(State.CLOSED, System.nanoTime()));
+
+	//the consecutive failures while CLOSED
+	protected final AtomicInteger mConsecutiveFailures = new AtomicInteger();
+
+	//the acquisitions that failed immediately because the breaker was not CLOSED
+	protected final LongAdder mRejections = new LongAdder();
+
+	//the number of transitions from each state to each state, indexed by from.ordinal() * states + to.ordinal()
+	protected final AtomicLongArray mTransitionCounts = new AtomicLongArray(State.values().length * State.values().length);
+
+	//a ring buffer of the last transitions
+	protected final AtomicReferenceArray<Transition> mTransitions;
+	protected final AtomicLong mTransitionsCount = new AtomicLong();
+
+
+	/**
+	 * creates a circuit breaker with the default settings
+	 */
+	public ConnectionCircuitBreaker()
+	{
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MILLIS, DEFAULT_TRANSITIONS_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * creates a circuit breaker
+	 *
+	 * @param aFailureThreshold the number of consecutive failures that opens the breaker
+	 * @param aOpenDurationMillis the time the breaker stays open before letting a probe through
+	 * @param aTransitionsBufferSize the number of last transitions kept
+	 */
+	public ConnectionCircuitBreaker(int aFailureThreshold, long aOpenDurationMillis, int aTransitionsBufferSize)
+	{
+		if (aFailureThreshold < 1)
+		{
+			throw new IllegalArgumentException("The failure threshold must be positive: " + aFailureThreshold);
+		}
+
+		mFailureThreshold = aFailureThreshold;
+		mOpenDurationNanos = aOpenDurationMillis * 1000000L;
+		mTransitions = new AtomicReferenceArray<Transition>(Math.max(aTransitionsBufferSize, 1));
+	}
+
+
+	/**
+	 * checks whether an acquisition may try to connect. when the breaker is OPEN and the open duration passed,
+	 * the caller becomes the single probe of the HALF_OPEN state
+	 *
+	 * @return true if the acquisition may try to connect, false if it should fail immediately
+	 */
+	public boolean allowAcquisition()
+	{
+		Status status = mStatus.get();
+		if (status.mState == State.CLOSED)
+		{
+			return true;
+		}
+
+		long now = System.nanoTime();
+		if (now - status.mSinceNanos >= mOpenDurationNanos && transition(status, State.HALF_OPEN, now))
+		{
+			return true;
+		}
+
+		mRejections.increment();
+		return false;
+	}
+
+
+	/**
+	 * records a successful acquisition. a successful probe closes the breaker
+	 */
+	public void acquisitionSucceeded()
+	{
+		Status status = mStatus.get();
+		if (status.mState == State.HALF_OPEN)
+		{
+			transition(status, State.CLOSED, System.nanoTime());
+		}
+		else if (mConsecutiveFailures.get() != 0)
+		{
+			mConsecutiveFailures.set(0);
+		}
+	}
+
+
+	/**
+	 * records a failed acquisition. a failed probe, or the last of <i>failure threshold</i> consecutive failures, opens the breaker
+	 */
+	public void acquisitionFailed()
+	{
+		Status status = mStatus.get();
+		if (status.mState == State.HALF_OPEN)
+		{
+			transition(status, State.OPEN, System.nanoTime());
+		}
+		else if (status.mState == State.CLOSED && mConsecutiveFailures.incrementAndGet() >= mFailureThreshold)
+		{
+			transition(status, State.OPEN, System.nanoTime());
+		}
+	}
+
+
+	protected boolean transition(Status aFrom, State aTo, long aNow)
+	{
+		if (!mStatus.compareAndSet(aFrom, new Status(aTo, aNow)))
+		{
+			//another thread made a transition first
+			return false;
+		}
+
+		if (aTo == State.CLOSED || aTo == State.OPEN)
+		{
+			mConsecutiveFailures.set(0);
+		}
+
+		mTransitionCounts.incrementAndGet(aFrom.mState.ordinal() * State.values().length + aTo.ordinal());
+		long index = mTransitionsCount.getAndIncrement();
+		mTransitions.set((int)(index % mTransitions.length()), new Transition(aFrom.mState, aTo, Thread.currentThread().getName()));
+
+		String msg = "Connection circuit breaker moved from " + aFrom.mState + " to " + aTo + ".";
+		if (aTo == State.OPEN)
+		{
+			sLogger.warn(msg + " connection acquisitions fail immediately for the next " + mOpenDurationNanos / 1000000 + " ms.");
+		}
+		else
+		{
+			sLogger.info(msg);
+		}
+		return true;
+	}
+
+
+	public State getState()
+	{
+		return mStatus.get().mState;
+	}
+
+
+	/**
+	 * @return the time since the last transition, in milliseconds
+	 */
+	public long getMillisInState()
+	{
+		return (System.nanoTime() - mStatus.get().mSinceNanos) / 1000000;
+	}
+
+
+	/**
+	 * @return the number of acquisitions that failed immediately because the breaker was not closed
+	 */
+	public long getRejections()
+	{
+		return mRejections.sum();
+	}
+
+
+	public int getConsecutiveFailures()
+	{
+		return mConsecutiveFailures.get();
+	}
+
+
+	/**
+	 * returns the number of transitions between the given states
+	 *
+	 * @param aFrom the state before the transition
+	 * @param aTo the state after the transition
+	 *
+	 * @return the number of transitions
+	 */
+	public long getTransitions(State aFrom, State aTo)
+	{
+		return mTransitionCounts.get(aFrom.ordinal() * State.values().length + aTo.ordinal());
+	}
+
+
+	/**
+	 * @return the number of times the breaker opened
+	 */
+	public long getOpenings()
+	{
+		return getTransitions(State.CLOSED, State.OPEN) + getTransitions(State.HALF_OPEN, State.OPEN);
+	}
+
+
+	/**
+	 * returns the last transitions kept in the buffer
+	 *
+	 * @return the transitions, the latest first
+	 */
+	public List<Transition> getLastTransitions()
+	{
+		List<Transition> transitions = new ArrayList<Transition>(mTransitions.length());
+		long count = mTransitionsCount.get();
+		for (long i=count - 1 ; i>=0 && i>=count - mTransitions.length() ; --i)
+		{
+			Transition transition = mTransitions.get((int)(i % mTransitions.length()));
+			if (transition != null)
+			{
+				transitions.add(transition);
+			}
+		}
+
+		return transitions;
+	}
+
+
+	public int getFailureThreshold()
+	{
+		return mFailureThreshold;
+	}
+
+
+	public long getOpenDurationMillis()
+	{
+		return mOpenDurationNanos / 1000000;
+	}
+
+
+	public int getTransitionsBufferSize()
+	{
+		return mTransitions.length();
+	}
+
+
+	public String toString()
+	{
+		return "ConnectionCircuitBreaker [state=" + getState() + " for " + getMillisInState() + " ms, consecutiveFailures=" +
+				getConsecutiveFailures() + ", rejections=" + getRejections() + ", openings=" + getOpenings() +
+				", probesFailed=" + getTransitions(State.HALF_OPEN, State.OPEN) +
+				", closings=" + getTransitions(State.HALF_OPEN, State.CLOSED) + "]";
+	}
+
+
+
+	/////////Status class ////////////////////
+	protected static class Status
+	{
+		protected final State mState;
+		protected final long mSinceNanos;
+
+		protected Status(State aState, long aSinceNanos)
+		{
+			mState = aState;
+			mSinceNanos = aSinceNanos;
+		}
+	}
+
+
+
+	/////////Transition class ////////////////////
+	public static class Transition
+	{
+		protected final State mFrom;
+		protected final State mTo;
+		protected final String mThreadName;
+		protected final long mTime;
+
+		public Transition(State aFrom, State aTo, String aThreadName)
+		{
+			mFrom = aFrom;
+			mTo = aTo;
+			mThreadName = aThreadName;
+			mTime = System.currentTimeMillis();
+		}
+
+		public State getFrom()
+		{
+			return mFrom;
+		}
+
+		public State getTo()
+		{
+			return mTo;
+		}
+
+		/**
+		 * @return the name of the thread whose acquisition caused the transition
+		 */
+		public String getThreadName()
+		{
+			return mThreadName;
+		}
+
+		/**
+		 * @return the time of the transition, in milliseconds
+		 */
+		public long getTime()
+		{
+			return mTime;
+		}
+
+		public String toString()
+		{
+			return mFrom + " -> " + mTo + " at " + mTime + " [" + mThreadName + "]";
+		}
+	}
+}
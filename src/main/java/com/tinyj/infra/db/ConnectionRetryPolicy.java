@@ -0,0 +1,102 @@
+package com.tinyj.infra.db;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * the settings of retrying a failed connection acquisition (see DBConnectionManager.setRetryPolicy(), which is not set by default).
+ * the defaults are used for every setting that is not set.
+ *
+ * the backoff before retry n (starting at 1) is drawn uniformly from [0, min(max backoff, initial backoff * multiplier^(n-1))]
+ * ("full jitter"), so the threads that failed together on a DB blip do not retry together.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConnectionRetryPolicy
+{
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+
+	//the maximal number of acquisition attempts, including the first one. 1 to disable the retries
+	protected int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	//the upper bound of the backoff before the first retry, and the cap of the upper bound of all the retries
+	protected long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	protected long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	//the growth of the backoff upper bound from a retry to the next
+	protected double mMultiplier = DEFAULT_MULTIPLIER;
+
+
+	/**
+	 * returns a random backoff before the given retry
+	 *
+	 * @param aRetry the retry number, starting at 1
+	 *
+	 * @return the time to sleep before the retry, in milliseconds
+	 */
+	public long getBackoffMillis(int aRetry)
+	{
+		double bound = mInitialBackoffMillis * Math.pow(mMultiplier, aRetry - 1);
+		long cappedBound = (long)Math.min(bound, mMaxBackoffMillis);
+		return cappedBound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cappedBound + 1);
+	}
+
+
+	public int getMaxAttempts()
+	{
+		return mMaxAttempts;
+	}
+
+
+	public void setMaxAttempts(int aMaxAttempts)
+	{
+		mMaxAttempts = aMaxAttempts;
+	}
+
+
+	public long getInitialBackoffMillis()
+	{
+		return mInitialBackoffMillis;
+	}
+
+
+	public void setInitialBackoffMillis(long aInitialBackoffMillis)
+	{
+		mInitialBackoffMillis = aInitialBackoffMillis;
+	}
+
+
+	public long getMaxBackoffMillis()
+	{
+		return mMaxBackoffMillis;
+	}
+
+
+	public void setMaxBackoffMillis(long aMaxBackoffMillis)
+	{
+		mMaxBackoffMillis = aMaxBackoffMillis;
+	}
+
+
+	public double getMultiplier()
+	{
+		return mMultiplier;
+	}
+
+
+	public void setMultiplier(double aMultiplier)
+	{
+		mMultiplier = aMultiplier;
+	}
+
+
+	public String toString()
+	{
+		return "ConnectionRetryPolicy [maxAttempts=" + mMaxAttempts + ", initialBackoffMillis=" + mInitialBackoffMillis +
+				", maxBackoffMillis=" + mMaxBackoffMillis + ", multiplier=" + mMultiplier + "]";
+	}
+}
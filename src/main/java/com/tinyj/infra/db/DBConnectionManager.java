@@ -6,13 +6,25 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import com.tinyj.infra.exception.DBCircuitOpenException;
 import com.tinyj.infra.exception.DBConnectionException;
+import com.tinyj.infra.exception.DBPoolExhaustedException;
+import com.tinyj.infra.exception.DBQueryException;
 import com.tinyj.infra.log.BaseLoggerWrapper;
 import com.tinyj.infra.log.Log4jWrapper;
 import com.tinyj.infra.lookup.LookUp;
@@ -37,6 +49,28 @@ public class DBConnectionManager
 	protected String mUsername;
 	protected String mPassword;
 	protected Driver mJDBCDriver;
+	protected Properties mConnectionProperties;
+	
+	//the pool of the JDBC connections. null when the JDBC connections are not pooled
+	protected JDBCConnectionPoolConfig mPoolConfig;
+	protected JDBCConnectionPool mPool;
+	
+	//the asynchronous facade, created on demand
+	protected AsyncQueryExecutor mAsyncExecutor;
+	
+	//the metrics of the connections. null when the metrics are not collected
+	protected volatile DBConnectionMetrics mMetrics;
+	
+	//the retries of the failed connection acquisitions, and the circuit breaker that fails them fast while the DB is down.
+	//null (the default) when disabled, so a failed acquisition fails once, without waiting
+	protected volatile ConnectionRetryPolicy mRetryPolicy;
+	protected volatile ConnectionCircuitBreaker mCircuitBreaker;
+	
+	//routes the read only connections to the replicas. null when there are no replicas
+	protected ReplicaRouter mReplicaRouter;
+	
+	//the cache of the results of queryForList(). null when the results are not cached
+	protected volatile QueryResultCache mResultCache;
 	
 	
 	
@@ -64,7 +98,8 @@ public class DBConnectionManager
 	
 	
 	/**
-	 * creates a DBConnectionManager to connect using pure JDBC
+	 * creates a DBConnectionManager to connect using pure JDBC. the connections are pooled
+	 * with the default pool settings (see JDBCConnectionPoolConfig)
 	 * 
 	 * @param aJdbcDriverName the FQN of the class of the driver 
 	 * @param aDBUrl the URL where the DB listens
@@ -76,18 +111,86 @@ public class DBConnectionManager
 	public DBConnectionManager(String aJdbcDriverName, String aDBUrl, String aUsername, String aPassword)
 		throws DBConnectionException
 	{
-		//TODO: use this constructor to make the connection manager use pure jdbc
+		this(aJdbcDriverName, aDBUrl, aUsername, aPassword, new JDBCConnectionPoolConfig());
+	}
+	
+	
+	
+	/**
+	 * creates a DBConnectionManager to connect using pure JDBC
+	 * 
+	 * @param aJdbcDriverName the FQN of the class of the driver 
+	 * @param aDBUrl the URL where the DB listens
+	 * @param aUsername the username to conenct with
+	 * @param aPassword the password to connect with
+	 * @param aPoolConfig the settings of the connection pool, or null to open a new connection on every
+	 * createDBConnection() and close it on closeResources()
+	 * 
+	 * @throws DBConnectionException when any exception occures
+	 */
+	public DBConnectionManager(String aJdbcDriverName, String aDBUrl, String aUsername, String aPassword, JDBCConnectionPoolConfig aPoolConfig)
+		throws DBConnectionException
+	{
 		mUseDataSource = false;	
 		mJdbcDriverName = aJdbcDriverName;
 		mDBUrl = aDBUrl;
 		mUsername = aUsername;
 		mPassword = aPassword;
+		mPoolConfig = aPoolConfig;
 		
 		initJDBCDriver();
 	}
 	
 	
 	
+	/**
+	 * creates a DBConnectionManager to connect to a primary DB and its replicas using pure JDBC. the connections
+	 * of the queries (and of createReadOnlyDBConnection()) are taken from the replicas, and all the other connections
+	 * from the primary (see ReplicaRouter). each replica has its own pool, with the given pool settings.
+	 * the acquisitions on a replica are not retried, since a failed replica is replaced by another one.
+	 * the metrics (see enableMetrics()) measure the connections of the replicas too, and the circuit breaker settings
+	 * (see setCircuitBreaker()) are applied to each replica with a breaker of its own.
+	 * 
+	 * @param aJdbcDriverName the FQN of the class of the driver 
+	 * @param aPrimaryDBUrl the URL where the primary DB listens
+	 * @param aReplicaDBUrls the URLs where the replicas listen
+	 * @param aUsername the username to conenct with (to the primary and the replicas)
+	 * @param aPassword the password to connect with (to the primary and the replicas)
+	 * @param aPoolConfig the settings of the connection pools, or null to open a new connection on every
+	 * createDBConnection() and close it on closeResources()
+	 * @param aSelection the selection of the replica for each read only connection
+	 * 
+	 * @throws DBConnectionException when any exception occures
+	 */
+	public DBConnectionManager(String aJdbcDriverName, String aPrimaryDBUrl, List<String> aReplicaDBUrls, String aUsername, String aPassword, 
+			JDBCConnectionPoolConfig aPoolConfig, ReplicaRouter.Selection aSelection)
+		throws DBConnectionException
+	{
+		this(aJdbcDriverName, aPrimaryDBUrl, aUsername, aPassword, aPoolConfig);
+		
+		List<DBConnectionManager> replicas = new ArrayList<DBConnectionManager>(aReplicaDBUrls.size());
+		try
+		{
+			for (String replicaDBUrl:aReplicaDBUrls)
+			{
+				replicas.add(new DBConnectionManager(aJdbcDriverName, replicaDBUrl, aUsername, aPassword, aPoolConfig));
+			}
+		}
+		catch (DBConnectionException dbce)
+		{
+			for (DBConnectionManager replica:replicas)
+			{
+				replica.close();
+			}
+			close();
+			throw dbce;
+		}
+		
+		mReplicaRouter = new ReplicaRouter(replicas, aSelection, ReplicaRouter.DEFAULT_UNHEALTHY_PERIOD_MILLIS);
+	}
+	
+	
+	
 	/**
 	 * initializes the data source
 	 * 
@@ -99,8 +202,8 @@ public class DBConnectionManager
 		sLogger.debug("initDataSource() started.");
 		try
 		{
-			InitialContext ctx = LookUp.getInstance().getInitialContext(mJndiContextFactory, mJndiProviderURL);
-			mDataSource = (javax.sql.DataSource) ctx.lookup(mJndiName);
+			//the data source is cached by the LookUp, so creating several managers of the same data source is cheap
+			mDataSource = (javax.sql.DataSource) LookUp.getInstance().lookup(mJndiName, mJndiContextFactory, mJndiProviderURL);
 			if (mDataSource == null)
 			{
 				throw new NamingException("Data source was retrieved as null");
@@ -129,6 +232,16 @@ public class DBConnectionManager
 		{
 			Class.forName(mJdbcDriverName);
 			mJDBCDriver = DriverManager.getDriver(mDBUrl);
+			
+			//the connection properties are the same for all the connections
+			mConnectionProperties = new Properties();
+			mConnectionProperties.setProperty("user", mUsername);
+			mConnectionProperties.setProperty("password", mPassword);
+			
+			if (mPoolConfig != null)
+			{
+				mPool = new JDBCConnectionPool(mJDBCDriver, mDBUrl, mConnectionProperties, mPoolConfig);
+			}
 			sLogger.debug("initJDBCDriver() ended.");
 		} 
 		catch (ClassNotFoundException cnfe) 
@@ -151,7 +264,11 @@ public class DBConnectionManager
 	 * create a DB connection. if the DBConnectionManager was constructed with data source
 	 * parameters, then the createDBConnection() method will use the data source initialized
 	 * to create a DB conenction. if it was constructed with JDBC parameters, then it will
-	 * use pure JDBC to create a DB connection.
+	 * use pure JDBC to create a DB connection, and borrow it from the connection pool (if pooled).
+	 * the connection should be closed (using closeResources()), which returns a pooled connection to the pool.
+	 * when a retry policy is set (see setRetryPolicy()), a failed acquisition is retried according to it, and when a
+	 * circuit breaker is set (see setCircuitBreaker()), the acquisitions fail immediately with a DBCircuitOpenException
+	 * while it is open. both are disabled by default.
 	 * 
 	 * @return the created DB connection
 	 * 
@@ -159,6 +276,126 @@ public class DBConnectionManager
 	 */
 	public Connection createDBConnection()
 		throws DBConnectionException
+	{
+		DBConnectionMetrics metrics = mMetrics;
+		if (metrics == null)
+		{
+			return acquireDBConnection();
+		}
+		
+		long start = System.nanoTime();
+		Connection con;
+		try
+		{
+			con = acquireDBConnection();
+		}
+		catch (DBConnectionException dbce)
+		{
+			metrics.connectionAcquireFailed();
+			throw dbce;
+		}
+		return metrics.connectionAcquired(con, System.nanoTime() - start);
+	}
+	
+	
+	
+	/**
+	 * creates a DB connection for read only work. when there are replicas, the connection is taken from
+	 * a healthy replica (see ReplicaRouter), and from the primary when no replica is healthy. when there
+	 * are no replicas, this is the same as createDBConnection().
+	 * a replica may lag behind the primary, so a read that must see the latest writes should use createDBConnection().
+	 * 
+	 * @return the created DB connection
+	 * 
+	 * @throws DBConnectionException when any exception occurs
+	 */
+	public Connection createReadOnlyDBConnection()
+		throws DBConnectionException
+	{
+		ReplicaRouter replicaRouter = mReplicaRouter;
+		if (replicaRouter != null)
+		{
+			//the metrics are read once, so the connection is measured by the metrics that were enabled when it was acquired
+			DBConnectionMetrics metrics = mMetrics;
+			long start = metrics == null ? 0 : System.nanoTime();
+			Connection con = replicaRouter.acquireConnection();
+			if (con != null)
+			{
+				return metrics == null ? con : metrics.connectionAcquired(con, System.nanoTime() - start);
+			}
+		}
+		
+		return createDBConnection();
+	}
+	
+	
+	
+	//gets a connection through the circuit breaker, and retries the failed attempts with a jittered exponential backoff
+	protected Connection acquireDBConnection()
+		throws DBConnectionException
+	{
+		ConnectionRetryPolicy retryPolicy = mRetryPolicy;
+		ConnectionCircuitBreaker circuitBreaker = mCircuitBreaker;
+		int maxAttempts = retryPolicy == null ? 1 : Math.max(retryPolicy.getMaxAttempts(), 1);
+		
+		for (int attempt=1 ; ; ++attempt)
+		{
+			if (circuitBreaker != null && !circuitBreaker.allowAcquisition())
+			{
+				throw new DBCircuitOpenException("The DB " + getDescription() + " is considered down (the connection circuit breaker is " + 
+						circuitBreaker.getState() + "). failing without connecting.");
+			}
+			
+			try
+			{
+				Connection con = openDBConnection();
+				if (circuitBreaker != null)
+				{
+					circuitBreaker.acquisitionSucceeded();
+				}
+				return con;
+			}
+			catch (DBPoolExhaustedException dbpee)
+			{
+				//the DB is up, but all the pooled connections are in use. retrying would only add to the load
+				throw dbpee;
+			}
+			catch (DBConnectionException dbce)
+			{
+				if (Thread.currentThread().isInterrupted())
+				{
+					throw dbce;
+				}
+				
+				if (circuitBreaker != null)
+				{
+					circuitBreaker.acquisitionFailed();
+				}
+				if (attempt >= maxAttempts)
+				{
+					throw dbce;
+				}
+				
+				long backoffMillis = retryPolicy.getBackoffMillis(attempt);
+				sLogger.debug("createDBConnection(): attempt " + attempt + " of " + maxAttempts + " failed. retrying in " + backoffMillis + " ms...");
+				try
+				{
+					Thread.sleep(backoffMillis);
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					throw dbce;
+				}
+			}
+		}
+	}
+	
+	
+	
+	//gets a connection from the data source, the pool or the JDBC driver
+	protected Connection openDBConnection()
+		throws DBConnectionException
 	{
 		sLogger.debug("createDBConnection() started.");
 		Connection con = null;
@@ -183,14 +420,19 @@ public class DBConnectionManager
 		}
 		else
 		{
+			if (mPool != null)
+			{
+				sLogger.debug("createDBConnection(): getting the connection from the JDBC connection pool...");
+				con = mPool.borrowConnection();
+				sLogger.debug("createDBConnection() ended.");
+				return con;
+			}
+			
 			//get the connection from JDBC
 			sLogger.debug("createDBConnection(): getting the connection from JDBC...");
 			try 
 			{
-				Properties dbProps = new Properties();
-				dbProps.setProperty("user", mUsername);
-				dbProps.setProperty("password", mPassword);
-				con = mJDBCDriver.connect(mDBUrl, dbProps);
+				con = mJDBCDriver.connect(mDBUrl, mConnectionProperties);
 				sLogger.debug("createDBConnection() ended.");
 				return con;
 			} 
@@ -208,7 +450,8 @@ public class DBConnectionManager
 	
 	
 	/**
-	 * closes the connection, PreparedStatement or ResultSet when supplied (not null)
+	 * closes the ResultSet, PreparedStatement and connection when supplied (not null), in this order.
+	 * a pooled connection is returned to the pool
 	 * 
 	 * @param aCon the connection to close
 	 * @param aPs the PreparedStatement to close
@@ -216,15 +459,15 @@ public class DBConnectionManager
 	 */
 	public void closeResources(Connection aCon, PreparedStatement aPs, ResultSet aRs)
 	{
-		if (aCon != null)
+		if (aRs != null)
 		{
 			try
 			{
-				aCon.close();
+				aRs.close();
 			}
 			catch(SQLException sqle)
 			{
-				sLogger.warn("Error closing connection.", sqle);
+				sLogger.warn("Error closing ResultSet.", sqle);
 			}
 		}
 		
@@ -240,15 +483,671 @@ public class DBConnectionManager
 			}
 		}
 		
-		if (aRs != null)
+		//the connection is closed last, since a pooled connection may be lent again as soon as it is closed
+		if (aCon != null)
 		{
 			try
 			{
-				aRs.close();
+				aCon.close();
 			}
 			catch(SQLException sqle)
 			{
-				sLogger.warn("Error closing ResultSet.", sqle);
+				sLogger.warn("Error closing connection.", sqle);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * runs a query and returns its rows as a lazily consumed stream. the rows are fetched from the DB
+	 * (aFetchSize rows at a time) only as the stream is consumed, so a large result is streamed in a constant memory.
+	 * the query uses a forward only and read only cursor (the default of <i>prepareStatement(sql)</i>, so the
+	 * statement may be taken from the statements cache of a pooled connection).
+	 * 
+	 * the stream holds the connection, the statement and the ResultSet until it is closed, so it must be closed,
+	 * for example:
+	 * 
+	 *  try (Stream&lt;String&gt; names = conManager.query("select NAME from USERS where AGE &gt; ?", new Object[] {18}, 1000, nameMapper))
+	 *  {
+	 *     names.forEach(...);
+	 *  }
+	 * 
+	 * the resources are also released as soon as the last row is read, or when reading a row fails.
+	 * the query runs on a replica, when there are replicas (see createReadOnlyDBConnection()).
+	 * 
+	 * @param aSql the SQL of the query
+	 * @param aParams the parameters of the query (set with <i>setObject()</i>), or null if there are no parameters
+	 * @param aFetchSize the number of rows to fetch from the DB at a time. 0 to use the driver's default
+	 * @param aRowMapper maps each row to an element of the stream
+	 * 
+	 * @return a stream of the mapped rows
+	 * 
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when the query fails. a failure while reading the rows is thrown by the stream operations
+	 */
+	public <T> Stream<T> query(String aSql, Object[] aParams, int aFetchSize, RowMapper<T> aRowMapper)
+		throws DBConnectionException
+	{
+		final QueryCursor cursor = openCursor(aSql, aParams, aFetchSize);
+		ResultSetSpliterator<T> spliterator = new ResultSetSpliterator<T>(cursor, aRowMapper);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable()
+		{
+			public void run()
+			{
+				cursor.close();
+			}
+		});
+	}
+	
+	
+	
+	/**
+	 * runs a query and passes its rows, one at a time, to the given handler. the rows are fetched from the DB
+	 * aFetchSize rows at a time, so a large result is handled in a constant memory. all the resources are
+	 * closed before returning. the query runs on a replica, when there are replicas (see createReadOnlyDBConnection()).
+	 * 
+	 * @param aSql the SQL of the query
+	 * @param aParams the parameters of the query (set with <i>setObject()</i>), or null if there are no parameters
+	 * @param aFetchSize the number of rows to fetch from the DB at a time. 0 to use the driver's default
+	 * @param aHandler handles each row
+	 * 
+	 * @return the number of rows handled
+	 * 
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when the query fails, or the handler fails to handle a row
+	 */
+	public int query(String aSql, Object[] aParams, int aFetchSize, RowCallbackHandler aHandler)
+		throws DBConnectionException
+	{
+		QueryCursor cursor = openCursor(aSql, aParams, aFetchSize);
+		int rowsCount = 0;
+		try
+		{
+			while (cursor.mRs.next())
+			{
+				aHandler.processRow(cursor.mRs);
+				++rowsCount;
+			}
+			return rowsCount;
+		}
+		catch (SQLException sqle)
+		{
+			String errMsg = "Could not read row " + rowsCount + " of query: " + aSql;
+			sLogger.error(errMsg, sqle);
+			throw new DBQueryException(errMsg, sqle);
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * runs a query and returns all its rows as a list. the query runs on a replica, when there are replicas
+	 * (see createReadOnlyDBConnection()).
+	 * when the results cache is enabled (see enableResultCache()), the result may be taken from the cache, and
+	 * the returned list is shared by the callers, so it cannot be changed. the result is cached by the row mapper
+	 * instance (compared by equals()), so a mapper that is created on every call (for ex: a lambda that captures
+	 * local state) is never taken from the cache. such callers should give a cache name (see the other queryForList()).
+	 * 
+	 * @param aSql the SQL of the query
+	 * @param aParams the parameters of the query (set with <i>setObject()</i>), or null if there are no parameters
+	 * @param aQueryTimeoutSeconds the maximal time for the query to run (see <i>Statement.setQueryTimeout()</i>). 0 for no limit
+	 * @param aRowMapper maps each row to an element of the list
+	 * 
+	 * @return the mapped rows
+	 * 
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when the query fails or times out
+	 */
+	public <T> List<T> queryForList(String aSql, Object[] aParams, int aQueryTimeoutSeconds, RowMapper<T> aRowMapper)
+		throws DBConnectionException
+	{
+		return queryForCachedList(aRowMapper, aSql, aParams, aQueryTimeoutSeconds, aRowMapper);
+	}
+	
+	
+	
+	/**
+	 * runs a query and returns all its rows as a list, as queryForList(String, Object[], int, RowMapper) does, but
+	 * caches the result by the given cache name instead of by the row mapper. all the calls with the same name, SQL
+	 * and parameters share the cached result, so they should map the rows the same way.
+	 * 
+	 * @param aCacheName the name of the mapped result
+	 * @param aSql the SQL of the query
+	 * @param aParams the parameters of the query (set with <i>setObject()</i>), or null if there are no parameters
+	 * @param aQueryTimeoutSeconds the maximal time for the query to run (see <i>Statement.setQueryTimeout()</i>). 0 for no limit
+	 * @param aRowMapper maps each row to an element of the list
+	 * 
+	 * @return the mapped rows
+	 * 
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when the query fails or times out
+	 */
+	public <T> List<T> queryForList(String aCacheName, String aSql, Object[] aParams, int aQueryTimeoutSeconds, RowMapper<T> aRowMapper)
+		throws DBConnectionException
+	{
+		return queryForCachedList(aCacheName, aSql, aParams, aQueryTimeoutSeconds, aRowMapper);
+	}
+	
+	
+	
+	//a result of a table that was written within the last TTL is read from the primary, since a lagging replica
+	//may miss the write, and its result would be cached for a whole TTL
+	@SuppressWarnings("unchecked")
+	protected <T> List<T> queryForCachedList(Object aResultId, String aSql, Object[] aParams, int aQueryTimeoutSeconds, RowMapper<T> aRowMapper)
+		throws DBConnectionException
+	{
+		QueryResultCache resultCache = mResultCache;
+		if (resultCache == null)
+		{
+			return runQueryForList(aSql, aParams, aQueryTimeoutSeconds, aRowMapper, false);
+		}
+		
+		QueryResultCache.CacheKey key = new QueryResultCache.CacheKey(aSql, aParams, aResultId);
+		List<T> rows = (List<T>)resultCache.get(key);
+		if (rows == null)
+		{
+			Map<String, Long> generations = resultCache.getGenerations(aSql);
+			boolean fromPrimary = mReplicaRouter != null && resultCache.wasWrittenWithinTtl(generations.keySet());
+			rows = Collections.unmodifiableList(runQueryForList(aSql, aParams, aQueryTimeoutSeconds, aRowMapper, fromPrimary));
+			resultCache.put(key, rows, generations);
+		}
+		
+		return rows;
+	}
+	
+	
+	
+	protected <T> List<T> runQueryForList(String aSql, Object[] aParams, int aQueryTimeoutSeconds, RowMapper<T> aRowMapper, boolean aFromPrimary)
+		throws DBConnectionException
+	{
+		QueryCursor cursor = openCursor(aSql, aParams, 0, aQueryTimeoutSeconds, aFromPrimary);
+		List<T> rows = new ArrayList<T>();
+		try
+		{
+			while (cursor.mRs.next())
+			{
+				rows.add(aRowMapper.mapRow(cursor.mRs, rows.size()));
+			}
+			return rows;
+		}
+		catch (SQLException sqle)
+		{
+			String errMsg = "Could not read row " + rows.size() + " of query: " + aSql;
+			sLogger.error(errMsg, sqle);
+			throw new DBQueryException(errMsg, sqle);
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * runs an update (insert, update, delete or DDL) statement. the cached query results that depend on
+	 * the tables of the statement are invalidated (see enableResultCache())
+	 * 
+	 * @param aSql the SQL of the statement
+	 * @param aParams the parameters of the statement (set with <i>setObject()</i>), or null if there are no parameters
+	 * @param aQueryTimeoutSeconds the maximal time for the statement to run (see <i>Statement.setQueryTimeout()</i>). 0 for no limit
+	 * 
+	 * @return the number of rows updated
+	 * 
+	 * @throws DBConnectionException when a connection cannot be created
+	 * @throws DBQueryException when the statement fails or times out
+	 */
+	public int update(String aSql, Object[] aParams, int aQueryTimeoutSeconds)
+		throws DBConnectionException
+	{
+		Connection con = createDBConnection();
+		PreparedStatement ps = null;
+		try
+		{
+			ps = con.prepareStatement(aSql);
+			if (aQueryTimeoutSeconds > 0)
+			{
+				ps.setQueryTimeout(aQueryTimeoutSeconds);
+			}
+			setParameters(ps, aParams);
+			int updatedRows = ps.executeUpdate();
+			writeExecuted(aSql);
+			return updatedRows;
+		}
+		catch (SQLException sqle)
+		{
+			String errMsg = "Could not run update: " + aSql;
+			sLogger.error(errMsg, sqle);
+			throw new DBQueryException(errMsg, sqle);
+		}
+		finally
+		{
+			closeResources(con, ps, null);
+		}
+	}
+	
+	
+	
+	/**
+	 * starts collecting the metrics of the connections and statements (see DBConnectionMetrics).
+	 * only the connections created after this call are measured. if the metrics are already collected, they are restarted.
+	 * the read only connections taken from the replicas (see createReadOnlyDBConnection()) are measured too, and the
+	 * pool statistics are of the pool of the primary.
+	 * 
+	 * @param aSlowQueryThresholdMillis the execution time above which a statement is kept in the slow queries buffer
+	 * @param aSlowQueriesBufferSize the number of last slow queries kept
+	 * @param aLeakThresholdMillis the time after which a connection that was not closed is reported as leaked
+	 * @param aCaptureStackTraces true to keep the stack trace of acquiring each connection, for the leaks report
+	 */
+	public void enableMetrics(long aSlowQueryThresholdMillis, int aSlowQueriesBufferSize, long aLeakThresholdMillis, boolean aCaptureStackTraces)
+	{
+		mMetrics = new DBConnectionMetrics(aSlowQueryThresholdMillis, aSlowQueriesBufferSize, aLeakThresholdMillis, aCaptureStackTraces, mPool);
+	}
+	
+	
+	
+	/**
+	 * stops collecting the metrics of the connections and statements
+	 */
+	public void disableMetrics()
+	{
+		mMetrics = null;
+	}
+	
+	
+	
+	/**
+	 * returns the metrics of the connections and statements
+	 * 
+	 * @return the metrics, or null if they are not collected
+	 */
+	public DBConnectionMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+	
+	
+	
+	/**
+	 * sets the retries of the failed connection acquisitions (disabled by default). the change applies to the acquisitions
+	 * that start after this call
+	 * 
+	 * @param aRetryPolicy the retry policy (for ex: new ConnectionRetryPolicy() for the default retries), or null to fail on the first failed attempt
+	 */
+	public void setRetryPolicy(ConnectionRetryPolicy aRetryPolicy)
+	{
+		mRetryPolicy = aRetryPolicy;
+	}
+	
+	
+	
+	public ConnectionRetryPolicy getRetryPolicy()
+	{
+		return mRetryPolicy;
+	}
+	
+	
+	
+	/**
+	 * sets the circuit breaker of the connection acquisitions (disabled by default). the change applies to the acquisitions
+	 * that start after this call. each replica (see ReplicaRouter) gets a circuit breaker of its own with the same settings,
+	 * since the replicas fail independently of the primary
+	 * 
+	 * @param aCircuitBreaker the circuit breaker (for ex: new ConnectionCircuitBreaker() for the default settings), or null to always try to connect
+	 */
+	public void setCircuitBreaker(ConnectionCircuitBreaker aCircuitBreaker)
+	{
+		mCircuitBreaker = aCircuitBreaker;
+		setReplicasCircuitBreaker(mReplicaRouter, aCircuitBreaker);
+	}
+	
+	
+	
+	//gives each replica a circuit breaker of its own, with the settings of the given breaker
+	protected void setReplicasCircuitBreaker(ReplicaRouter aReplicaRouter, ConnectionCircuitBreaker aCircuitBreaker)
+	{
+		if (aReplicaRouter == null)
+		{
+			return;
+		}
+		
+		for (ReplicaRouter.Replica replica:aReplicaRouter.getReplicas())
+		{
+			replica.getConManager().setCircuitBreaker(aCircuitBreaker == null ? null : 
+				new ConnectionCircuitBreaker(aCircuitBreaker.getFailureThreshold(), aCircuitBreaker.getOpenDurationMillis(), 
+						aCircuitBreaker.getTransitionsBufferSize()));
+		}
+	}
+	
+	
+	
+	/**
+	 * returns the circuit breaker of the connection acquisitions, which holds the metrics of its state transitions
+	 * 
+	 * @return the circuit breaker, or null if disabled
+	 */
+	public ConnectionCircuitBreaker getCircuitBreaker()
+	{
+		return mCircuitBreaker;
+	}
+	
+	
+	
+	/**
+	 * starts caching the results of queryForList() (see QueryResultCache). if the results are already cached, the cache is replaced.
+	 * the writes through update() and BatchWriter invalidate the results of the tables they mention. the writes through
+	 * other connections are not seen, and should be followed by a call to <i>getResultCache().invalidateTable()</i>.
+	 * when there are replicas, the results of the tables written within the last TTL are read from the primary, so a
+	 * lagging replica does not refill the cache with a result that misses the write.
+	 * note that the size of a result is estimated by measuring its rows, which works only for rows of strings, numbers,
+	 * arrays, collections and maps. a row mapped to any other object (for ex: a domain object) is counted as
+	 * QueryResultCache.DEFAULT_OBJECT_SIZE bytes, whatever it holds. for such rows, use the overload that takes a RowSizeEstimator
+	 * and a maximal number of results.
+	 * 
+	 * @param aTtlMillis the time a result is cached
+	 * @param aMaxBytes the maximal estimated size of all the cached results
+	 * @param aTables the tables whose writes invalidate the results that mention them
+	 */
+	public void enableResultCache(long aTtlMillis, long aMaxBytes, Collection<String> aTables)
+	{
+		mResultCache = new QueryResultCache(aTtlMillis, aMaxBytes, aTables);
+	}
+	
+	
+	
+	/**
+	 * starts caching the results of queryForList(), as enableResultCache(long, long, Collection) does, with a limit on the
+	 * number of the cached results, and an estimator of the sizes of the rows that are not measured by the cache (for ex: rows
+	 * mapped to domain objects). the least recently used results are evicted when either limit is passed.
+	 * 
+	 * @param aTtlMillis the time a result is cached
+	 * @param aMaxBytes the maximal estimated size of all the cached results
+	 * @param aMaxResults the maximal number of the cached results
+	 * @param aSizeEstimator estimates the objects that are not strings, numbers, arrays, collections or maps. null to count
+	 * them as QueryResultCache.DEFAULT_OBJECT_SIZE bytes
+	 * @param aTables the tables whose writes invalidate the results that mention them
+	 */
+	public void enableResultCache(long aTtlMillis, long aMaxBytes, int aMaxResults, RowSizeEstimator aSizeEstimator, Collection<String> aTables)
+	{
+		mResultCache = new QueryResultCache(aTtlMillis, aMaxBytes, aMaxResults, aSizeEstimator, aTables);
+	}
+	
+	
+	
+	/**
+	 * stops caching the results of queryForList(), and drops the cached results
+	 */
+	public void disableResultCache()
+	{
+		mResultCache = null;
+	}
+	
+	
+	
+	/**
+	 * returns the cache of the query results, which holds its hit rate
+	 * 
+	 * @return the cache, or null if the results are not cached
+	 */
+	public QueryResultCache getResultCache()
+	{
+		return mResultCache;
+	}
+	
+	
+	
+	//invalidates the cached results that depend on the tables of a committed write
+	protected void writeExecuted(String aSql)
+	{
+		QueryResultCache resultCache = mResultCache;
+		if (resultCache != null)
+		{
+			resultCache.writeExecuted(aSql);
+		}
+	}
+	
+	
+	
+	/**
+	 * sets the routing of the read only connections to replicas. the replicas get the circuit breaker settings (see setCircuitBreaker())
+	 * 
+	 * @param aReplicaRouter the router, or null to take all the connections from the primary
+	 */
+	public void setReplicaRouter(ReplicaRouter aReplicaRouter)
+	{
+		setReplicasCircuitBreaker(aReplicaRouter, mCircuitBreaker);
+		mReplicaRouter = aReplicaRouter;
+	}
+	
+	
+	
+	/**
+	 * returns the routing of the read only connections to replicas, which holds the health and the statistics of the replicas
+	 * 
+	 * @return the router, or null if there are no replicas
+	 */
+	public ReplicaRouter getReplicaRouter()
+	{
+		return mReplicaRouter;
+	}
+	
+	
+	
+	/**
+	 * returns the asynchronous facade of this connection manager. it is created on the first call
+	 * 
+	 * @return the asynchronous query executor
+	 */
+	public synchronized AsyncQueryExecutor getAsyncExecutor()
+	{
+		if (mAsyncExecutor == null)
+		{
+			int maxConcurrency = mPoolConfig != null ? mPoolConfig.getMaxSize() : JDBCConnectionPoolConfig.DEFAULT_MAX_SIZE;
+			mAsyncExecutor = new AsyncQueryExecutor(this, maxConcurrency);
+		}
+		
+		return mAsyncExecutor;
+	}
+	
+	
+	
+	protected static void setParameters(PreparedStatement aPs, Object[] aParams)
+		throws SQLException
+	{
+		if (aParams != null)
+		{
+			for (int i=0 ; i<aParams.length ; ++i)
+			{
+				aPs.setObject(i + 1, aParams[i]);
+			}
+		}
+	}
+	
+	
+	
+	//creates a connection, and runs the query with a forward only read only cursor
+	protected QueryCursor openCursor(String aSql, Object[] aParams, int aFetchSize)
+		throws DBConnectionException
+	{
+		return openCursor(aSql, aParams, aFetchSize, 0, false);
+	}
+	
+	
+	
+	//creates a connection (from the primary, or for read only work), and runs the query with a forward only read only cursor
+	protected QueryCursor openCursor(String aSql, Object[] aParams, int aFetchSize, int aQueryTimeoutSeconds, boolean aFromPrimary)
+		throws DBConnectionException
+	{
+		QueryCursor cursor = new QueryCursor();
+		cursor.mCon = aFromPrimary ? createDBConnection() : createReadOnlyDBConnection();
+		try
+		{
+			if (aFetchSize > 0 && cursor.mCon.getAutoCommit())
+			{
+				//some drivers (for ex: PostgreSQL) fetch the rows in chunks only within a transaction
+				cursor.mCon.setAutoCommit(false);
+				cursor.mRestoreAutoCommit = true;
+			}
+			
+			cursor.mPs = cursor.mCon.prepareStatement(aSql);
+			cursor.mPs.setFetchDirection(ResultSet.FETCH_FORWARD);
+			if (aFetchSize > 0)
+			{
+				cursor.mPs.setFetchSize(aFetchSize);
+			}
+			if (aQueryTimeoutSeconds > 0)
+			{
+				cursor.mPs.setQueryTimeout(aQueryTimeoutSeconds);
+			}
+			setParameters(cursor.mPs, aParams);
+			
+			cursor.mRs = cursor.mPs.executeQuery();
+			return cursor;
+		}
+		catch (SQLException sqle)
+		{
+			cursor.close();
+			String errMsg = "Could not run query: " + aSql;
+			sLogger.error(errMsg, sqle);
+			throw new DBQueryException(errMsg, sqle);
+		}
+	}
+	
+	
+	
+	/**
+	 * closes the connection pool (if the JDBC connections are pooled), the asynchronous executor (if created) and the
+	 * connection managers of the replicas (if any).
+	 * the idle connections are closed immediately, and the lent connections are closed when they are returned.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (mAsyncExecutor != null)
+			{
+				mAsyncExecutor.close();
+			}
+		}
+		
+		if (mPool != null)
+		{
+			mPool.close();
+		}
+		
+		if (mReplicaRouter != null)
+		{
+			mReplicaRouter.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * returns the pool of the JDBC connections
+	 * 
+	 * @return the connection pool, or null if the connections are not pooled
+	 */
+	public JDBCConnectionPool getPool()
+	{
+		return mPool;
+	}
+	
+	
+	
+	/**
+	 * @return the JNDI name of the data source, or the URL of the DB
+	 */
+	public String getDescription()
+	{
+		return mUseDataSource ? mJndiName : mDBUrl;
+	}
+	
+	
+	
+	/////////QueryCursor class ////////////////////
+	//the resources of a running query
+	protected class QueryCursor
+	{
+		protected Connection mCon;
+		protected PreparedStatement mPs;
+		protected ResultSet mRs;
+		protected boolean mRestoreAutoCommit;
+		protected boolean mClosed;
+		
+		protected void close()
+		{
+			if (mClosed)
+			{
+				return;
+			}
+			mClosed = true;
+			
+			if (mRestoreAutoCommit)
+			{
+				//the query only read, so its transaction is rolled back
+				try
+				{
+					mCon.rollback();
+					mCon.setAutoCommit(true);
+				}
+				catch (SQLException sqle)
+				{
+					sLogger.warn("Error ending the transaction of a query.", sqle);
+				}
+			}
+			
+			closeResources(mCon, mPs, mRs);
+		}
+	}
+	
+	
+	
+	/////////ResultSetSpliterator class ////////////////////
+	//advances the cursor of a query one row at a time, as the stream is consumed
+	protected static class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T>
+	{
+		protected final QueryCursor mCursor;
+		protected final RowMapper<T> mRowMapper;
+		protected int mRowNum;
+		
+		protected ResultSetSpliterator(QueryCursor aCursor, RowMapper<T> aRowMapper)
+		{
+			super(Long.MAX_VALUE, Spliterator.ORDERED);
+			mCursor = aCursor;
+			mRowMapper = aRowMapper;
+		}
+		
+		public boolean tryAdvance(Consumer<? super T> aAction)
+		{
+			if (mCursor.mClosed)
+			{
+				return false;
+			}
+			
+			try
+			{
+				if (!mCursor.mRs.next())
+				{
+					//release the connection as soon as the rows end, even before the stream is closed
+					mCursor.close();
+					return false;
+				}
+				
+				aAction.accept(mRowMapper.mapRow(mCursor.mRs, mRowNum++));
+				return true;
+			}
+			catch (SQLException sqle)
+			{
+				mCursor.close();
+				String errMsg = "Could not read row " + mRowNum + " of a query.";
+				sLogger.error(errMsg, sqle);
+				throw new DBQueryException(errMsg, sqle);
 			}
 		}
 	}
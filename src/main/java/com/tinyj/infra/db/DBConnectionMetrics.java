@@ -0,0 +1,614 @@
+package com.tinyj.infra.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * the metrics of the connections and statements of a DBConnectionManager.
+ *
+ * the metrics are collected only when enabled by calling <i>DBConnectionManager.enableMetrics()</i>. when disabled,
+ * creating a connection pays a single null check, and the connections and statements are not wrapped.
+ *
+ * when enabled, the metrics hold:
+ * the latency of acquiring a connection (createDBConnection()), the number of connections in use,
+ * the connections that were not closed (by closeResources() or otherwise) within the leak threshold, with the
+ * thread that acquired them (and optionally the stack trace), and the execution time of the statements.
+ * a statement that runs longer than the slow query threshold is kept in a ring buffer of the last slow queries.
+ *
+ * the acquired connections are wrapped in a proxy that records their close and wraps their statements,
+ * so the statements created by the callers directly are measured too. the execution time of a query is the
+ * time of its execute call, and does not include reading the rows.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class DBConnectionMetrics
+{
+	private static final int HISTOGRAM_BUCKETS = 64;
+
+	protected final long mSlowQueryThresholdNanos;
+	protected final long mLeakThresholdMillis;
+	protected final boolean mCaptureStackTraces;
+	protected final long mStartTime;
+
+	//the pool of the measured connections, for the idle connections gauge. null if the connections are not pooled
+	protected final JDBCConnectionPool mPool;
+
+	//the connection acquires
+	protected final LongAdder mAcquires = new LongAdder();
+	protected final LongAdder mAcquireFailures = new LongAdder();
+	protected final LongAdder mAcquireNanos = new LongAdder();
+	protected final AtomicLong mAcquireMaxNanos = new AtomicLong();
+	protected final LongHistogram mAcquireHistogram = new LongHistogram();
+
+	//the connections in use (acquired and not closed yet)
+	protected final Set<ConnectionLease> mLeases = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionLease, Boolean>());
+
+	//the statements executions
+	protected final LongAdder mExecutions = new LongAdder();
+	protected final LongAdder mExecutionFailures = new LongAdder();
+	protected final LongAdder mExecutionNanos = new LongAdder();
+	protected final AtomicLong mExecutionMaxNanos = new AtomicLong();
+	protected final LongHistogram mExecutionHistogram = new LongHistogram();
+
+	//the ring buffer of the last slow queries
+	protected final AtomicReferenceArray<SlowQuery> mSlowQueries;
+	protected final AtomicLong mSlowQueriesCount = new AtomicLong();
+
+
+	/**
+	 * creates new metrics
+	 *
+	 * @param aSlowQueryThresholdMillis the execution time above which a statement is logged as a slow query
+	 * @param aSlowQueriesBufferSize the number of last slow queries kept
+	 * @param aLeakThresholdMillis the time after which a connection that was not closed is reported as leaked
+	 * @param aCaptureStackTraces true to keep the stack trace of acquiring each connection, for the leaks report
+	 * @param aPool the pool of the measured connections, or null if the connections are not pooled
+	 */
+	public DBConnectionMetrics(long aSlowQueryThresholdMillis, int aSlowQueriesBufferSize, long aLeakThresholdMillis, boolean aCaptureStackTraces, JDBCConnectionPool aPool)
+	{
+		mPool = aPool;
+		mSlowQueryThresholdNanos = aSlowQueryThresholdMillis * 1000000L;
+		mSlowQueries = new AtomicReferenceArray<SlowQuery>(Math.max(aSlowQueriesBufferSize, 1));
+		mLeakThresholdMillis = aLeakThresholdMillis;
+		mCaptureStackTraces = aCaptureStackTraces;
+		mStartTime = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * records an acquired connection, and wraps it in order to measure its use
+	 *
+	 * @param aCon the acquired connection
+	 * @param aAcquireNanos the time it took to acquire the connection
+	 *
+	 * @return the wrapped connection
+	 */
+	public Connection connectionAcquired(Connection aCon, long aAcquireNanos)
+	{
+		mAcquires.increment();
+		mAcquireNanos.add(aAcquireNanos);
+		updateMax(mAcquireMaxNanos, aAcquireNanos);
+		mAcquireHistogram.record(aAcquireNanos);
+
+		ConnectionLease lease = new ConnectionLease(this, aCon);
+		mLeases.add(lease);
+		return (Connection)Proxy.newProxyInstance(DBConnectionMetrics.class.getClassLoader(), new Class<?>[] {Connection.class}, lease);
+	}
+
+
+	/**
+	 * records a failure to acquire a connection
+	 */
+	public void connectionAcquireFailed()
+	{
+		mAcquireFailures.increment();
+	}
+
+
+	/**
+	 * records an execution of a statement
+	 *
+	 * @param aSql the SQL of the statement (may be null for a batch of a plain statement)
+	 * @param aNanos the execution time
+	 * @param aFailed true if the execution failed
+	 */
+	public void statementExecuted(String aSql, long aNanos, boolean aFailed)
+	{
+		mExecutions.increment();
+		mExecutionNanos.add(aNanos);
+		updateMax(mExecutionMaxNanos, aNanos);
+		mExecutionHistogram.record(aNanos);
+		if (aFailed)
+		{
+			mExecutionFailures.increment();
+		}
+
+		if (aNanos >= mSlowQueryThresholdNanos)
+		{
+			long index = mSlowQueriesCount.getAndIncrement();
+			mSlowQueries.set((int)(index % mSlowQueries.length()), new SlowQuery(aSql, aNanos, aFailed, Thread.currentThread().getName()));
+		}
+	}
+
+
+	protected static void updateMax(AtomicLong aMax, long aValue)
+	{
+		long max;
+		while (aValue > (max = aMax.get()))
+		{
+			if (aMax.compareAndSet(max, aValue))
+			{
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * returns the connections that are in use longer than the leak threshold
+	 *
+	 * @return the leaked connections, the oldest first
+	 */
+	public List<ConnectionLease> getLeakedConnections()
+	{
+		long now = System.currentTimeMillis();
+		List<ConnectionLease> leaked = new ArrayList<ConnectionLease>();
+		for (ConnectionLease lease:mLeases)
+		{
+			if (now - lease.mAcquireTime >= mLeakThresholdMillis)
+			{
+				leaked.add(lease);
+			}
+		}
+
+		Collections.sort(leaked, new Comparator<ConnectionLease>()
+		{
+			public int compare(ConnectionLease aLease1, ConnectionLease aLease2)
+			{
+				return Long.compare(aLease1.mAcquireTime, aLease2.mAcquireTime);
+			}
+		});
+		return leaked;
+	}
+
+
+	/**
+	 * returns the last slow queries
+	 *
+	 * @return the slow queries, the latest first
+	 */
+	public List<SlowQuery> getSlowQueries()
+	{
+		List<SlowQuery> slowQueries = new ArrayList<SlowQuery>(mSlowQueries.length());
+		long count = mSlowQueriesCount.get();
+		for (long i=count - 1 ; i>=0 && i>=count - mSlowQueries.length() ; --i)
+		{
+			SlowQuery slowQuery = mSlowQueries.get((int)(i % mSlowQueries.length()));
+			if (slowQuery != null)
+			{
+				slowQueries.add(slowQuery);
+			}
+		}
+
+		return slowQueries;
+	}
+
+
+	public long getAcquires()
+	{
+		return mAcquires.sum();
+	}
+
+
+	public long getAcquireFailures()
+	{
+		return mAcquireFailures.sum();
+	}
+
+
+	public long getAverageAcquireNanos()
+	{
+		long acquires = mAcquires.sum();
+		return acquires == 0 ? 0 : mAcquireNanos.sum() / acquires;
+	}
+
+
+	public long getMaxAcquireNanos()
+	{
+		return mAcquireMaxNanos.get();
+	}
+
+
+	/**
+	 * returns an estimation of a percentile of the acquire latency (the upper bound of its power of 2 bucket)
+	 *
+	 * @param aPercentile the percentile, between 0 and 100
+	 *
+	 * @return the estimated latency in nanoseconds
+	 */
+	public long getAcquirePercentileNanos(double aPercentile)
+	{
+		return mAcquireHistogram.getPercentile(aPercentile);
+	}
+
+
+	/**
+	 * @return the number of connections acquired and not closed yet
+	 */
+	public long getInUseConnections()
+	{
+		return mLeases.size();
+	}
+
+
+	/**
+	 * @return the number of idle connections in the pool, or -1 if the connections are not pooled
+	 */
+	public long getIdleConnections()
+	{
+		return mPool == null ? -1 : mPool.getIdleConnections();
+	}
+
+
+	public long getExecutions()
+	{
+		return mExecutions.sum();
+	}
+
+
+	public long getExecutionFailures()
+	{
+		return mExecutionFailures.sum();
+	}
+
+
+	public long getAverageExecutionNanos()
+	{
+		long executions = mExecutions.sum();
+		return executions == 0 ? 0 : mExecutionNanos.sum() / executions;
+	}
+
+
+	public long getMaxExecutionNanos()
+	{
+		return mExecutionMaxNanos.get();
+	}
+
+
+	/**
+	 * returns an estimation of a percentile of the statements execution time (the upper bound of its power of 2 bucket)
+	 *
+	 * @param aPercentile the percentile, between 0 and 100
+	 *
+	 * @return the estimated execution time in nanoseconds
+	 */
+	public long getExecutionPercentileNanos(double aPercentile)
+	{
+		return mExecutionHistogram.getPercentile(aPercentile);
+	}
+
+
+	/**
+	 * @return the total number of slow queries, including the ones that were dropped from the ring buffer
+	 */
+	public long getSlowQueriesCount()
+	{
+		return mSlowQueriesCount.get();
+	}
+
+
+	public long getSlowQueryThresholdMillis()
+	{
+		return mSlowQueryThresholdNanos / 1000000L;
+	}
+
+
+	public long getLeakThresholdMillis()
+	{
+		return mLeakThresholdMillis;
+	}
+
+
+	/**
+	 * @return the time the metrics started, in milliseconds
+	 */
+	public long getStartTime()
+	{
+		return mStartTime;
+	}
+
+
+	public String toString()
+	{
+		return "DBConnectionMetrics [acquires=" + getAcquires() + ", acquireFailures=" + getAcquireFailures() +
+				", avgAcquireNanos=" + getAverageAcquireNanos() + ", p99AcquireNanos<=" + getAcquirePercentileNanos(99) +
+				", inUse=" + getInUseConnections() + ", idle=" + getIdleConnections() + ", leaked=" + getLeakedConnections().size() +
+				", executions=" + getExecutions() + ", executionFailures=" + getExecutionFailures() +
+				", avgExecutionNanos=" + getAverageExecutionNanos() + ", p99ExecutionNanos<=" + getExecutionPercentileNanos(99) +
+				", slowQueries=" + getSlowQueriesCount() + "]";
+	}
+
+
+
+	/////////LongHistogram class ////////////////////
+	//a histogram whose bucket i holds the values in [2^(i-1), 2^i)
+	protected static class LongHistogram
+	{
+		protected final LongAdder[] mBuckets = new LongAdder[HISTOGRAM_BUCKETS];
+
+		protected LongHistogram()
+		{
+			for (int i=0 ; i<HISTOGRAM_BUCKETS ; ++i)
+			{
+				mBuckets[i] = new LongAdder();
+			}
+		}
+
+		protected void record(long aValue)
+		{
+			int bucket = HISTOGRAM_BUCKETS - Long.numberOfLeadingZeros(Math.max(aValue, 0));
+			mBuckets[Math.min(bucket, HISTOGRAM_BUCKETS - 1)].increment();
+		}
+
+		protected long getPercentile(double aPercentile)
+		{
+			long[] counts = new long[HISTOGRAM_BUCKETS];
+			long total = 0;
+			for (int i=0 ; i<HISTOGRAM_BUCKETS ; ++i)
+			{
+				counts[i] = mBuckets[i].sum();
+				total += counts[i];
+			}
+
+			long threshold = Math.max((long)Math.ceil(total * aPercentile / 100), 1);
+			long accumulated = 0;
+			for (int i=0 ; i<HISTOGRAM_BUCKETS && total > 0 ; ++i)
+			{
+				accumulated += counts[i];
+				if (accumulated >= threshold)
+				{
+					return i == 0 ? 0 : (1L << i) - 1;
+				}
+			}
+
+			return 0;
+		}
+	}
+
+
+
+	/////////SlowQuery class ////////////////////
+	public static class SlowQuery
+	{
+		protected final String mSql;
+		protected final long mExecutionNanos;
+		protected final boolean mFailed;
+		protected final String mThreadName;
+		protected final long mTime;
+
+		public SlowQuery(String aSql, long aExecutionNanos, boolean aFailed, String aThreadName)
+		{
+			mSql = aSql;
+			mExecutionNanos = aExecutionNanos;
+			mFailed = aFailed;
+			mThreadName = aThreadName;
+			mTime = System.currentTimeMillis();
+		}
+
+		public String getSql()
+		{
+			return mSql;
+		}
+
+		public long getExecutionNanos()
+		{
+			return mExecutionNanos;
+		}
+
+		public boolean isFailed()
+		{
+			return mFailed;
+		}
+
+		public String getThreadName()
+		{
+			return mThreadName;
+		}
+
+		/**
+		 * @return the time the query ended, in milliseconds
+		 */
+		public long getTime()
+		{
+			return mTime;
+		}
+
+		public String toString()
+		{
+			return "SlowQuery [" + (mExecutionNanos / 1000000) + " ms" + (mFailed ? ", failed" : "") +
+					", thread=" + mThreadName + ", sql=" + mSql + "]";
+		}
+	}
+
+
+
+	/////////ConnectionLease class ////////////////////
+	//an acquired connection, and the handler of the proxy it is wrapped with
+	public static class ConnectionLease implements InvocationHandler
+	{
+		protected final DBConnectionMetrics mMetrics;
+		protected final Connection mConnection;
+		protected final long mAcquireTime;
+		protected final String mThreadName;
+		protected final Throwable mAcquireStackTrace;
+		protected volatile boolean mClosed;
+
+		protected ConnectionLease(DBConnectionMetrics aMetrics, Connection aConnection)
+		{
+			mMetrics = aMetrics;
+			mConnection = aConnection;
+			mAcquireTime = System.currentTimeMillis();
+			mThreadName = Thread.currentThread().getName();
+			mAcquireStackTrace = aMetrics.mCaptureStackTraces ? new Throwable("The connection was acquired here") : null;
+		}
+
+		/**
+		 * @return the time the connection was acquired, in milliseconds
+		 */
+		public long getAcquireTime()
+		{
+			return mAcquireTime;
+		}
+
+		/**
+		 * @return the name of the thread that acquired the connection
+		 */
+		public String getThreadName()
+		{
+			return mThreadName;
+		}
+
+		/**
+		 * @return the stack trace of acquiring the connection, or null if the stack traces are not captured
+		 */
+		public Throwable getAcquireStackTrace()
+		{
+			return mAcquireStackTrace;
+		}
+
+		public String toString()
+		{
+			return "ConnectionLease [heldMillis=" + (System.currentTimeMillis() - mAcquireTime) + ", thread=" + mThreadName + "]";
+		}
+
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs)
+			throws Throwable
+		{
+			String methodName = aMethod.getName();
+			if (methodName.equals("close"))
+			{
+				if (!mClosed)
+				{
+					mClosed = true;
+					mMetrics.mLeases.remove(this);
+				}
+			}
+			else if (methodName.equals("equals"))
+			{
+				return aProxy == aArgs[0];
+			}
+			else if (methodName.equals("hashCode"))
+			{
+				return System.identityHashCode(aProxy);
+			}
+
+			Object result;
+			try
+			{
+				result = aMethod.invoke(mConnection, aArgs);
+			}
+			catch (InvocationTargetException ite)
+			{
+				throw ite.getCause();
+			}
+
+			if (result instanceof Statement)
+			{
+				//the SQL of a prepared statement is its first argument
+				String sql = (result instanceof PreparedStatement && aArgs != null && aArgs.length > 0) ? (String)aArgs[0] : null;
+				Class<?> statementInterface = result instanceof CallableStatement ? CallableStatement.class :
+												result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+				return Proxy.newProxyInstance(DBConnectionMetrics.class.getClassLoader(), new Class<?>[] {statementInterface},
+						new StatementTimer(mMetrics, (Statement)result, sql, (Connection)aProxy));
+			}
+
+			return result;
+		}
+	}
+
+
+
+	/////////StatementTimer class ////////////////////
+	//the handler of the proxy a statement is wrapped with. measures the execute calls
+	protected static class StatementTimer implements InvocationHandler
+	{
+		protected final DBConnectionMetrics mMetrics;
+		protected final Statement mStatement;
+		protected final String mSql;
+		protected final Connection mConnectionProxy;
+
+		protected StatementTimer(DBConnectionMetrics aMetrics, Statement aStatement, String aSql, Connection aConnectionProxy)
+		{
+			mMetrics = aMetrics;
+			mStatement = aStatement;
+			mSql = aSql;
+			mConnectionProxy = aConnectionProxy;
+		}
+
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs)
+			throws Throwable
+		{
+			String methodName = aMethod.getName();
+			if (methodName.equals("getConnection"))
+			{
+				return mConnectionProxy;
+			}
+			else if (methodName.equals("equals"))
+			{
+				return aProxy == aArgs[0];
+			}
+			else if (methodName.equals("hashCode"))
+			{
+				return System.identityHashCode(aProxy);
+			}
+
+			if (!methodName.startsWith("execute"))
+			{
+				try
+				{
+					return aMethod.invoke(mStatement, aArgs);
+				}
+				catch (InvocationTargetException ite)
+				{
+					throw ite.getCause();
+				}
+			}
+
+			//a plain statement gets its SQL on execution
+			String sql = (aArgs != null && aArgs.length > 0 && aArgs[0] instanceof String) ? (String)aArgs[0] : mSql;
+			long start = System.nanoTime();
+			boolean failed = true;
+			try
+			{
+				Object result = aMethod.invoke(mStatement, aArgs);
+				failed = false;
+				return result;
+			}
+			catch (InvocationTargetException ite)
+			{
+				throw ite.getCause();
+			}
+			finally
+			{
+				mMetrics.statementExecuted(sql, System.nanoTime() - start, failed);
+			}
+		}
+	}
+}
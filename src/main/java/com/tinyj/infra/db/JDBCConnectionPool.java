@@ -0,0 +1,829 @@
+package com.tinyj.infra.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.tinyj.infra.exception.DBConnectionException;
+import com.tinyj.infra.exception.DBPoolExhaustedException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * a pool of JDBC connections, used by the DBConnectionManager when it connects using pure JDBC.
+ *
+ * the idle connections are kept in a lock-free stack, so the most recently returned connection is lent first.
+ * the number of lent connections is bounded by a semaphore holding a permit per connection, so a borrower
+ * waits (up to the borrow timeout) only when all the connections are lent. every connection that is not in the
+ * idle stack is held with a permit, so a borrower that holds a permit and finds no idle connection can open a
+ * new one without exceeding the maximal size.
+ *
+ * the connections are lent wrapped in a proxy whose <i>close()</i> returns the connection to the pool.
+ * a connection whose max lifetime passed is closed instead of being lent or returned to the pool.
+ * a connection returned with a transaction in progress is rolled back and set back to auto commit.
+ *
+ * every connection caches its prepared statements (created by <i>prepareStatement(sql)</i>) by their SQL, up to the
+ * statement cache size, evicting the least recently used statement. a cached statement is lent wrapped in a proxy
+ * whose <i>close()</i> closes its last result set, clears its parameters and keeps it in the cache, so preparing the same SQL again on the same
+ * connection does not parse it again. a statement that is still open when its SQL is prepared again is not shared;
+ * a new uncached statement is prepared instead.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class JDBCConnectionPool
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(JDBCConnectionPool.class);
+
+	protected final Driver mDriver;
+	protected final String mDBUrl;
+	protected final Properties mConnectionProperties;
+	protected final JDBCConnectionPoolConfig mConfig;
+
+	//the top of the idle connections stack
+	protected final AtomicReference<IdleNode> mIdleTop = new AtomicReference<IdleNode>();
+
+	//a permit for every connection that may be lent
+	protected final Semaphore mAvailablePermits;
+
+	//the number of open connections, lent and idle
+	protected final AtomicInteger mOpenConnections = new AtomicInteger();
+	protected final AtomicInteger mIdleConnections = new AtomicInteger();
+
+	//the hits and misses of the prepared statements caches of all the connections
+	protected final LongAdder mStatementCacheHits = new LongAdder();
+	protected final LongAdder mStatementCacheMisses = new LongAdder();
+
+	protected final AtomicBoolean mClosed = new AtomicBoolean();
+	protected ScheduledExecutorService mHousekeeper;
+
+
+	/**
+	 * creates a pool, and opens its minimal connections
+	 *
+	 * @param aDriver the JDBC driver
+	 * @param aDBUrl the URL of the DB
+	 * @param aConnectionProperties the properties to connect with (user and password)
+	 * @param aConfig the settings of the pool
+	 */
+	public JDBCConnectionPool(Driver aDriver, String aDBUrl, Properties aConnectionProperties, JDBCConnectionPoolConfig aConfig)
+	{
+		if (aConfig.getMaxSize() < 1 || aConfig.getMinSize() > aConfig.getMaxSize())
+		{
+			throw new IllegalArgumentException("Illegal pool sizes: " + aConfig);
+		}
+
+		mDriver = aDriver;
+		mDBUrl = aDBUrl;
+		mConnectionProperties = aConnectionProperties;
+		mConfig = aConfig;
+		mAvailablePermits = new Semaphore(aConfig.getMaxSize());
+
+		fillToMinSize();
+
+		if (aConfig.getHousekeepingIntervalMillis() > 0)
+		{
+			mHousekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable aRunnable)
+				{
+					Thread thread = new Thread(aRunnable, "JDBCConnectionPool-Housekeeper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			mHousekeeper.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						evictExpiredConnections();
+						fillToMinSize();
+					}
+					catch (Throwable t)
+					{
+						sLogger.error("JDBCConnectionPool housekeeping failed.", t);
+					}
+				}
+			}, aConfig.getHousekeepingIntervalMillis(), aConfig.getHousekeepingIntervalMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * borrows a connection from the pool. the connection must be closed in order to return it to the pool.
+	 *
+	 * @return a pooled connection
+	 *
+	 * @throws DBPoolExhaustedException when no connection was available during the borrow timeout
+	 * @throws DBConnectionException when a new connection could not be opened
+	 */
+	public Connection borrowConnection()
+		throws DBConnectionException
+	{
+		if (mClosed.get())
+		{
+			throw new DBConnectionException("The connection pool of " + mDBUrl + " is closed.");
+		}
+
+		try
+		{
+			if (!mAvailablePermits.tryAcquire(mConfig.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS))
+			{
+				throw new DBPoolExhaustedException("Timed out after " + mConfig.getBorrowTimeoutMillis() +
+						" ms waiting for a connection to " + mDBUrl + ". all the " + mConfig.getMaxSize() + " connections are in use.");
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new DBConnectionException("Interrupted while waiting for a connection to " + mDBUrl + ".");
+		}
+
+		try
+		{
+			PooledConnection pooledConnection = takeIdleConnection();
+			if (pooledConnection == null)
+			{
+				//holding a permit means there is room for another connection
+				pooledConnection = openConnection();
+			}
+
+			return pooledConnection.lend(this);
+		}
+		catch (DBConnectionException dbce)
+		{
+			mAvailablePermits.release();
+			throw dbce;
+		}
+		catch (RuntimeException re)
+		{
+			mAvailablePermits.release();
+			throw re;
+		}
+	}
+
+
+	//pops idle connections until a usable one is found. the unusable ones are closed
+	protected PooledConnection takeIdleConnection()
+	{
+		PooledConnection pooledConnection;
+		while ((pooledConnection = popIdle()) != null)
+		{
+			if (isExpired(pooledConnection))
+			{
+				destroy(pooledConnection);
+			}
+			else if (mConfig.isValidateOnBorrow() && !isValid(pooledConnection))
+			{
+				sLogger.warn("Closing an invalid pooled connection to " + mDBUrl + ".");
+				destroy(pooledConnection);
+			}
+			else
+			{
+				return pooledConnection;
+			}
+		}
+
+		return null;
+	}
+
+
+	protected PooledConnection openConnection()
+		throws DBConnectionException
+	{
+		mOpenConnections.incrementAndGet();
+		try
+		{
+			Connection con = mDriver.connect(mDBUrl, mConnectionProperties);
+			if (con == null)
+			{
+				throw new SQLException("The driver does not accept the URL " + mDBUrl);
+			}
+			return new PooledConnection(con, mConfig.getStatementCacheSize());
+		}
+		catch (SQLException sqle)
+		{
+			mOpenConnections.decrementAndGet();
+			String errMsg = "Could not get DB conenction from URL " + mDBUrl + ".";
+			sLogger.fatal(errMsg, sqle);
+			throw new DBConnectionException(errMsg);
+		}
+	}
+
+
+	/**
+	 * returns a lent connection to the pool. called when the proxy of the connection is closed.
+	 *
+	 * @param aPooledConnection the connection
+	 */
+	protected void returnConnection(PooledConnection aPooledConnection)
+	{
+		try
+		{
+			if (mClosed.get() || isExpired(aPooledConnection) || !reset(aPooledConnection))
+			{
+				destroy(aPooledConnection);
+			}
+			else
+			{
+				pushIdle(aPooledConnection);
+			}
+		}
+		finally
+		{
+			mAvailablePermits.release();
+		}
+	}
+
+
+	//prepares a returned connection for the next borrower. returns false if the connection is not usable
+	protected boolean reset(PooledConnection aPooledConnection)
+	{
+		Connection con = aPooledConnection.mConnection;
+		try
+		{
+			if (con.isClosed())
+			{
+				return false;
+			}
+
+			if (!con.getAutoCommit())
+			{
+				con.rollback();
+				con.setAutoCommit(true);
+			}
+			con.clearWarnings();
+			aPooledConnection.releaseCachedStatements();
+			return true;
+		}
+		catch (SQLException sqle)
+		{
+			sLogger.warn("Could not reset a returned connection to " + mDBUrl + ". closing it.", sqle);
+			return false;
+		}
+	}
+
+
+	protected boolean isExpired(PooledConnection aPooledConnection)
+	{
+		return mConfig.getMaxLifetimeMillis() > 0 &&
+				System.currentTimeMillis() - aPooledConnection.mCreationTime >= mConfig.getMaxLifetimeMillis();
+	}
+
+
+	protected boolean isValid(PooledConnection aPooledConnection)
+	{
+		try
+		{
+			return aPooledConnection.mConnection.isValid(mConfig.getValidationTimeoutSeconds());
+		}
+		catch (SQLException sqle)
+		{
+			return false;
+		}
+	}
+
+
+	protected void destroy(PooledConnection aPooledConnection)
+	{
+		mOpenConnections.decrementAndGet();
+		try
+		{
+			aPooledConnection.mConnection.close();
+		}
+		catch (SQLException sqle)
+		{
+			sLogger.warn("Error closing pooled connection.", sqle);
+		}
+	}
+
+
+	/**
+	 * closes the idle connections whose max lifetime passed
+	 */
+	public void evictExpiredConnections()
+	{
+		//the idle connections are taken out of the stack and the live ones are pushed back.
+		//every connection out of the stack is held with a permit, so a borrower that finds the stack
+		//empty meanwhile never opens a connection beyond the maximal size
+		int idleCount = mIdleConnections.get();
+		for (int i=0 ; i<idleCount ; ++i)
+		{
+			if (!mAvailablePermits.tryAcquire())
+			{
+				return;
+			}
+
+			try
+			{
+				PooledConnection pooledConnection = popIdle();
+				if (pooledConnection == null)
+				{
+					return;
+				}
+
+				if (isExpired(pooledConnection))
+				{
+					destroy(pooledConnection);
+				}
+				else
+				{
+					pushIdle(pooledConnection);
+				}
+			}
+			finally
+			{
+				mAvailablePermits.release();
+			}
+		}
+	}
+
+
+	/**
+	 * opens idle connections until the pool holds its minimal number of connections
+	 */
+	public void fillToMinSize()
+	{
+		while (!mClosed.get() && mOpenConnections.get() < mConfig.getMinSize())
+		{
+			//a permit is taken so the new connection never exceeds the maximal size
+			if (!mAvailablePermits.tryAcquire())
+			{
+				return;
+			}
+
+			try
+			{
+				pushIdle(openConnection());
+			}
+			catch (DBConnectionException dbce)
+			{
+				sLogger.warn("Could not open the minimal connections to " + mDBUrl + ". will try again later.");
+				return;
+			}
+			finally
+			{
+				mAvailablePermits.release();
+			}
+		}
+	}
+
+
+	/**
+	 * closes the pool and its idle connections. the lent connections are closed when they are returned.
+	 */
+	public void close()
+	{
+		if (!mClosed.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		if (mHousekeeper != null)
+		{
+			mHousekeeper.shutdownNow();
+		}
+
+		PooledConnection pooledConnection;
+		while ((pooledConnection = popIdle()) != null)
+		{
+			destroy(pooledConnection);
+		}
+	}
+
+
+	protected void pushIdle(PooledConnection aPooledConnection)
+	{
+		IdleNode node = new IdleNode(aPooledConnection);
+		IdleNode top;
+		do
+		{
+			top = mIdleTop.get();
+			node.mNext = top;
+		}
+		while (!mIdleTop.compareAndSet(top, node));
+
+		mIdleConnections.incrementAndGet();
+	}
+
+
+	//a new node is allocated for every push, so a node is never reused and the stack is not exposed to the ABA problem
+	protected PooledConnection popIdle()
+	{
+		IdleNode top;
+		do
+		{
+			top = mIdleTop.get();
+			if (top == null)
+			{
+				return null;
+			}
+		}
+		while (!mIdleTop.compareAndSet(top, top.mNext));
+
+		mIdleConnections.decrementAndGet();
+		return top.mPooledConnection;
+	}
+
+
+	/**
+	 * @return the number of prepared statements that were taken from the statements caches
+	 */
+	public long getStatementCacheHits()
+	{
+		return mStatementCacheHits.sum();
+	}
+
+
+	/**
+	 * @return the number of prepared statements that were prepared because they were not in the statements caches
+	 */
+	public long getStatementCacheMisses()
+	{
+		return mStatementCacheMisses.sum();
+	}
+
+
+	/**
+	 * @return the number of open connections, lent and idle
+	 */
+	public int getOpenConnections()
+	{
+		return mOpenConnections.get();
+	}
+
+
+	/**
+	 * @return the number of idle connections
+	 */
+	public int getIdleConnections()
+	{
+		return mIdleConnections.get();
+	}
+
+
+	/**
+	 * @return the number of lent connections
+	 */
+	public int getLentConnections()
+	{
+		return mConfig.getMaxSize() - mAvailablePermits.availablePermits();
+	}
+
+
+	public JDBCConnectionPoolConfig getConfig()
+	{
+		return mConfig;
+	}
+
+
+	public String toString()
+	{
+		return "JDBCConnectionPool [url=" + mDBUrl + ", open=" + getOpenConnections() + ", idle=" + getIdleConnections() +
+				", lent=" + getLentConnections() + ", statementCacheHits=" + getStatementCacheHits() +
+				", statementCacheMisses=" + getStatementCacheMisses() + ", " + mConfig + "]";
+	}
+
+
+
+	/////////IdleNode class ////////////////////
+	protected static final class IdleNode
+	{
+		protected final PooledConnection mPooledConnection;
+		protected IdleNode mNext;
+
+		protected IdleNode(PooledConnection aPooledConnection)
+		{
+			mPooledConnection = aPooledConnection;
+		}
+	}
+
+
+
+	/////////PooledConnection class ////////////////////
+	//a physical connection held by the pool, and its prepared statements cache
+	protected static class PooledConnection
+	{
+		protected final Connection mConnection;
+		protected final long mCreationTime;
+		protected final int mStatementCacheSize;
+
+		//the cached statements by their SQL, in an access order, so the eldest is the least recently used
+		protected final LinkedHashMap<String, CachedStatement> mStatementCache;
+
+		protected PooledConnection(Connection aConnection, int aStatementCacheSize)
+		{
+			mConnection = aConnection;
+			mCreationTime = System.currentTimeMillis();
+			mStatementCacheSize = aStatementCacheSize;
+			mStatementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> aEldest)
+				{
+					if (size() <= mStatementCacheSize)
+					{
+						return false;
+					}
+
+					aEldest.getValue().evict();
+					return true;
+				}
+			};
+		}
+
+		protected Connection lend(JDBCConnectionPool aPool)
+		{
+			return (Connection)Proxy.newProxyInstance(JDBCConnectionPool.class.getClassLoader(), new Class<?>[] {Connection.class},
+					new ConnectionLease(aPool, this));
+		}
+
+		//returns the cached statement of the given SQL, preparing and caching it if needed
+		protected synchronized PreparedStatement prepareCachedStatement(String aSql, Connection aConnectionProxy, JDBCConnectionPool aPool)
+			throws SQLException
+		{
+			if (mStatementCacheSize <= 0)
+			{
+				return mConnection.prepareStatement(aSql);
+			}
+
+			CachedStatement cachedStatement = mStatementCache.get(aSql);
+			if (cachedStatement != null && !cachedStatement.mInUse)
+			{
+				aPool.mStatementCacheHits.increment();
+				return cachedStatement.lend(aConnectionProxy);
+			}
+
+			aPool.mStatementCacheMisses.increment();
+			PreparedStatement statement = mConnection.prepareStatement(aSql);
+			if (cachedStatement != null)
+			{
+				//the cached statement of this SQL is still open, so it cannot be shared
+				return statement;
+			}
+
+			cachedStatement = new CachedStatement(this, statement);
+			mStatementCache.put(aSql, cachedStatement);
+			return cachedStatement.lend(aConnectionProxy);
+		}
+
+		//makes the statements that were left open by the previous borrower available to the next one
+		protected synchronized void releaseCachedStatements()
+		{
+			Iterator<CachedStatement> iterator = mStatementCache.values().iterator();
+			while (iterator.hasNext())
+			{
+				CachedStatement cachedStatement = iterator.next();
+				if (cachedStatement.mInUse && !cachedStatement.release())
+				{
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+
+
+	/////////CachedStatement class ////////////////////
+	//a cached prepared statement, and the handler of the proxy it is lent with. closing the proxy
+	//keeps the statement in the cache, unless it was evicted from the cache while it was lent
+	protected static class CachedStatement implements InvocationHandler
+	{
+		protected final PooledConnection mPooledConnection;
+		protected final PreparedStatement mStatement;
+		protected boolean mInUse;
+		protected boolean mEvicted;
+		protected Connection mConnectionProxy;
+		protected PreparedStatement mProxy;
+
+		//the last result set returned by the statement. closed when the statement is released,
+		//like closing a statement closes its result set
+		protected ResultSet mResultSet;
+
+		protected CachedStatement(PooledConnection aPooledConnection, PreparedStatement aStatement)
+		{
+			mPooledConnection = aPooledConnection;
+			mStatement = aStatement;
+		}
+
+		//called while holding the lock of the pooled connection
+		protected PreparedStatement lend(Connection aConnectionProxy)
+		{
+			mInUse = true;
+			mConnectionProxy = aConnectionProxy;
+			mProxy = (PreparedStatement)Proxy.newProxyInstance(JDBCConnectionPool.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, this);
+			return mProxy;
+		}
+
+		//clears the state of the statement so it can be lent again. returns false if the statement is not usable
+		//called while holding the lock of the pooled connection
+		protected boolean release()
+		{
+			mInUse = false;
+			mProxy = null;
+			try
+			{
+				closeResultSet();
+				mStatement.clearParameters();
+				mStatement.clearBatch();
+				mStatement.clearWarnings();
+				mStatement.setQueryTimeout(0);
+				mStatement.setMaxRows(0);
+				mStatement.setFetchSize(0);
+				return true;
+			}
+			catch (SQLException sqle)
+			{
+				evict();
+				return false;
+			}
+		}
+
+		//called while holding the lock of the pooled connection, when the statement is removed from the cache
+		protected void evict()
+		{
+			mEvicted = true;
+			if (!mInUse)
+			{
+				closeStatement();
+			}
+		}
+
+		protected void closeResultSet()
+			throws SQLException
+		{
+			ResultSet resultSet = mResultSet;
+			mResultSet = null;
+			if (resultSet != null && !resultSet.isClosed())
+			{
+				resultSet.close();
+			}
+		}
+
+		protected void closeStatement()
+		{
+			mResultSet = null;
+			try
+			{
+				mStatement.close();
+			}
+			catch (SQLException sqle)
+			{
+				sLogger.warn("Error closing cached PreparedStatement.", sqle);
+			}
+		}
+
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs)
+			throws Throwable
+		{
+			String methodName = aMethod.getName();
+			if (methodName.equals("close"))
+			{
+				synchronized (mPooledConnection)
+				{
+					//a proxy of a previous lend may be closed after the statement was released
+					if (aProxy == mProxy)
+					{
+						if (mEvicted)
+						{
+							mInUse = false;
+							closeStatement();
+						}
+						else if (!release())
+						{
+							mPooledConnection.mStatementCache.values().remove(this);
+						}
+					}
+				}
+				return null;
+			}
+			else if (methodName.equals("isClosed"))
+			{
+				return aProxy != mProxy || mStatement.isClosed();
+			}
+			else if (methodName.equals("getConnection"))
+			{
+				return mConnectionProxy;
+			}
+			else if (methodName.equals("equals"))
+			{
+				return aProxy == aArgs[0];
+			}
+			else if (methodName.equals("hashCode"))
+			{
+				return System.identityHashCode(aProxy);
+			}
+			else if (methodName.equals("toString"))
+			{
+				return "Cached[" + mStatement + "]";
+			}
+			else if (aProxy != mProxy)
+			{
+				throw new SQLException("The statement was closed.");
+			}
+
+			try
+			{
+				Object result = aMethod.invoke(mStatement, aArgs);
+				if (result instanceof ResultSet)
+				{
+					mResultSet = (ResultSet)result;
+				}
+				return result;
+			}
+			catch (InvocationTargetException ite)
+			{
+				throw ite.getCause();
+			}
+		}
+	}
+
+
+
+	/////////ConnectionLease class ////////////////////
+	//the handler of the proxy a connection is lent with. closing the proxy returns the connection to the pool,
+	//and the proxy cannot be used after it was closed
+	protected static class ConnectionLease implements InvocationHandler
+	{
+		protected final JDBCConnectionPool mPool;
+		protected final PooledConnection mPooledConnection;
+		protected final AtomicBoolean mReturned = new AtomicBoolean();
+
+		protected ConnectionLease(JDBCConnectionPool aPool, PooledConnection aPooledConnection)
+		{
+			mPool = aPool;
+			mPooledConnection = aPooledConnection;
+		}
+
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs)
+			throws Throwable
+		{
+			String methodName = aMethod.getName();
+			if (methodName.equals("close"))
+			{
+				if (mReturned.compareAndSet(false, true))
+				{
+					mPool.returnConnection(mPooledConnection);
+				}
+				return null;
+			}
+			else if (methodName.equals("isClosed"))
+			{
+				return mReturned.get() || mPooledConnection.mConnection.isClosed();
+			}
+			else if (methodName.equals("equals"))
+			{
+				return aProxy == aArgs[0];
+			}
+			else if (methodName.equals("hashCode"))
+			{
+				return System.identityHashCode(aProxy);
+			}
+			else if (methodName.equals("toString"))
+			{
+				return "Pooled[" + mPooledConnection.mConnection + "]";
+			}
+			else if (mReturned.get())
+			{
+				throw new SQLException("The connection was closed (returned to the pool).");
+			}
+			else if (methodName.equals("prepareStatement") && aArgs.length == 1)
+			{
+				return mPooledConnection.prepareCachedStatement((String)aArgs[0], (Connection)aProxy, mPool);
+			}
+
+			try
+			{
+				return aMethod.invoke(mPooledConnection.mConnection, aArgs);
+			}
+			catch (InvocationTargetException ite)
+			{
+				throw ite.getCause();
+			}
+		}
+	}
+}
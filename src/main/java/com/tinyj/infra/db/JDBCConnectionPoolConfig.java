@@ -0,0 +1,148 @@
+package com.tinyj.infra.db;
+
+
+/**
+ * the settings of a JDBCConnectionPool. the defaults are used for every setting that is not set.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class JDBCConnectionPoolConfig
+{
+	public static final int DEFAULT_MIN_SIZE = 0;
+	public static final int DEFAULT_MAX_SIZE = 10;
+	public static final boolean DEFAULT_VALIDATE_ON_BORROW = true;
+	public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 5;
+	public static final long DEFAULT_MAX_LIFETIME_MILLIS = 30 * 60 * 1000L;
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30 * 1000L;
+	public static final long DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS = 30 * 1000L;
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+	//the number of connections the pool opens on creation, and keeps open
+	protected int mMinSize = DEFAULT_MIN_SIZE;
+
+	//the maximal number of connections the pool opens
+	protected int mMaxSize = DEFAULT_MAX_SIZE;
+
+	//whether an idle connection is validated before it is lent, and the time to wait for the validation
+	protected boolean mValidateOnBorrow = DEFAULT_VALIDATE_ON_BORROW;
+	protected int mValidationTimeoutSeconds = DEFAULT_VALIDATION_TIMEOUT_SECONDS;
+
+	//the maximal time a connection is kept open. 0 to keep connections open without a limit
+	protected long mMaxLifetimeMillis = DEFAULT_MAX_LIFETIME_MILLIS;
+
+	//the maximal time to wait for a connection when all the connections are lent
+	protected long mBorrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+
+	//the interval of closing the expired idle connections and opening the missing minimal connections. 0 to disable
+	protected long mHousekeepingIntervalMillis = DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS;
+
+	//the maximal number of prepared statements cached per connection. 0 to disable the statements cache
+	protected int mStatementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+
+	public int getMinSize()
+	{
+		return mMinSize;
+	}
+
+
+	public void setMinSize(int aMinSize)
+	{
+		mMinSize = aMinSize;
+	}
+
+
+	public int getMaxSize()
+	{
+		return mMaxSize;
+	}
+
+
+	public void setMaxSize(int aMaxSize)
+	{
+		mMaxSize = aMaxSize;
+	}
+
+
+	public boolean isValidateOnBorrow()
+	{
+		return mValidateOnBorrow;
+	}
+
+
+	public void setValidateOnBorrow(boolean aValidateOnBorrow)
+	{
+		mValidateOnBorrow = aValidateOnBorrow;
+	}
+
+
+	public int getValidationTimeoutSeconds()
+	{
+		return mValidationTimeoutSeconds;
+	}
+
+
+	public void setValidationTimeoutSeconds(int aValidationTimeoutSeconds)
+	{
+		mValidationTimeoutSeconds = aValidationTimeoutSeconds;
+	}
+
+
+	public long getMaxLifetimeMillis()
+	{
+		return mMaxLifetimeMillis;
+	}
+
+
+	public void setMaxLifetimeMillis(long aMaxLifetimeMillis)
+	{
+		mMaxLifetimeMillis = aMaxLifetimeMillis;
+	}
+
+
+	public long getBorrowTimeoutMillis()
+	{
+		return mBorrowTimeoutMillis;
+	}
+
+
+	public void setBorrowTimeoutMillis(long aBorrowTimeoutMillis)
+	{
+		mBorrowTimeoutMillis = aBorrowTimeoutMillis;
+	}
+
+
+	public long getHousekeepingIntervalMillis()
+	{
+		return mHousekeepingIntervalMillis;
+	}
+
+
+	public void setHousekeepingIntervalMillis(long aHousekeepingIntervalMillis)
+	{
+		mHousekeepingIntervalMillis = aHousekeepingIntervalMillis;
+	}
+
+
+	public int getStatementCacheSize()
+	{
+		return mStatementCacheSize;
+	}
+
+
+	public void setStatementCacheSize(int aStatementCacheSize)
+	{
+		mStatementCacheSize = aStatementCacheSize;
+	}
+
+
+	public String toString()
+	{
+		return "JDBCConnectionPoolConfig [minSize=" + mMinSize + ", maxSize=" + mMaxSize +
+				", validateOnBorrow=" + mValidateOnBorrow + ", validationTimeoutSeconds=" + mValidationTimeoutSeconds +
+				", maxLifetimeMillis=" + mMaxLifetimeMillis + ", borrowTimeoutMillis=" + mBorrowTimeoutMillis +
+				", housekeepingIntervalMillis=" + mHousekeepingIntervalMillis +
+				", statementCacheSize=" + mStatementCacheSize + "]";
+	}
+}
@@ -0,0 +1,589 @@
+package com.tinyj.infra.db;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * caches the results of queries (see DBConnectionManager.enableResultCache()).
+ *
+ * a result is cached by the SQL of the query, its parameters and the identity of its result: a name given by the caller,
+ * or the row mapper itself (so the same query mapped differently is cached separately). a cached result expires after the <i>TTL</i>, and the least recently used
+ * results are evicted when the estimated size of all the results passes the <i>maximal size</i>, or their number passes the
+ * <i>maximal results</i>.
+ * the size of a result is estimated from its mapped rows: strings, numbers, byte arrays, arrays, collections and maps
+ * are measured, and any other object (for ex: a row mapped to a domain object) is estimated by the given RowSizeEstimator,
+ * or counted as DEFAULT_OBJECT_SIZE bytes when there is none. so without an estimator, the maximal size bounds only the results
+ * of such rows, and the maximal results is the bound of the results of domain objects.
+ *
+ * the tables the results depend on are registered. a result depends on the registered tables its SQL mentions, and
+ * is invalidated when a write through the same connection manager mentions one of them. every registered table has
+ * a generation that a write increments, so a query that ran while its table was written is not cached.
+ * the time of the last write of every registered table is kept too, so a result of a table written within the last TTL
+ * can be read from the primary instead of a replica that may not have seen the write yet (see wasWrittenWithinTtl()).
+ *
+ * the hits, misses, evictions and invalidations are counted for tuning the TTL and the size.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class QueryResultCache
+{
+	//the estimated size of an object that is not measured
+	public static final int DEFAULT_OBJECT_SIZE = 64;
+
+	protected final long mTtlNanos;
+	protected final long mMaxBytes;
+	protected final int mMaxResults;
+
+	//estimates the objects that are not measured. null to count them as DEFAULT_OBJECT_SIZE
+	protected final RowSizeEstimator mSizeEstimator;
+
+	//the cached results, in an access order. guarded by itself
+	protected final LinkedHashMap<CacheKey, CacheEntry> mEntries = new LinkedHashMap<CacheKey, CacheEntry>(64, 0.75f, true);
+	protected long mBytes;
+
+	//the keys of the results that depend on each registered table. guarded by mEntries
+	protected final Map<String, Set<CacheKey>> mKeysByTable = new HashMap<String, Set<CacheKey>>();
+
+	//the generation of each registered table (lower case). never changes after creation, so it is read without a lock
+	protected final Map<String, AtomicLong> mTableGenerations;
+
+	//the System.nanoTime() of the last write of each registered table (lower case). never changes after creation
+	protected final Map<String, AtomicLong> mTableWriteNanos;
+
+	protected final LongAdder mHits = new LongAdder();
+	protected final LongAdder mMisses = new LongAdder();
+	protected final LongAdder mPuts = new LongAdder();
+	protected final LongAdder mEvictions = new LongAdder();
+	protected final LongAdder mExpirations = new LongAdder();
+	protected final LongAdder mInvalidations = new LongAdder();
+
+
+	/**
+	 * creates a cache without a limit on the number of the results, which counts the objects that are not measured as
+	 * DEFAULT_OBJECT_SIZE bytes
+	 *
+	 * @param aTtlMillis the time a result is cached
+	 * @param aMaxBytes the maximal estimated size of all the cached results
+	 * @param aTables the tables whose writes invalidate the results that mention them
+	 */
+	public QueryResultCache(long aTtlMillis, long aMaxBytes, Collection<String> aTables)
+	{
+		this(aTtlMillis, aMaxBytes, Integer.MAX_VALUE, null, aTables);
+	}
+
+
+	/**
+	 * creates a cache
+	 *
+	 * @param aTtlMillis the time a result is cached
+	 * @param aMaxBytes the maximal estimated size of all the cached results
+	 * @param aMaxResults the maximal number of the cached results
+	 * @param aSizeEstimator estimates the objects that are not strings, numbers, arrays, collections or maps. null to count
+	 * them as DEFAULT_OBJECT_SIZE bytes
+	 * @param aTables the tables whose writes invalidate the results that mention them
+	 */
+	public QueryResultCache(long aTtlMillis, long aMaxBytes, int aMaxResults, RowSizeEstimator aSizeEstimator, Collection<String> aTables)
+	{
+		mTtlNanos = aTtlMillis * 1000000L;
+		mMaxBytes = aMaxBytes;
+		mMaxResults = aMaxResults;
+		mSizeEstimator = aSizeEstimator;
+
+		Map<String, AtomicLong> tableGenerations = new HashMap<String, AtomicLong>();
+		Map<String, AtomicLong> tableWriteNanos = new HashMap<String, AtomicLong>();
+		long neverWritten = System.nanoTime() - mTtlNanos;
+		for (String table:aTables)
+		{
+			tableGenerations.put(table.toLowerCase(), new AtomicLong());
+			tableWriteNanos.put(table.toLowerCase(), new AtomicLong(neverWritten));
+		}
+		mTableGenerations = Collections.unmodifiableMap(tableGenerations);
+		mTableWriteNanos = Collections.unmodifiableMap(tableWriteNanos);
+	}
+
+
+	/**
+	 * returns a cached result
+	 *
+	 * @param aKey the key of the query
+	 *
+	 * @return the cached rows, or null if the result is not cached or expired
+	 */
+	public List<?> get(CacheKey aKey)
+	{
+		synchronized (mEntries)
+		{
+			CacheEntry entry = mEntries.get(aKey);
+			if (entry != null && System.nanoTime() - entry.mExpirationNanos >= 0)
+			{
+				removeEntry(aKey);
+				mExpirations.increment();
+				entry = null;
+			}
+
+			if (entry == null)
+			{
+				mMisses.increment();
+				return null;
+			}
+
+			mHits.increment();
+			return entry.mRows;
+		}
+	}
+
+
+	/**
+	 * returns the generations of the registered tables the given SQL mentions. should be taken before the query runs,
+	 * and passed to put() after it ends
+	 *
+	 * @param aSql the SQL of the query
+	 *
+	 * @return the generations, by the tables
+	 */
+	public Map<String, Long> getGenerations(String aSql)
+	{
+		Set<String> tables = getMentionedTables(aSql);
+		if (tables.isEmpty())
+		{
+			return Collections.emptyMap();
+		}
+
+		Map<String, Long> generations = new HashMap<String, Long>();
+		for (String table:tables)
+		{
+			generations.put(table, mTableGenerations.get(table).get());
+		}
+		return generations;
+	}
+
+
+	/**
+	 * checks whether one of the given tables was written within the last TTL. a result of such a table that is read from
+	 * a lagging replica may miss the write, and would be cached for a whole TTL after it
+	 *
+	 * @param aTables the registered tables of the query (for ex: the keys of getGenerations())
+	 *
+	 * @return true if one of the tables was written (or invalidated) within the last TTL
+	 */
+	public boolean wasWrittenWithinTtl(Collection<String> aTables)
+	{
+		long now = System.nanoTime();
+		for (String table:aTables)
+		{
+			AtomicLong writeNanos = mTableWriteNanos.get(table);
+			if (writeNanos != null && now - writeNanos.get() < mTtlNanos)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * caches a result. the result is not cached if one of its tables was written since the given generations were taken
+	 *
+	 * @param aKey the key of the query
+	 * @param aRows the rows of the result. should not be changed after it is cached
+	 * @param aGenerations the generations of the tables of the query, taken before the query ran
+	 */
+	public void put(CacheKey aKey, List<?> aRows, Map<String, Long> aGenerations)
+	{
+		long bytes = estimateSize(aKey.mSql) + estimateSize(aKey.mParams) + estimateSize(aRows);
+		if (bytes > mMaxBytes)
+		{
+			return;
+		}
+
+		synchronized (mEntries)
+		{
+			//the generations are checked while holding the lock, so an invalidation either happened before (and
+			//the result is dropped) or happens after (and removes the result)
+			for (Map.Entry<String, Long> generation:aGenerations.entrySet())
+			{
+				if (mTableGenerations.get(generation.getKey()).get() != generation.getValue())
+				{
+					return;
+				}
+			}
+
+			removeEntry(aKey);
+			mEntries.put(aKey, new CacheEntry(aRows, bytes, aGenerations.keySet(), System.nanoTime() + mTtlNanos));
+			mBytes += bytes;
+			for (String table:aGenerations.keySet())
+			{
+				Set<CacheKey> tableKeys = mKeysByTable.get(table);
+				if (tableKeys == null)
+				{
+					tableKeys = new HashSet<CacheKey>();
+					mKeysByTable.put(table, tableKeys);
+				}
+				tableKeys.add(aKey);
+			}
+			mPuts.increment();
+
+			//evict the least recently used results
+			Iterator<Map.Entry<CacheKey, CacheEntry>> entriesIterator = mEntries.entrySet().iterator();
+			while ((mBytes > mMaxBytes || mEntries.size() > mMaxResults) && entriesIterator.hasNext())
+			{
+				Map.Entry<CacheKey, CacheEntry> eldest = entriesIterator.next();
+				entriesIterator.remove();
+				forgetEntry(eldest.getKey(), eldest.getValue());
+				mEvictions.increment();
+			}
+		}
+	}
+
+
+	/**
+	 * invalidates the results that depend on the registered tables the given write mentions.
+	 * should be called after the write is committed
+	 *
+	 * @param aSql the SQL of the write
+	 */
+	public void writeExecuted(String aSql)
+	{
+		for (String table:getMentionedTables(aSql))
+		{
+			invalidateTable(table);
+		}
+	}
+
+
+	/**
+	 * invalidates the results that depend on the given table
+	 *
+	 * @param aTable the registered table
+	 */
+	public void invalidateTable(String aTable)
+	{
+		String table = aTable.toLowerCase();
+		AtomicLong generation = mTableGenerations.get(table);
+		if (generation == null)
+		{
+			return;
+		}
+
+		synchronized (mEntries)
+		{
+			generation.incrementAndGet();
+			mTableWriteNanos.get(table).set(System.nanoTime());
+			Set<CacheKey> tableKeys = mKeysByTable.remove(table);
+			if (tableKeys != null)
+			{
+				for (CacheKey key:tableKeys)
+				{
+					if (removeEntry(key))
+					{
+						mInvalidations.increment();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * invalidates all the cached results
+	 */
+	public void invalidateAll()
+	{
+		synchronized (mEntries)
+		{
+			for (AtomicLong generation:mTableGenerations.values())
+			{
+				generation.incrementAndGet();
+			}
+			long now = System.nanoTime();
+			for (AtomicLong writeNanos:mTableWriteNanos.values())
+			{
+				writeNanos.set(now);
+			}
+			mInvalidations.add(mEntries.size());
+			mEntries.clear();
+			mKeysByTable.clear();
+			mBytes = 0;
+		}
+	}
+
+
+	//removes an entry and its tables index. should be called while holding the lock
+	protected boolean removeEntry(CacheKey aKey)
+	{
+		CacheEntry entry = mEntries.remove(aKey);
+		if (entry == null)
+		{
+			return false;
+		}
+
+		forgetEntry(aKey, entry);
+		return true;
+	}
+
+
+	//forgets an entry that was removed from the entries. should be called while holding the lock
+	protected void forgetEntry(CacheKey aKey, CacheEntry aEntry)
+	{
+		mBytes -= aEntry.mBytes;
+		for (String table:aEntry.mTables)
+		{
+			Set<CacheKey> tableKeys = mKeysByTable.get(table);
+			if (tableKeys != null)
+			{
+				tableKeys.remove(aKey);
+			}
+		}
+	}
+
+
+	//returns the registered tables whose names appear as words in the given SQL
+	protected Set<String> getMentionedTables(String aSql)
+	{
+		if (mTableGenerations.isEmpty())
+		{
+			return Collections.emptySet();
+		}
+
+		Set<String> tables = new HashSet<String>();
+		for (String word:aSql.toLowerCase().split("[^a-z0-9_$#]+"))
+		{
+			if (mTableGenerations.containsKey(word))
+			{
+				tables.add(word);
+			}
+		}
+		return tables;
+	}
+
+
+	protected long estimateSize(Object aObject)
+	{
+		if (aObject == null)
+		{
+			return 8;
+		}
+		if (aObject instanceof String)
+		{
+			return 40 + 2L * ((String)aObject).length();
+		}
+		if (aObject instanceof Number || aObject instanceof Boolean || aObject instanceof Character)
+		{
+			return 16;
+		}
+		if (aObject instanceof byte[])
+		{
+			return 16 + ((byte[])aObject).length;
+		}
+		if (aObject instanceof Object[])
+		{
+			long size = 16;
+			for (Object element:(Object[])aObject)
+			{
+				size += 8 + estimateSize(element);
+			}
+			return size;
+		}
+		if (aObject instanceof Collection)
+		{
+			long size = 40;
+			for (Object element:(Collection<?>)aObject)
+			{
+				size += 8 + estimateSize(element);
+			}
+			return size;
+		}
+		if (aObject instanceof Map)
+		{
+			long size = 48;
+			for (Map.Entry<?, ?> entry:((Map<?, ?>)aObject).entrySet())
+			{
+				size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+			}
+			return size;
+		}
+
+		return mSizeEstimator == null ? DEFAULT_OBJECT_SIZE : mSizeEstimator.estimateSize(aObject);
+	}
+
+
+	public long getHits()
+	{
+		return mHits.sum();
+	}
+
+
+	public long getMisses()
+	{
+		return mMisses.sum();
+	}
+
+
+	/**
+	 * @return the ratio of the hits to all the lookups, between 0 and 1
+	 */
+	public double getHitRate()
+	{
+		long hits = mHits.sum();
+		long lookups = hits + mMisses.sum();
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+
+
+	public long getPuts()
+	{
+		return mPuts.sum();
+	}
+
+
+	/**
+	 * @return the number of results evicted to keep the size under the maximal size, and the number under the maximal results
+	 */
+	public long getEvictions()
+	{
+		return mEvictions.sum();
+	}
+
+
+	public long getExpirations()
+	{
+		return mExpirations.sum();
+	}
+
+
+	/**
+	 * @return the number of results removed by writes to their tables, or by invalidateAll()
+	 */
+	public long getInvalidations()
+	{
+		return mInvalidations.sum();
+	}
+
+
+	public int getSize()
+	{
+		synchronized (mEntries)
+		{
+			return mEntries.size();
+		}
+	}
+
+
+	/**
+	 * @return the estimated size of all the cached results
+	 */
+	public long getBytes()
+	{
+		synchronized (mEntries)
+		{
+			return mBytes;
+		}
+	}
+
+
+	public long getMaxBytes()
+	{
+		return mMaxBytes;
+	}
+
+
+	public int getMaxResults()
+	{
+		return mMaxResults;
+	}
+
+
+	public long getTtlMillis()
+	{
+		return mTtlNanos / 1000000;
+	}
+
+
+	/**
+	 * @return the registered tables, in lower case
+	 */
+	public Set<String> getTables()
+	{
+		return mTableGenerations.keySet();
+	}
+
+
+	public String toString()
+	{
+		return "QueryResultCache [results=" + getSize() + ", bytes=" + getBytes() + " of " + mMaxBytes +
+				", hitRate=" + String.format("%.3f", getHitRate()) + ", hits=" + getHits() + ", misses=" + getMisses() +
+				", evictions=" + getEvictions() + ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations() + "]";
+	}
+
+
+
+	/////////CacheKey class ////////////////////
+	public static class CacheKey
+	{
+		protected final String mSql;
+		protected final Object[] mParams;
+		protected final Object mResultId;
+		protected final int mHashCode;
+
+		/**
+		 * @param aSql the SQL of the query
+		 * @param aParams the parameters of the query, or null
+		 * @param aResultId the identity of the mapped result (for ex: a name, or the row mapper), compared by equals()
+		 */
+		public CacheKey(String aSql, Object[] aParams, Object aResultId)
+		{
+			mSql = aSql;
+			mParams = aParams == null ? null : aParams.clone();
+			mResultId = aResultId;
+			mHashCode = (31 * aSql.hashCode() + Arrays.deepHashCode(mParams)) * 31 + aResultId.hashCode();
+		}
+
+		public int hashCode()
+		{
+			return mHashCode;
+		}
+
+		public boolean equals(Object aObject)
+		{
+			if (!(aObject instanceof CacheKey))
+			{
+				return false;
+			}
+
+			CacheKey other = (CacheKey)aObject;
+			return mHashCode == other.mHashCode && mSql.equals(other.mSql) && mResultId.equals(other.mResultId) &&
+					Arrays.deepEquals(mParams, other.mParams);
+		}
+	}
+
+
+
+	/////////CacheEntry class ////////////////////
+	protected static class CacheEntry
+	{
+		protected final List<?> mRows;
+		protected final long mBytes;
+		protected final Set<String> mTables;
+		protected final long mExpirationNanos;
+
+		protected CacheEntry(List<?> aRows, long aBytes, Set<String> aTables, long aExpirationNanos)
+		{
+			mRows = aRows;
+			mBytes = aBytes;
+			mTables = aTables;
+			mExpirationNanos = aExpirationNanos;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package com.tinyj.infra.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.tinyj.infra.exception.DBConnectionException;
+import com.tinyj.infra.exception.DBPoolExhaustedException;
+import com.tinyj.infra.log.BaseLoggerWrapper;
+import com.tinyj.infra.log.Log4jWrapper;
+
+
+/**
+ * routes the read only connections of a DBConnectionManager to its replicas (see DBConnectionManager.createReadOnlyDBConnection()).
+ *
+ * each replica is reached by its own DBConnectionManager (with its own pool). a replica is selected either in a round robin,
+ * or as the replica with the least connections in flight (acquired and not closed yet). the connections in flight are counted
+ * by wrapping each read only connection in a proxy, whose close() decrements the count of its replica. the connections
+ * are set read only (Connection.setReadOnly()), so a write sent to a replica fails.
+ *
+ * a replica whose connection acquisition fails is taken out of the rotation for the <i>unhealthy period</i>, and the
+ * next replica is tried. when the period passes, the replica is back in the rotation, and a failure takes it out again.
+ * when no replica is healthy, the read only connection is taken from the primary.
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ReplicaRouter
+{
+	private static final BaseLoggerWrapper sLogger = Log4jWrapper.getInstance().getLogger(ReplicaRouter.class);
+
+	public static final long DEFAULT_UNHEALTHY_PERIOD_MILLIS = 30 * 1000L;
+
+	public static enum Selection {ROUND_ROBIN, LEAST_IN_FLIGHT}
+
+	protected final List<Replica> mReplicas;
+	protected final Selection mSelection;
+	protected final long mUnhealthyPeriodNanos;
+	protected final AtomicInteger mNextReplica = new AtomicInteger();
+
+	//the read only connections taken from the primary, since no replica was healthy
+	protected final LongAdder mPrimaryFallbacks = new LongAdder();
+
+
+	/**
+	 * creates a router
+	 *
+	 * @param aReplicas the connection managers of the replicas
+	 * @param aSelection the selection of the replica for each connection
+	 * @param aUnhealthyPeriodMillis the time a replica is out of the rotation after a failed connection acquisition
+	 */
+	public ReplicaRouter(List<DBConnectionManager> aReplicas, Selection aSelection, long aUnhealthyPeriodMillis)
+	{
+		List<Replica> replicas = new ArrayList<Replica>(aReplicas.size());
+		for (DBConnectionManager replicaConManager:aReplicas)
+		{
+			replicas.add(new Replica(replicaConManager));
+		}
+
+		mReplicas = Collections.unmodifiableList(replicas);
+		mSelection = aSelection;
+		mUnhealthyPeriodNanos = aUnhealthyPeriodMillis * 1000000L;
+	}
+
+
+	/**
+	 * gets a connection from a healthy replica. the replicas are tried in the order of the selection until
+	 * a connection is acquired
+	 *
+	 * @return the connection, or null if no replica is healthy, or the acquisition failed on all the healthy replicas
+	 */
+	public Connection acquireConnection()
+	{
+		for (int tries=0 ; tries<mReplicas.size() ; ++tries)
+		{
+			Replica replica = selectReplica();
+			if (replica == null)
+			{
+				break;
+			}
+
+			Connection con = replica.acquireConnection(mUnhealthyPeriodNanos);
+			if (con != null)
+			{
+				return con;
+			}
+		}
+
+		mPrimaryFallbacks.increment();
+		return null;
+	}
+
+
+	//returns the next healthy replica, or null if no replica is healthy
+	protected Replica selectReplica()
+	{
+		long now = System.nanoTime();
+		int healthyCount = 0;
+		for (Replica replica:mReplicas)
+		{
+			if (replica.isHealthy(now))
+			{
+				++healthyCount;
+			}
+		}
+
+		if (healthyCount == 0)
+		{
+			return null;
+		}
+
+		//the turn is counted among the healthy replicas only, so the replicas that are out of the rotation
+		//do not pass their turns to their neighbours
+		int healthyTurn = (mNextReplica.getAndIncrement() & Integer.MAX_VALUE) % healthyCount;
+		int turnIndex = 0;
+		while (turnIndex < mReplicas.size() && (!mReplicas.get(turnIndex).isHealthy(now) || healthyTurn-- > 0))
+		{
+			++turnIndex;
+		}
+
+		if (turnIndex == mReplicas.size())
+		{
+			//a replica was taken out of the rotation meanwhile
+			return null;
+		}
+
+		if (mSelection == Selection.ROUND_ROBIN)
+		{
+			return mReplicas.get(turnIndex);
+		}
+
+		//least in flight. the replicas are scanned from the replica of the turn, so the ties are spread evenly
+		Replica selected = null;
+		int selectedInFlight = Integer.MAX_VALUE;
+		for (int i=0 ; i<mReplicas.size() ; ++i)
+		{
+			Replica replica = mReplicas.get((turnIndex + i) % mReplicas.size());
+			int inFlight = replica.mInFlight.get();
+			if (inFlight < selectedInFlight && replica.isHealthy(now))
+			{
+				selected = replica;
+				selectedInFlight = inFlight;
+			}
+		}
+
+		return selected;
+	}
+
+
+	/**
+	 * @return the replicas, with their health and statistics
+	 */
+	public List<Replica> getReplicas()
+	{
+		return mReplicas;
+	}
+
+
+	public Selection getSelection()
+	{
+		return mSelection;
+	}
+
+
+	/**
+	 * @return the number of read only connections taken from the primary, since no replica was healthy
+	 */
+	public long getPrimaryFallbacks()
+	{
+		return mPrimaryFallbacks.sum();
+	}
+
+
+	/**
+	 * closes the connection managers of the replicas
+	 */
+	public void close()
+	{
+		for (Replica replica:mReplicas)
+		{
+			replica.mConManager.close();
+		}
+	}
+
+
+	public String toString()
+	{
+		return "ReplicaRouter [selection=" + mSelection + ", replicas=" + mReplicas + ", primaryFallbacks=" + getPrimaryFallbacks() + "]";
+	}
+
+
+
+	/////////Replica class ////////////////////
+	public static class Replica
+	{
+		protected final DBConnectionManager mConManager;
+		protected final AtomicInteger mInFlight = new AtomicInteger();
+		protected final LongAdder mAcquisitions = new LongAdder();
+		protected final LongAdder mFailures = new LongAdder();
+
+		//the time the replica is back in the rotation. 0 when healthy
+		protected volatile long mUnhealthyUntilNanos;
+
+		protected Replica(DBConnectionManager aConManager)
+		{
+			mConManager = aConManager;
+		}
+
+		protected boolean isHealthy(long aNow)
+		{
+			long unhealthyUntil = mUnhealthyUntilNanos;
+			return unhealthyUntil == 0 || aNow - unhealthyUntil >= 0;
+		}
+
+		//returns null if the acquisition failed
+		protected Connection acquireConnection(long aUnhealthyPeriodNanos)
+		{
+			Connection con;
+			try
+			{
+				con = mConManager.createDBConnection();
+			}
+			catch (DBPoolExhaustedException dbpee)
+			{
+				//the replica is up, but busy
+				return null;
+			}
+			catch (DBConnectionException dbce)
+			{
+				mFailures.increment();
+				mUnhealthyUntilNanos = System.nanoTime() + aUnhealthyPeriodNanos;
+				sLogger.warn("Replica " + mConManager.getDescription() + " is out of the rotation for " + aUnhealthyPeriodNanos / 1000000 + " ms: " + dbce.getMessage());
+				return null;
+			}
+
+			try
+			{
+				//a write sent to a replica by mistake fails, instead of diverging from the primary
+				con.setReadOnly(true);
+			}
+			catch (SQLException sqle)
+			{
+				mConManager.closeResources(con, null, null);
+				mFailures.increment();
+				mUnhealthyUntilNanos = System.nanoTime() + aUnhealthyPeriodNanos;
+				sLogger.warn("Replica " + mConManager.getDescription() + " is out of the rotation for " + aUnhealthyPeriodNanos / 1000000 + " ms: " + sqle.getMessage());
+				return null;
+			}
+
+			if (mUnhealthyUntilNanos != 0)
+			{
+				mUnhealthyUntilNanos = 0;
+				sLogger.info("Replica " + mConManager.getDescription() + " is back in the rotation.");
+			}
+
+			mAcquisitions.increment();
+			mInFlight.incrementAndGet();
+			return (Connection)Proxy.newProxyInstance(ReplicaRouter.class.getClassLoader(), new Class<?>[] {Connection.class}, new InFlightConnection(this, con));
+		}
+
+		public DBConnectionManager getConManager()
+		{
+			return mConManager;
+		}
+
+		public boolean isHealthy()
+		{
+			return isHealthy(System.nanoTime());
+		}
+
+		/**
+		 * @return the number of connections acquired from the replica and not closed yet
+		 */
+		public int getInFlight()
+		{
+			return mInFlight.get();
+		}
+
+		public long getAcquisitions()
+		{
+			return mAcquisitions.sum();
+		}
+
+		public long getFailures()
+		{
+			return mFailures.sum();
+		}
+
+		public String toString()
+		{
+			return mConManager.getDescription() + " [healthy=" + isHealthy() + ", inFlight=" + getInFlight() +
+					", acquisitions=" + getAcquisitions() + ", failures=" + getFailures() + "]";
+		}
+	}
+
+
+
+	/////////InFlightConnection class ////////////////////
+	//the handler of the proxy a replica connection is wrapped with. counts the connection in flight until it is closed
+	protected static class InFlightConnection implements InvocationHandler
+	{
+		protected final Replica mReplica;
+		protected final Connection mConnection;
+		protected boolean mClosed;
+
+		protected InFlightConnection(Replica aReplica, Connection aConnection)
+		{
+			mReplica = aReplica;
+			mConnection = aConnection;
+		}
+
+		public Object invoke(Object aProxy, Method aMethod, Object[] aArgs)
+			throws Throwable
+		{
+			String methodName = aMethod.getName();
+			if (methodName.equals("close"))
+			{
+				synchronized (this)
+				{
+					if (!mClosed)
+					{
+						mClosed = true;
+						mReplica.mInFlight.decrementAndGet();
+					}
+				}
+			}
+			else if (methodName.equals("equals"))
+			{
+				return aProxy == aArgs[0];
+			}
+			else if (methodName.equals("hashCode"))
+			{
+				return System.identityHashCode(aProxy);
+			}
+
+			try
+			{
+				return aMethod.invoke(mConnection, aArgs);
+			}
+			catch (InvocationTargetException ite)
+			{
+				throw ite.getCause();
+			}
+		}
+	}
+}
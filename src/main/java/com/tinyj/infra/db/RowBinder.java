@@ -0,0 +1,26 @@
+package com.tinyj.infra.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * binds an object to the parameters of a statement, as a row of a batch (see BatchWriter)
+ * 
+ * @author asaf.peeri
+ *
+ * @param <T> the type of the bound objects
+ */
+public interface RowBinder<T>
+{
+	/**
+	 * sets the parameters of the given statement from the given row. should not add the statement to the batch
+	 * 
+	 * @param aPs the statement
+	 * @param aRow the row to bind
+	 * 
+	 * @throws SQLException when a parameter cannot be set
+	 */
+	public void bindRow(PreparedStatement aPs, T aRow)
+		throws SQLException;
+}
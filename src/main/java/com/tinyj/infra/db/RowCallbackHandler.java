@@ -0,0 +1,24 @@
+package com.tinyj.infra.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * handles the rows of a query's ResultSet one at a time (see DBConnectionManager.query())
+ * 
+ * @author asaf.peeri
+ *
+ */
+public interface RowCallbackHandler
+{
+	/**
+	 * handles the current row of the given ResultSet. should not move the cursor of the ResultSet
+	 * 
+	 * @param aRs the ResultSet, positioned on the row to handle
+	 * 
+	 * @throws SQLException when the row cannot be read
+	 */
+	public void processRow(ResultSet aRs)
+		throws SQLException;
+}
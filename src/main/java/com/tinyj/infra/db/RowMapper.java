@@ -0,0 +1,28 @@
+package com.tinyj.infra.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * maps the current row of a query's ResultSet to an object (see DBConnectionManager.query())
+ * 
+ * @author asaf.peeri
+ *
+ * @param <T> the type of the mapped objects
+ */
+public interface RowMapper<T>
+{
+	/**
+	 * maps the current row of the given ResultSet. should not move the cursor of the ResultSet
+	 * 
+	 * @param aRs the ResultSet, positioned on the row to map
+	 * @param aRowNum the number of the row, starting at 0
+	 * 
+	 * @return the object of the row
+	 * 
+	 * @throws SQLException when the row cannot be read
+	 */
+	public T mapRow(ResultSet aRs, int aRowNum)
+		throws SQLException;
+}
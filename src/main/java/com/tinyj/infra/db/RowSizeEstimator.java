@@ -0,0 +1,21 @@
+package com.tinyj.infra.db;
+
+
+/**
+ * estimates the size in bytes of the mapped objects that the results cache cannot measure by itself
+ * (see DBConnectionManager.enableResultCache() and QueryResultCache)
+ *
+ * @author asaf.peeri
+ *
+ */
+public interface RowSizeEstimator
+{
+	/**
+	 * estimates the size of a mapped object that is not a string, a number, an array, a collection or a map
+	 *
+	 * @param aObject the object (for ex: a row mapped to a domain object, or a field of it)
+	 *
+	 * @return the estimated size of the object, in bytes
+	 */
+	public long estimateSize(Object aObject);
+}
@@ -0,0 +1,10 @@
+package com.tinyj.infra.exception;
+
+@SuppressWarnings("serial")
+public class DBCircuitOpenException extends DBConnectionException 
+{
+	public DBCircuitOpenException(String aMsg)
+	{
+		super(aMsg);
+	}
+}
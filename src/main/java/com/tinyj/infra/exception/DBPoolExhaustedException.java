@@ -0,0 +1,10 @@
+package com.tinyj.infra.exception;
+
+@SuppressWarnings("serial")
+public class DBPoolExhaustedException extends DBConnectionException 
+{
+	public DBPoolExhaustedException(String aMsg)
+	{
+		super(aMsg);
+	}
+}
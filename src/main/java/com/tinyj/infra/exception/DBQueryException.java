@@ -0,0 +1,15 @@
+package com.tinyj.infra.exception;
+
+@SuppressWarnings("serial")
+public class DBQueryException extends RuntimeException 
+{
+	public DBQueryException(String aMsg)
+	{
+		super(aMsg);
+	}
+	
+	public DBQueryException(String aMsg, Throwable aCause)
+	{
+		super(aMsg, aCause);
+	}
+}
@@ -1,7 +1,17 @@
 package com.tinyj.infra.lookup;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -36,6 +46,16 @@ import javax.naming.NamingException;
  *  }
  *  
  * 
+ * The lookups cache their initial contexts by the context factory and provider URL (and a digest of the other
+ * environment properties, so the credentials are not kept in the key), and the looked up objects by the same key
+ * and their name, so repeated lookups cost a map read instead of creating a context and going to the JNDI provider.
+ * The cached entries expire after the cache TTL (see <i>setCacheTtlMillis()</i>), and can be invalidated explicitly
+ * (see <i>invalidate()</i> and <i>invalidateAll()</i>). The expired and invalidated contexts are closed.
+ * A lookup that fails with a cached context is retried once with a new context.
+ * 
+ * The cached contexts are used only by the lookups. <i>getInitialContext()</i> returns a new context, which
+ * belongs to the caller (who should close it).
+ * 
  * @author asaf.peeri
  *
  */
@@ -44,9 +64,23 @@ public class LookUp
 	//static
 	protected static LookUp sInstance;
 	
+	//the default time to keep the cached contexts and objects
+	public static final long DEFAULT_CACHE_TTL_MILLIS = 10 * 60 * 1000L;
+	
 	//members
 	protected Properties mEnv;
 	
+	//the key of the contexts of mEnv, computed on its first lookup. a subclass that replaces mEnv after it was
+	//looked up should reset it to null
+	protected volatile ContextKey mEnvContextKey;
+	
+	//the time to keep the cached contexts and objects. 0 to disable the caches
+	protected volatile long mCacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+	
+	//the cached contexts of the lookups by their environment, and the cached objects by their environment and name
+	protected final ConcurrentHashMap<ContextKey, CacheEntry<InitialContext>> mContextsCache = new ConcurrentHashMap<ContextKey, CacheEntry<InitialContext>>();
+	protected final ConcurrentHashMap<ObjectKey, CacheEntry<Object>> mObjectsCache = new ConcurrentHashMap<ObjectKey, CacheEntry<Object>>();
+	
 	
 	//c'tor
 	protected LookUp(Properties aEnv)
@@ -140,6 +174,64 @@ public class LookUp
 	
 	
 	
+	//returns the cached context of the given environment for the lookups, creating it if it is not cached or expired.
+	//the expired context is closed
+	protected InitialContext getCachedInitialContext(ContextKey aContextKey, Hashtable<?, ?> aEnv, long aTtlMillis)
+		throws NamingException
+	{
+		CacheEntry<InitialContext> entry = mContextsCache.get(aContextKey);
+		if (entry != null)
+		{
+			if (!entry.isExpired())
+			{
+				return entry.mValue;
+			}
+			removeCachedContext(aContextKey, entry);
+		}
+		
+		CacheEntry<InitialContext> newEntry = new CacheEntry<InitialContext>(new InitialContext(aEnv), aTtlMillis);
+		CacheEntry<InitialContext> existingEntry = mContextsCache.putIfAbsent(aContextKey, newEntry);
+		if (existingEntry != null)
+		{
+			//another thread cached a context meanwhile
+			closeContext(newEntry.mValue);
+			return existingEntry.mValue;
+		}
+		
+		return newEntry.mValue;
+	}
+	
+	
+	
+	//removes the given cached context, and closes it if it was still cached
+	protected void removeCachedContext(ContextKey aContextKey, CacheEntry<InitialContext> aEntry)
+	{
+		if (mContextsCache.remove(aContextKey, aEntry))
+		{
+			closeContext(aEntry.mValue);
+		}
+	}
+	
+	
+	
+	//the lookups synchronize on the context, so a lookup in progress ends before the context is closed
+	protected static void closeContext(InitialContext aInitialContext)
+	{
+		synchronized (aInitialContext)
+		{
+			try
+			{
+				aInitialContext.close();
+			}
+			catch (NamingException ne)
+			{
+				//the context is discarded anyway
+			}
+		}
+	}
+	
+	
+	
 	/**
 	 * get the initial context according to the environment properties object saved in this instance.
 	 * this method should be used only by subclasses of this class, where initialization of the
@@ -178,13 +270,161 @@ public class LookUp
 	public Object lookup(String aJNDIObjectName, Properties aEnv)
 		throws NamingException
 	{
-		InitialContext ic = getInitialContext(aEnv);
-		Object remoteObject = ic.lookup(aJNDIObjectName);
+		return getCachedObject(aJNDIObjectName, aEnv);
+	}
+	
+	
+	/**
+	 * looks up a remote object according to a given JNDI context and provider URL
+	 * 
+	 * @param aJNDIObjectName the object's name in the JNDI
+	 * @param aJNDIContextFactory the JNDI context factory
+	 * @param aJNDIProviderURL the target host URL
+	 * 
+	 * @return the remote object retrieved
+	 */
+	public Object lookup(String aJNDIObjectName, String aJNDIContextFactory, String aJNDIProviderURL)
+		throws NamingException
+	{
+		return getCachedObject(aJNDIObjectName, getBasicEnvProperties(aJNDIContextFactory, aJNDIProviderURL));
+	}
+	
+	
+	
+	//returns the cached object of the given environment and name, looking it up if it is not cached or expired
+	protected Object getCachedObject(String aJNDIObjectName, Hashtable<?, ?> aEnv)
+		throws NamingException
+	{
+		long ttl = mCacheTtlMillis;
+		if (ttl <= 0)
+		{
+			InitialContext initialContext = new InitialContext(aEnv);
+			try
+			{
+				return initialContext.lookup(aJNDIObjectName);
+			}
+			finally
+			{
+				initialContext.close();
+			}
+		}
+		
+		ContextKey contextKey = aEnv == mEnv && aEnv != null ? getEnvContextKey() : new ContextKey(aEnv);
+		ObjectKey objectKey = new ObjectKey(contextKey, aJNDIObjectName);
+		CacheEntry<Object> entry = mObjectsCache.get(objectKey);
+		if (entry != null && !entry.isExpired())
+		{
+			return entry.mValue;
+		}
 		
+		//the keys are cached with their digest, and without the environment
+		contextKey.getOtherPropertiesDigest();
+		Object remoteObject;
+		InitialContext initialContext = getCachedInitialContext(contextKey, aEnv, ttl);
+		try
+		{
+			remoteObject = lookupInContext(initialContext, aJNDIObjectName);
+		}
+		catch (NamingException ne)
+		{
+			//the cached context may be stale (for ex: the provider restarted), so try once again with a new one
+			CacheEntry<InitialContext> contextEntry = mContextsCache.get(contextKey);
+			if (contextEntry != null && contextEntry.mValue == initialContext)
+			{
+				removeCachedContext(contextKey, contextEntry);
+			}
+			remoteObject = lookupInContext(getCachedInitialContext(contextKey, aEnv, ttl), aJNDIObjectName);
+		}
+		
+		mObjectsCache.put(objectKey, new CacheEntry<Object>(remoteObject, ttl));
 		return remoteObject;
 	}
 	
 	
+	
+	//returns the key of the contexts of mEnv, which is computed once, with its digest
+	protected ContextKey getEnvContextKey()
+	{
+		ContextKey envContextKey = mEnvContextKey;
+		if (envContextKey == null)
+		{
+			envContextKey = new ContextKey(mEnv);
+			envContextKey.getOtherPropertiesDigest();
+			mEnvContextKey = envContextKey;
+		}
+		
+		return envContextKey;
+	}
+	
+	
+	
+	//an InitialContext is not guaranteed to be safe for concurrent access, and the cached contexts are shared
+	protected static Object lookupInContext(InitialContext aInitialContext, String aJNDIObjectName)
+		throws NamingException
+	{
+		synchronized (aInitialContext)
+		{
+			return aInitialContext.lookup(aJNDIObjectName);
+		}
+	}
+	
+	
+	
+	/**
+	 * removes the cached objects with the given name (in all the environments), so they are looked up again on the next lookup
+	 * 
+	 * @param aJNDIObjectName the object's name in the JNDI
+	 */
+	public void invalidate(String aJNDIObjectName)
+	{
+		Iterator<ObjectKey> iterator = mObjectsCache.keySet().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().mName.equals(aJNDIObjectName))
+			{
+				iterator.remove();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * removes all the cached contexts and objects. the contexts are closed
+	 */
+	public void invalidateAll()
+	{
+		mObjectsCache.clear();
+		for (Map.Entry<ContextKey, CacheEntry<InitialContext>> entry:mContextsCache.entrySet())
+		{
+			removeCachedContext(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	
+	
+	/**
+	 * sets the time to keep the cached contexts and objects. the entries already cached keep their previous TTL
+	 * 
+	 * @param aCacheTtlMillis the TTL in milliseconds. 0 to disable the caches
+	 */
+	public void setCacheTtlMillis(long aCacheTtlMillis)
+	{
+		mCacheTtlMillis = aCacheTtlMillis;
+		if (aCacheTtlMillis <= 0)
+		{
+			invalidateAll();
+		}
+	}
+	
+	
+	
+	public long getCacheTtlMillis()
+	{
+		return mCacheTtlMillis;
+	}
+	
+	
 	/**
 	 * looks up a remote object according to pre-defined environment properties
 	 * 
@@ -197,4 +437,187 @@ public class LookUp
 	{
 		return lookup(aJNDIObjectName, mEnv);
 	}
+	
+	
+	
+	/////////CacheEntry class ////////////////////
+	protected static class CacheEntry<T>
+	{
+		protected final T mValue;
+		protected final long mExpirationTime;
+		
+		protected CacheEntry(T aValue, long aTtlMillis)
+		{
+			mValue = aValue;
+			mExpirationTime = System.currentTimeMillis() + aTtlMillis;
+		}
+		
+		protected boolean isExpired()
+		{
+			return System.currentTimeMillis() >= mExpirationTime;
+		}
+	}
+	
+	
+	
+	/////////ContextKey class ////////////////////
+	//the key of a cached context: its context factory and provider URL, and a digest of the other properties
+	//of its environment (which may hold credentials).
+	//the hash code is computed from the other properties without sorting or digesting them, and the digest is computed
+	//only when it is needed: when the key is compared to a key with the same hash code, or before it is cached (after
+	//which the key does not hold the environment)
+	protected static class ContextKey
+	{
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+		
+		protected final String mContextFactory;
+		protected final String mProviderURL;
+		protected final int mHashCode;
+		
+		//the environment, until the digest of its other properties is computed
+		protected Hashtable<?, ?> mEnv;
+		protected String mOtherPropertiesDigest;
+		
+		protected ContextKey(Hashtable<?, ?> aEnv)
+		{
+			Hashtable<?, ?> env = aEnv == null ? new Hashtable<Object, Object>() : aEnv;
+			mContextFactory = String.valueOf(env.get(Context.INITIAL_CONTEXT_FACTORY));
+			mProviderURL = String.valueOf(env.get(Context.PROVIDER_URL));
+			mEnv = env;
+			mHashCode = 31 * (31 * mContextFactory.hashCode() + mProviderURL.hashCode()) + hashOtherProperties(env);
+		}
+		
+		//an order independent hash of the other properties, equal for the environments whose digests are equal
+		protected static int hashOtherProperties(Hashtable<?, ?> aEnv)
+		{
+			int hash = 0;
+			for (Map.Entry<?, ?> entry:aEnv.entrySet())
+			{
+				if (!Context.INITIAL_CONTEXT_FACTORY.equals(entry.getKey()) && !Context.PROVIDER_URL.equals(entry.getKey()))
+				{
+					hash += String.valueOf(entry.getKey()).hashCode() ^ String.valueOf(entry.getValue()).hashCode();
+				}
+			}
+			
+			return hash;
+		}
+		
+		protected String getOtherPropertiesDigest()
+		{
+			if (mOtherPropertiesDigest == null)
+			{
+				mOtherPropertiesDigest = digestOtherProperties(mEnv);
+				mEnv = null;
+			}
+			
+			return mOtherPropertiesDigest;
+		}
+		
+		protected static String digestOtherProperties(Hashtable<?, ?> aEnv)
+		{
+			List<String[]> properties = new ArrayList<String[]>(aEnv.size());
+			for (Map.Entry<?, ?> entry:aEnv.entrySet())
+			{
+				if (!Context.INITIAL_CONTEXT_FACTORY.equals(entry.getKey()) && !Context.PROVIDER_URL.equals(entry.getKey()))
+				{
+					properties.add(new String[] {String.valueOf(entry.getKey()), String.valueOf(entry.getValue())});
+				}
+			}
+			
+			if (properties.isEmpty())
+			{
+				return "";
+			}
+			
+			Collections.sort(properties, new Comparator<String[]>()
+			{
+				public int compare(String[] aFirst, String[] aSecond)
+				{
+					int result = aFirst[0].compareTo(aSecond[0]);
+					return result != 0 ? result : aFirst[1].compareTo(aSecond[1]);
+				}
+			});
+			try
+			{
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				for (String[] property:properties)
+				{
+					digest.update(property[0].getBytes(StandardCharsets.UTF_8));
+					digest.update((byte)0);
+					digest.update(property[1].getBytes(StandardCharsets.UTF_8));
+					digest.update((byte)0);
+				}
+				
+				byte[] bytes = digest.digest();
+				char[] hex = new char[bytes.length * 2];
+				for (int i=0 ; i<bytes.length ; ++i)
+				{
+					hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+					hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+				}
+				return new String(hex);
+			}
+			catch (NoSuchAlgorithmException nsae)
+			{
+				//every Java platform supports SHA-256
+				throw new IllegalStateException(nsae);
+			}
+		}
+		
+		public int hashCode()
+		{
+			return mHashCode;
+		}
+		
+		public boolean equals(Object aObject)
+		{
+			if (aObject == this)
+			{
+				return true;
+			}
+			
+			if (!(aObject instanceof ContextKey))
+			{
+				return false;
+			}
+			
+			ContextKey other = (ContextKey)aObject;
+			return mHashCode == other.mHashCode && mContextFactory.equals(other.mContextFactory) && mProviderURL.equals(other.mProviderURL) &&
+					getOtherPropertiesDigest().equals(other.getOtherPropertiesDigest());
+		}
+	}
+	
+	
+	
+	/////////ObjectKey class ////////////////////
+	//the key of a cached object: the key of its context and its name
+	protected static class ObjectKey
+	{
+		protected final ContextKey mEnv;
+		protected final String mName;
+		protected final int mHashCode;
+		
+		protected ObjectKey(ContextKey aEnv, String aName)
+		{
+			mEnv = aEnv;
+			mName = aName;
+			mHashCode = 31 * aEnv.hashCode() + aName.hashCode();
+		}
+		
+		public int hashCode()
+		{
+			return mHashCode;
+		}
+		
+		public boolean equals(Object aObject)
+		{
+			if (!(aObject instanceof ObjectKey))
+			{
+				return false;
+			}
+			
+			ObjectKey other = (ObjectKey)aObject;
+			return mName.equals(other.mName) && mEnv.equals(other.mEnv);
+		}
+	}
 }
@@ -112,6 +112,22 @@ public class PropertiesUtils
       return ps;
    }
       
+   /**
+    * this method loads the properties from the given bytes in the specified encoding.
+    * the bytes are decoded at once, so this is the faster choice when the whole file was already read into memory
+    * 
+    * @param bytes the content of the properties file
+    * @param encoding the encoding of which the properties file should be read
+    */
+   public static Properties loadProperties(byte[] bytes, String encoding) 
+   	throws IOException
+   {
+      Properties ps = new Properties();
+      ps.load(new StringReader(new String(bytes, encoding)));
+      return ps;
+   }
+   
+   
    private static char hexDigit(char ch, int offset)
    {
       int val = (ch >> offset) & 0xF;
@@ -0,0 +1,905 @@
+package com.tinyj.infra.structures;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import com.tinyj.infra.structures.HistoryMap.HistoryEntry;
+
+
+/**
+ * a map that has history on the insertions to it (see HistoryMap), in a compact, columnar storage for large histories.
+ *
+ * the history is held in parallel arrays, in the order of insertion: the insertion times in a long[], and the keys and the
+ * values in Object[]s. the keys are found by an open addressing hash table of int positions in these arrays. so an
+ * entry costs about 24 bytes of arrays, with no objects of its own, instead of the HistoryEntry, the map nodes and the
+ * index reference of HistoryMap, and a put allocates nothing (except when the arrays grow).
+ * the HistoryEntry objects are created only when they are asked for (by getHistoryEntry(), the time range queries and
+ * the eviction listener), as copies of the entries: setting their value does not change the map.
+ *
+ * like in HistoryMap, the insertion time never goes back, so the time range operations find their boundary by a binary
+ * search. an entry removed from the middle of the history is only marked as removed, and the arrays are compacted when
+ * the removed entries outnumber the live ones. the time range queries return random access views of the history (get()
+ * and size() are O(1)), which are valid until the map is modified, and so are the views of the keys, the values and the
+ * entries (which are read only). a view is returned in O(log n), or in O(log n + k) when there are removed entries, whose
+ * positions are skipped when the view is created.
+ *
+ * the map can be bounded by a maximal number of entries and a maximal age, like HistoryMap(int, long). like in HistoryMap,
+ * the puts and the reads evict the expired entries, so a read may invalidate the views that were taken before it.
+ *
+ * @author asaf.peeri
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class CompactHistoryMap<K,V> implements Map<K,V>
+{
+	protected static final int INITIAL_CAPACITY = 16;
+
+	//the key of a position whose entry was removed
+	protected static final Object REMOVED = new Object();
+
+	//the columns of the history. the positions in [mStart, mEnd) are sorted by time, and include
+	//mRemovedEntries positions whose entries were removed (their key is REMOVED)
+	protected long[] mTimes;
+	protected Object[] mKeys;
+	protected Object[] mValues;
+	protected int mStart;
+	protected int mEnd;
+	protected int mRemovedEntries;
+
+	//the hash table of the keys, with linear probing. a slot holds the position of its entry + 1, or 0 when empty.
+	//the table is at most half full
+	protected int[] mTable;
+	protected int mSize;
+
+	//the time of the latest put. the time of the next put does not go below it, even when the clock goes back
+	protected long mLatestTime = Long.MIN_VALUE;
+
+	//the number of structural modifications, which invalidate the views
+	protected int mModCount;
+
+	//the bounds of the map. 0 for no bound
+	protected final int mMaxEntries;
+	protected final long mMaxAgeMillis;
+
+	protected HistoryEvictionListener<K,V> mEvictionListener;
+
+
+	public CompactHistoryMap()
+	{
+		this(0, 0);
+	}
+
+
+	/**
+	 * creates a bounded map, which evicts its oldest entries (see HistoryMap(int, long))
+	 *
+	 * @param aMaxEntries the maximal number of entries. 0 for no limit
+	 * @param aMaxAgeMillis the maximal time since the insertion of an entry. 0 for no limit
+	 */
+	public CompactHistoryMap(int aMaxEntries, long aMaxAgeMillis)
+	{
+		if (aMaxEntries < 0 || aMaxAgeMillis < 0)
+		{
+			throw new IllegalArgumentException("The bounds of the map must not be negative: maxEntries=" + aMaxEntries + ", maxAgeMillis=" + aMaxAgeMillis);
+		}
+
+		mMaxEntries = aMaxEntries;
+		mMaxAgeMillis = aMaxAgeMillis;
+		initStorage();
+	}
+
+
+	protected void initStorage()
+	{
+		mTimes = new long[INITIAL_CAPACITY];
+		mKeys = new Object[INITIAL_CAPACITY];
+		mValues = new Object[INITIAL_CAPACITY];
+		mStart = 0;
+		mEnd = 0;
+		mRemovedEntries = 0;
+		mTable = new int[INITIAL_CAPACITY * 2];
+		mSize = 0;
+	}
+
+
+
+	protected static int hash(Object aKey)
+	{
+		int hash = aKey == null ? 0 : aKey.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+
+	//returns the slot of the given key in the hash table, or -1 if the key is not in the map
+	protected int findSlot(Object aKey)
+	{
+		int mask = mTable.length - 1;
+		for (int slot=hash(aKey) & mask ; ; slot=(slot + 1) & mask)
+		{
+			int position = mTable[slot] - 1;
+			if (position < 0)
+			{
+				return -1;
+			}
+
+			Object key = mKeys[position];
+			if (key == aKey || (aKey != null && aKey.equals(key)))
+			{
+				return slot;
+			}
+		}
+	}
+
+
+	protected void insertSlot(Object aKey, int aPosition)
+	{
+		int mask = mTable.length - 1;
+		int slot = hash(aKey) & mask;
+		while (mTable[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+		mTable[slot] = aPosition + 1;
+	}
+
+
+	//empties a slot of the hash table, and moves back the following slots that would not be found after the empty slot
+	protected void deleteSlot(int aSlot)
+	{
+		int mask = mTable.length - 1;
+		int emptySlot = aSlot;
+		int slot = aSlot;
+		mTable[emptySlot] = 0;
+		while (true)
+		{
+			slot = (slot + 1) & mask;
+			if (mTable[slot] == 0)
+			{
+				return;
+			}
+
+			//the entry stays when its home slot is cyclically in (emptySlot, slot]
+			int home = hash(mKeys[mTable[slot] - 1]) & mask;
+			boolean stays = emptySlot <= slot ? (emptySlot < home && home <= slot) : (emptySlot < home || home <= slot);
+			if (!stays)
+			{
+				mTable[emptySlot] = mTable[slot];
+				mTable[slot] = 0;
+				emptySlot = slot;
+			}
+		}
+	}
+
+
+	protected void rebuildTable(int aCapacity)
+	{
+		mTable = new int[aCapacity];
+		for (int position=mStart ; position<mEnd ; ++position)
+		{
+			if (mKeys[position] != REMOVED)
+			{
+				insertSlot(mKeys[position], position);
+			}
+		}
+	}
+
+
+	//moves the live entries to the start of the arrays, without the removed entries.
+	//when making room for a new entry, the arrays are doubled if the live entries fill more than half of them
+	protected void compact(boolean aMakeRoom)
+	{
+		int capacity = mTimes.length;
+		if (aMakeRoom && mSize * 2 >= capacity)
+		{
+			capacity *= 2;
+		}
+
+		long[] times = capacity == mTimes.length ? mTimes : new long[capacity];
+		Object[] keys = capacity == mTimes.length ? mKeys : new Object[capacity];
+		Object[] values = capacity == mTimes.length ? mValues : new Object[capacity];
+		int position = 0;
+		for (int i=mStart ; i<mEnd ; ++i)
+		{
+			if (mKeys[i] != REMOVED)
+			{
+				times[position] = mTimes[i];
+				keys[position] = mKeys[i];
+				values[position] = mValues[i];
+				++position;
+			}
+		}
+
+		if (keys == mKeys)
+		{
+			Arrays.fill(keys, position, mEnd, null);
+			Arrays.fill(values, position, mEnd, null);
+		}
+
+		mTimes = times;
+		mKeys = keys;
+		mValues = values;
+		mStart = 0;
+		mEnd = position;
+		mRemovedEntries = 0;
+		rebuildTable(mTable.length);
+	}
+
+
+	//marks a position, whose key was deleted from the hash table, as removed. the removed positions at the ends are dropped
+	protected void removePosition(int aPosition)
+	{
+		mKeys[aPosition] = REMOVED;
+		mValues[aPosition] = null;
+		++mRemovedEntries;
+		dropRemovedEnds();
+
+		if (mRemovedEntries > INITIAL_CAPACITY && mRemovedEntries > mSize)
+		{
+			compact(false);
+		}
+	}
+
+
+	protected void dropRemovedEnds()
+	{
+		while (mStart < mEnd && mKeys[mStart] == REMOVED)
+		{
+			mKeys[mStart++] = null;
+			--mRemovedEntries;
+		}
+
+		while (mStart < mEnd && mKeys[mEnd - 1] == REMOVED)
+		{
+			mKeys[--mEnd] = null;
+			--mRemovedEntries;
+		}
+
+		if (mStart == mEnd)
+		{
+			mStart = 0;
+			mEnd = 0;
+		}
+	}
+
+
+	//removes the live entry at the given position
+	protected void removeAt(int aPosition)
+	{
+		deleteSlot(findSlot(mKeys[aPosition]));
+		--mSize;
+		++mModCount;
+		removePosition(aPosition);
+	}
+
+
+	//returns the first position whose time is above the given time (or equal to it, when aInclusive), or mEnd if there is none
+	protected int findPosition(long aTime, boolean aInclusive)
+	{
+		int low = mStart;
+		int high = mEnd;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			long middleTime = mTimes[middle];
+			if (middleTime > aTime || (aInclusive && middleTime == aTime))
+			{
+				high = middle;
+			}
+			else
+			{
+				low = middle + 1;
+			}
+		}
+
+		return low;
+	}
+
+
+	//removes the entries in [aFrom, aTo) in a single pass. the range is at one of the ends of the history
+	protected void removeRange(int aFrom, int aTo)
+	{
+		if (aFrom == aTo)
+		{
+			return;
+		}
+
+		for (int position=aFrom ; position<aTo ; ++position)
+		{
+			if (mKeys[position] == REMOVED)
+			{
+				--mRemovedEntries;
+			}
+			else
+			{
+				deleteSlot(findSlot(mKeys[position]));
+				--mSize;
+			}
+			mKeys[position] = null;
+			mValues[position] = null;
+		}
+
+		if (aFrom == mStart)
+		{
+			mStart = aTo;
+		}
+		else
+		{
+			mEnd = aFrom;
+		}
+		dropRemovedEnds();
+		++mModCount;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	protected HistoryEntry<K,V> createEntry(int aPosition)
+	{
+		return new HistoryEntry<K,V>(mTimes[aPosition], (K)mKeys[aPosition], (V)mValues[aPosition]);
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	public V put(K aKey, V aValue)
+	{
+		long entryTime = Math.max(System.currentTimeMillis(), mLatestTime);
+		mLatestTime = entryTime;
+
+		if (mEnd == mTimes.length)
+		{
+			compact(true);
+		}
+
+		int slot = findSlot(aKey);
+		int position = mEnd++;
+		mTimes[position] = entryTime;
+		mKeys[position] = aKey;
+		mValues[position] = aValue;
+		++mModCount;
+
+		V oldValue = null;
+		if (slot < 0)
+		{
+			++mSize;
+			if (mSize * 2 > mTable.length)
+			{
+				rebuildTable(mTable.length * 2);
+			}
+			else
+			{
+				insertSlot(aKey, position);
+			}
+		}
+		else
+		{
+			//the previous insertion of the key is replaced by this one
+			int previousPosition = mTable[slot] - 1;
+			oldValue = (V)mValues[previousPosition];
+			mTable[slot] = position + 1;
+			removePosition(previousPosition);
+		}
+
+		evict(entryTime);
+		return oldValue;
+	}
+
+
+	//evicts the expired entries and the entries above the maximal number of entries, from the oldest
+	protected void evict(long aNow)
+	{
+		if (mMaxAgeMillis > 0)
+		{
+			evictExpired(aNow);
+		}
+
+		if (mMaxEntries > 0)
+		{
+			while (mSize > mMaxEntries)
+			{
+				evictOldest(HistoryEvictionListener.Cause.MAX_ENTRIES);
+			}
+		}
+	}
+
+
+	protected void evictExpired(long aNow)
+	{
+		while (mSize > 0 && aNow - mTimes[mStart] > mMaxAgeMillis)
+		{
+			evictOldest(HistoryEvictionListener.Cause.MAX_AGE);
+		}
+	}
+
+
+	protected void evictOldest(HistoryEvictionListener.Cause aCause)
+	{
+		HistoryEntry<K,V> entry = mEvictionListener == null ? null : createEntry(mStart);
+		removeAt(mStart);
+		if (entry != null)
+		{
+			mEvictionListener.entryEvicted(entry, aCause);
+		}
+	}
+
+
+	/**
+	 * evicts the entries that are older than the maximal age. the puts and the reads evict them too, so this is needed
+	 * only to release the expired entries of a map that is not used for a while
+	 */
+	public void evictExpired()
+	{
+		if (mMaxAgeMillis > 0)
+		{
+			evictExpired(System.currentTimeMillis());
+		}
+	}
+
+
+	/**
+	 * returns a copy of the entry of the given key
+	 *
+	 * @param aKey the key
+	 *
+	 * @return the entry, or null if the key is not in the map
+	 */
+	public HistoryEntry<K,V> getHistoryEntry(K aKey)
+	{
+		evictExpired();
+		int slot = findSlot(aKey);
+		return slot < 0 ? null : createEntry(mTable[slot] - 1);
+	}
+
+
+	public void clear()
+	{
+		initStorage();
+		++mModCount;
+	}
+
+	public boolean containsKey(Object aKey)
+	{
+		evictExpired();
+		return findSlot(aKey) >= 0;
+	}
+
+	public boolean containsValue(Object aValue)
+	{
+		evictExpired();
+		for (int position=mStart ; position<mEnd ; ++position)
+		{
+			if (mKeys[position] != REMOVED && (aValue == null ? mValues[position] == null : aValue.equals(mValues[position])))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object aKey)
+	{
+		evictExpired();
+		int slot = findSlot(aKey);
+		return slot < 0 ? null : (V)mValues[mTable[slot] - 1];
+	}
+
+	public boolean isEmpty()
+	{
+		evictExpired();
+		return mSize == 0;
+	}
+
+	public int size()
+	{
+		evictExpired();
+		return mSize;
+	}
+
+	public void putAll(Map<? extends K, ? extends V> aMap)
+	{
+		for (Entry<? extends K, ? extends V> entry:aMap.entrySet())
+		{
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(Object aKey)
+	{
+		int slot = findSlot(aKey);
+		if (slot < 0)
+		{
+			return null;
+		}
+
+		int position = mTable[slot] - 1;
+		V oldValue = (V)mValues[position];
+		deleteSlot(slot);
+		--mSize;
+		++mModCount;
+		removePosition(position);
+		return oldValue;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	public V getOldest()
+	{
+		evictExpired();
+		return mSize == 0 ? null : (V)mValues[mStart];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getLatest()
+	{
+		evictExpired();
+		return mSize == 0 ? null : (V)mValues[mEnd - 1];
+	}
+
+	public void removeOldest()
+	{
+		evictExpired();
+		if (mSize > 0)
+		{
+			removeAt(mStart);
+		}
+	}
+
+	public void removeLatest()
+	{
+		evictExpired();
+		if (mSize > 0)
+		{
+			removeAt(mEnd - 1);
+		}
+	}
+
+
+	/**
+	 * returns a view of the entries inserted before the given time, from the oldest.
+	 * the view is valid until the map is modified
+	 */
+	public List<HistoryEntry<K,V>> getEntriesBefore(long aTime)
+	{
+		evictExpired();
+		return new CompactHistoryView(mStart, findPosition(aTime, true));
+	}
+
+	/**
+	 * returns a view of the entries inserted at the given time or before it, from the oldest.
+	 * the view is valid until the map is modified
+	 */
+	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(long aTime)
+	{
+		evictExpired();
+		return new CompactHistoryView(mStart, findPosition(aTime, false));
+	}
+
+	/**
+	 * returns a view of the entries inserted after the given time, from the oldest.
+	 * the view is valid until the map is modified
+	 */
+	public List<HistoryEntry<K,V>> getEntriesAfter(long aTime)
+	{
+		evictExpired();
+		return new CompactHistoryView(findPosition(aTime, false), mEnd);
+	}
+
+	/**
+	 * returns a view of the entries inserted at the given time or after it, from the oldest.
+	 * the view is valid until the map is modified
+	 */
+	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(long aTime)
+	{
+		evictExpired();
+		return new CompactHistoryView(findPosition(aTime, true), mEnd);
+	}
+
+	//the Date overloads also serve java.sql.Date and Timestamp, which extend Date
+	public List<HistoryEntry<K,V>> getEntriesBefore(Date aTime)
+	{
+		return getEntriesBefore(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(Date aTime)
+	{
+		return getEntriesBeforeInclusive(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesAfter(Date aTime)
+	{
+		return getEntriesAfter(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(Date aTime)
+	{
+		return getEntriesAfterInclusive(aTime.getTime());
+	}
+
+
+	public void removeBefore(long aTime)
+	{
+		removeRange(mStart, findPosition(aTime, true));
+	}
+
+	public void removeBeforeInclusive(long aTime)
+	{
+		removeRange(mStart, findPosition(aTime, false));
+	}
+
+	public void removeAfter(long aTime)
+	{
+		removeRange(findPosition(aTime, false), mEnd);
+	}
+
+	public void removeAfterInclusive(long aTime)
+	{
+		removeRange(findPosition(aTime, true), mEnd);
+	}
+
+	public void removeBefore(Date aTime)
+	{
+		removeBefore(aTime.getTime());
+	}
+
+	public void removeBeforeInclusive(Date aTime)
+	{
+		removeBeforeInclusive(aTime.getTime());
+	}
+
+	public void removeAfter(Date aTime)
+	{
+		removeAfter(aTime.getTime());
+	}
+
+	public void removeAfterInclusive(Date aTime)
+	{
+		removeAfterInclusive(aTime.getTime());
+	}
+
+
+	/**
+	 * returns a read only view of the keys, from the oldest. the view is valid until the map is modified
+	 */
+	public Set<K> keySet()
+	{
+		evictExpired();
+		return new AbstractSet<K>()
+		{
+			public Iterator<K> iterator()
+			{
+				return new PositionIterator<K>()
+				{
+					@SuppressWarnings("unchecked")
+					protected K get(int aPosition)
+					{
+						return (K)mKeys[aPosition];
+					}
+				};
+			}
+
+			public boolean contains(Object aKey)
+			{
+				return findSlot(aKey) >= 0;
+			}
+
+			public int size()
+			{
+				return mSize;
+			}
+		};
+	}
+
+	/**
+	 * returns a read only view of the values, from the oldest. the view is valid until the map is modified
+	 */
+	public Collection<V> values()
+	{
+		evictExpired();
+		return new AbstractCollection<V>()
+		{
+			public Iterator<V> iterator()
+			{
+				return new PositionIterator<V>()
+				{
+					@SuppressWarnings("unchecked")
+					protected V get(int aPosition)
+					{
+						return (V)mValues[aPosition];
+					}
+				};
+			}
+
+			public int size()
+			{
+				return mSize;
+			}
+		};
+	}
+
+	/**
+	 * returns a read only view of the entries, from the oldest. the view is valid until the map is modified
+	 */
+	public Set<Entry<K,V>> entrySet()
+	{
+		evictExpired();
+		return new AbstractSet<Entry<K,V>>()
+		{
+			public Iterator<Entry<K,V>> iterator()
+			{
+				return new PositionIterator<Entry<K,V>>()
+				{
+					@SuppressWarnings("unchecked")
+					protected Entry<K,V> get(int aPosition)
+					{
+						return new AbstractMap.SimpleImmutableEntry<K,V>((K)mKeys[aPosition], (V)mValues[aPosition]);
+					}
+				};
+			}
+
+			public int size()
+			{
+				return mSize;
+			}
+		};
+	}
+
+
+	public int getMaxEntries()
+	{
+		return mMaxEntries;
+	}
+
+	public long getMaxAgeMillis()
+	{
+		return mMaxAgeMillis;
+	}
+
+	public HistoryEvictionListener<K,V> getEvictionListener()
+	{
+		return mEvictionListener;
+	}
+
+	public void setEvictionListener(HistoryEvictionListener<K,V> aEvictionListener)
+	{
+		mEvictionListener = aEvictionListener;
+	}
+
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("(");
+
+		for (int position=mStart ; position<mEnd ; ++position)
+		{
+			if (mKeys[position] != REMOVED)
+			{
+				if (sb.length() > 1)
+				{
+					sb.append(",");
+				}
+				sb.append(createEntry(position).toString());
+			}
+		}
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+
+
+	/////////PositionIterator class ////////////////////
+	//iterates over the live positions of the history, from the oldest
+	protected abstract class PositionIterator<T> implements Iterator<T>
+	{
+		protected final int mExpectedModCount = mModCount;
+		protected int mPosition = mStart;
+
+		protected abstract T get(int aPosition);
+
+		public boolean hasNext()
+		{
+			if (mModCount != mExpectedModCount)
+			{
+				throw new ConcurrentModificationException("The CompactHistoryMap was modified after the view was created.");
+			}
+
+			while (mPosition < mEnd && mKeys[mPosition] == REMOVED)
+			{
+				++mPosition;
+			}
+			return mPosition < mEnd;
+		}
+
+		public T next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			return get(mPosition++);
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException("A view of the CompactHistoryMap is read only.");
+		}
+	}
+
+
+
+	/////////CompactHistoryView class ////////////////////
+	//a random access view of the live entries in a range of positions. when the range has removed positions, the live
+	//positions are listed when the view is created. the entries are created as they are read
+	protected class CompactHistoryView extends AbstractList<HistoryEntry<K,V>> implements RandomAccess
+	{
+		protected final int mFrom;
+		protected final int mSize;
+		//the live positions of the range, or null when the range has no removed positions
+		protected final int[] mPositions;
+		protected final int mExpectedModCount = mModCount;
+
+		protected CompactHistoryView(int aFrom, int aTo)
+		{
+			mFrom = aFrom;
+			if (mRemovedEntries == 0)
+			{
+				mSize = aTo - aFrom;
+				mPositions = null;
+				return;
+			}
+
+			int[] positions = new int[aTo - aFrom];
+			int size = 0;
+			for (int position=aFrom ; position<aTo ; ++position)
+			{
+				if (mKeys[position] != REMOVED)
+				{
+					positions[size++] = position;
+				}
+			}
+			mSize = size;
+			mPositions = positions;
+		}
+
+		protected void checkForModification()
+		{
+			if (mModCount != mExpectedModCount)
+			{
+				throw new ConcurrentModificationException("The CompactHistoryMap was modified after the view was created.");
+			}
+		}
+
+		public HistoryEntry<K,V> get(int aIndex)
+		{
+			checkForModification();
+			if (aIndex < 0 || aIndex >= mSize)
+			{
+				throw new IndexOutOfBoundsException("Index: " + aIndex + ", Size: " + mSize);
+			}
+
+			return createEntry(mPositions == null ? mFrom + aIndex : mPositions[aIndex]);
+		}
+
+		public int size()
+		{
+			checkForModification();
+			return mSize;
+		}
+	}
+}
@@ -0,0 +1,1022 @@
+package com.tinyj.infra.structures;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.tinyj.infra.structures.HistoryMap.HistoryEntry;
+
+
+/**
+ * a thread safe map that has history on the insertions to it (see HistoryMap), for sharing between threads
+ * without synchronizing every call. the keys cannot be null.
+ *
+ * the current entry of each key is held in a ConcurrentHashMap, in a record of the log. the records are appended to
+ * a lock free log, in the order of their insertion: a put claims the next position of the log (and its time, which
+ * never goes back) with a single compare-and-set, puts the record in the map, and stores it in its position. the log
+ * is made of chunks of a fixed size, so it grows without copying the records.
+ * a record is live while it is the current record of its key in the map. when its entry is replaced or removed, the
+ * record drops the entry (so its value is not held by the log) and keeps only its time. the dead records are dropped by
+ * a compaction, which copies the live records of the full chunks to a compact array, once the dead records outnumber
+ * the live ones. so the log holds O(size()) records, whatever the number of puts.
+ *
+ * the readers see the log up to its published position, below which all the positions are stored. the log is sorted by
+ * time, so the time range queries find their boundary by a binary search, and copy the live entries in the range.
+ * the runs of dead records at the start and at the end of the log are remembered, so getting the oldest or the latest
+ * entry skips them. neither the queries nor the removals block the writers.
+ *
+ * note that a put that claimed a position but did not store its record yet hides the records appended after it from the
+ * readers, until it is stored.
+ *
+ * @author asaf.peeri
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentHistoryMap<K,V> implements Map<K,V>
+{
+	protected static final int CHUNK_BITS = 12;
+	protected static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	//the current record of each key
+	protected final ConcurrentHashMap<K,LogRecord<K,V>> mEntries = new ConcurrentHashMap<K,LogRecord<K,V>>();
+
+	//the last claimed position of the log, and its time
+	protected final AtomicReference<LogPosition> mLastPosition = new AtomicReference<LogPosition>(new LogPosition(-1, Long.MIN_VALUE));
+
+	//the positions below the published position are stored
+	protected final AtomicLong mPublished = new AtomicLong();
+
+	//the compacted records and the chunks of the log
+	protected final AtomicReference<LogChunks<K,V>> mChunks = new AtomicReference<LogChunks<K,V>>(
+			new LogChunks<K,V>(LogChunks.<K,V>newRecords(0), 0, LogChunks.<K,V>newChunks(0)));
+
+	//the number of dead records in the log, and whether a compaction runs
+	protected final LongAdder mDeadRecords = new LongAdder();
+	protected final AtomicBoolean mCompacting = new AtomicBoolean();
+
+
+
+	public ConcurrentHistoryMap()
+	{
+	}
+
+
+	public V put(K aKey, V aValue)
+	{
+		//checked before the position is claimed, so a rejected put does not leave a hole in the log
+		if (aKey == null)
+		{
+			throw new NullPointerException("ConcurrentHistoryMap does not support null keys");
+		}
+
+		LogPosition position = claimPosition();
+		LogRecord<K,V> record = null;
+		LogRecord<K,V> previousRecord = null;
+		try
+		{
+			//the record is put in the map before it is stored in the log, so a record found in the log
+			//that is not the current record of its key was replaced or removed, and will never be live again
+			LogRecord<K,V> newRecord = new LogRecord<K,V>(position.mTime, new HistoryEntry<K,V>(position.mTime, aKey, aValue));
+			previousRecord = mEntries.put(aKey, newRecord);
+			record = newRecord;
+		}
+		finally
+		{
+			//the claimed position is always stored, since the readers do not see the positions after an unstored one
+			if (record == null)
+			{
+				record = new LogRecord<K,V>(position.mTime, null);
+				mDeadRecords.increment();
+			}
+			storeRecord(position.mPosition, record);
+			advancePublished();
+		}
+
+		HistoryEntry<K,V> previousEntry = kill(previousRecord);
+		compactIfNeeded();
+		return previousEntry == null ? null : previousEntry.getValue();
+	}
+
+
+	//claims the next position of the log, and a time that is not before the time of the previous position
+	protected LogPosition claimPosition()
+	{
+		while (true)
+		{
+			LogPosition lastPosition = mLastPosition.get();
+			long time = Math.max(System.currentTimeMillis(), lastPosition.mTime);
+			LogPosition position = new LogPosition(lastPosition.mPosition + 1, time);
+			if (mLastPosition.compareAndSet(lastPosition, position))
+			{
+				return position;
+			}
+		}
+	}
+
+
+	protected void storeRecord(long aPosition, LogRecord<K,V> aRecord)
+	{
+		long chunkNumber = aPosition >>> CHUNK_BITS;
+		while (true)
+		{
+			LogChunks<K,V> chunks = mChunks.get();
+			int chunkIndex = (int)(chunkNumber - chunks.mFirstChunk);
+			if (chunkIndex < chunks.mChunks.length)
+			{
+				//the compaction never passes an unstored position, so the chunk of the position was not dropped
+				chunks.mChunks[chunkIndex].set((int)(aPosition & CHUNK_MASK), aRecord);
+				return;
+			}
+
+			//add chunks. the chunks are shared by the old and new arrays, so a concurrent store is not lost
+			AtomicReferenceArray<LogRecord<K,V>>[] grownChunks = LogChunks.newChunks(Math.max(chunks.mChunks.length * 2, chunkIndex + 1));
+			System.arraycopy(chunks.mChunks, 0, grownChunks, 0, chunks.mChunks.length);
+			for (int i=chunks.mChunks.length ; i<grownChunks.length ; ++i)
+			{
+				grownChunks[i] = new AtomicReferenceArray<LogRecord<K,V>>(CHUNK_SIZE);
+			}
+			mChunks.compareAndSet(chunks, new LogChunks<K,V>(chunks.mCompacted, chunks.mFirstChunk, grownChunks));
+		}
+	}
+
+
+	//moves the published position over the stored positions, and returns it
+	protected long advancePublished()
+	{
+		long published = mPublished.get();
+		long lastPosition = mLastPosition.get().mPosition;
+		LogChunks<K,V> chunks = mChunks.get();
+		long position = published;
+		while (position <= lastPosition && chunks.getAt(position) != null)
+		{
+			++position;
+		}
+
+		while (position > published)
+		{
+			if (mPublished.compareAndSet(published, position))
+			{
+				return position;
+			}
+			published = mPublished.get();
+		}
+
+		return published;
+	}
+
+
+	//drops the entry of a record that was removed from the map, and returns it. each record is removed by a single caller
+	protected HistoryEntry<K,V> kill(LogRecord<K,V> aRecord)
+	{
+		if (aRecord == null)
+		{
+			return null;
+		}
+
+		HistoryEntry<K,V> entry = aRecord.mEntry;
+		aRecord.mEntry = null;
+		mDeadRecords.increment();
+		return entry;
+	}
+
+
+	//removes a record from the map, if it is still the current record of its key, and drops its entry
+	protected boolean removeRecord(LogRecord<K,V> aRecord)
+	{
+		HistoryEntry<K,V> entry = aRecord.mEntry;
+		if (entry != null && mEntries.remove(entry.getKey(), aRecord))
+		{
+			kill(aRecord);
+			return true;
+		}
+
+		return false;
+	}
+
+
+	//returns the entry of a live record, or null
+	protected HistoryEntry<K,V> getLiveEntry(LogRecord<K,V> aRecord)
+	{
+		HistoryEntry<K,V> entry = aRecord.mEntry;
+		return entry != null && mEntries.get(entry.getKey()) == aRecord ? entry : null;
+	}
+
+
+	//returns the current entry of a key. a record that was replaced meanwhile is no longer in the map, so the lookup is repeated
+	protected HistoryEntry<K,V> getEntry(Object aKey)
+	{
+		while (true)
+		{
+			LogRecord<K,V> record = mEntries.get(aKey);
+			if (record == null)
+			{
+				return null;
+			}
+
+			HistoryEntry<K,V> entry = record.mEntry;
+			if (entry != null)
+			{
+				return entry;
+			}
+		}
+	}
+
+
+	//compacts the log when its dead records outnumber its live records by more than two chunks, so the compactions
+	//are amortized over the kills, and a compaction always has more than the last (unfinished) chunk to drop
+	protected void compactIfNeeded()
+	{
+		if (mDeadRecords.sum() > mEntries.size() + 2L * CHUNK_SIZE && mCompacting.compareAndSet(false, true))
+		{
+			try
+			{
+				compact();
+			}
+			finally
+			{
+				mCompacting.set(false);
+			}
+		}
+	}
+
+
+	//copies the records that were not killed, from the compacted records and the full published chunks, to new compacted
+	//records, and drops the chunks. runs by a single thread at a time, so only the growth of the chunks races with it
+	protected void compact()
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long end = Math.max(published & ~(long)CHUNK_MASK, chunks.getFirstPosition());
+
+		List<LogRecord<K,V>> keptRecords = new ArrayList<LogRecord<K,V>>();
+		long droppedRecords = 0;
+		for (LogRecord<K,V> record:chunks.mCompacted)
+		{
+			if (record.mEntry != null)
+			{
+				keptRecords.add(record);
+			}
+			else
+			{
+				++droppedRecords;
+			}
+		}
+		for (long position=chunks.getFirstPosition() ; position<end ; ++position)
+		{
+			LogRecord<K,V> record = chunks.getAt(position);
+			if (record.mEntry != null)
+			{
+				keptRecords.add(record);
+			}
+			else
+			{
+				++droppedRecords;
+			}
+		}
+
+		LogRecord<K,V>[] compacted = keptRecords.toArray(LogChunks.<K,V>newRecords(keptRecords.size()));
+		long firstChunk = end >>> CHUNK_BITS;
+		while (true)
+		{
+			int droppedChunks = (int)(firstChunk - chunks.mFirstChunk);
+			AtomicReferenceArray<LogRecord<K,V>>[] remainingChunks = LogChunks.newChunks(chunks.mChunks.length - droppedChunks);
+			System.arraycopy(chunks.mChunks, droppedChunks, remainingChunks, 0, remainingChunks.length);
+			if (mChunks.compareAndSet(chunks, new LogChunks<K,V>(compacted, firstChunk, remainingChunks)))
+			{
+				break;
+			}
+
+			//chunks were added meanwhile
+			chunks = mChunks.get();
+		}
+
+		mDeadRecords.add(-droppedRecords);
+	}
+
+
+	//returns the first index in [aFrom, aTo) whose time is above aTime (or equal to it, when aInclusive), or aTo if there is none
+	protected long findIndex(LogChunks<K,V> aChunks, long aFrom, long aTo, long aTime, boolean aInclusive)
+	{
+		long low = aFrom;
+		long high = aTo;
+		while (low < high)
+		{
+			long middle = (low + high) >>> 1;
+			long time = aChunks.get(middle).mTime;
+			if (time > aTime || (aInclusive && time == aTime))
+			{
+				high = middle;
+			}
+			else
+			{
+				low = middle + 1;
+			}
+		}
+
+		return low;
+	}
+
+
+	//returns a copy of the live entries in [aFrom, aTo)
+	protected List<HistoryEntry<K,V>> getLiveEntries(LogChunks<K,V> aChunks, long aFrom, long aTo)
+	{
+		List<HistoryEntry<K,V>> entries = new ArrayList<HistoryEntry<K,V>>();
+		for (long index=aFrom ; index<aTo ; ++index)
+		{
+			HistoryEntry<K,V> entry = getLiveEntry(aChunks.get(index));
+			if (entry != null)
+			{
+				entries.add(entry);
+			}
+		}
+
+		return entries;
+	}
+
+
+	//returns the live entries before the given time (or at it, when aInclusive)
+	protected List<HistoryEntry<K,V>> getEntriesBefore(long aTime, boolean aInclusive)
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long oldest = chunks.mOldestIndex.get();
+		return getLiveEntries(chunks, oldest, findIndex(chunks, oldest, chunks.getSize(published), aTime, !aInclusive));
+	}
+
+
+	//returns the live entries after the given time (or at it, when aInclusive)
+	protected List<HistoryEntry<K,V>> getEntriesAfter(long aTime, boolean aInclusive)
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long size = chunks.getSize(published);
+		return getLiveEntries(chunks, findIndex(chunks, chunks.mOldestIndex.get(), size, aTime, aInclusive), size);
+	}
+
+
+	/**
+	 * returns a copy of the entries inserted before the given time, from the oldest
+	 */
+	public List<HistoryEntry<K,V>> getEntriesBefore(long aTime)
+	{
+		return getEntriesBefore(aTime, false);
+	}
+
+	/**
+	 * returns a copy of the entries inserted at the given time or before it, from the oldest
+	 */
+	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(long aTime)
+	{
+		return getEntriesBefore(aTime, true);
+	}
+
+	/**
+	 * returns a copy of the entries inserted after the given time, from the oldest
+	 */
+	public List<HistoryEntry<K,V>> getEntriesAfter(long aTime)
+	{
+		return getEntriesAfter(aTime, false);
+	}
+
+	/**
+	 * returns a copy of the entries inserted at the given time or after it, from the oldest
+	 */
+	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(long aTime)
+	{
+		return getEntriesAfter(aTime, true);
+	}
+
+	//the Date overloads also serve java.sql.Date and Timestamp, which extend Date
+	public List<HistoryEntry<K,V>> getEntriesBefore(Date aTime)
+	{
+		return getEntriesBefore(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(Date aTime)
+	{
+		return getEntriesBeforeInclusive(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesAfter(Date aTime)
+	{
+		return getEntriesAfter(aTime.getTime());
+	}
+
+	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(Date aTime)
+	{
+		return getEntriesAfter(aTime.getTime(), true);
+	}
+
+
+	//removes the live entries before the given time (or at it, when aInclusive)
+	protected void removeBefore(long aTime, boolean aInclusive)
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long oldest = chunks.mOldestIndex.get();
+		long end = findIndex(chunks, oldest, chunks.getSize(published), aTime, !aInclusive);
+		for (long index=oldest ; index<end ; ++index)
+		{
+			removeRecord(chunks.get(index));
+		}
+
+		chunks.advanceOldestIndex(end);
+		compactIfNeeded();
+	}
+
+
+	//removes the live entries after the given time (or at it, when aInclusive)
+	protected void removeAfter(long aTime, boolean aInclusive)
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long size = chunks.getSize(published);
+		long start = findIndex(chunks, chunks.mOldestIndex.get(), size, aTime, aInclusive);
+		for (long index=start ; index<size ; ++index)
+		{
+			removeRecord(chunks.get(index));
+		}
+
+		chunks.addLatestDeadRun(start, size);
+		compactIfNeeded();
+	}
+
+
+	public void removeBefore(long aTime)
+	{
+		removeBefore(aTime, false);
+	}
+
+	public void removeBeforeInclusive(long aTime)
+	{
+		removeBefore(aTime, true);
+	}
+
+	public void removeAfter(long aTime)
+	{
+		removeAfter(aTime, false);
+	}
+
+	public void removeAfterInclusive(long aTime)
+	{
+		removeAfter(aTime, true);
+	}
+
+	public void removeBefore(Date aTime)
+	{
+		removeBefore(aTime.getTime(), false);
+	}
+
+	public void removeBeforeInclusive(Date aTime)
+	{
+		removeBefore(aTime.getTime(), true);
+	}
+
+	public void removeAfter(Date aTime)
+	{
+		removeAfter(aTime.getTime(), false);
+	}
+
+	public void removeAfterInclusive(Date aTime)
+	{
+		removeAfter(aTime.getTime(), true);
+	}
+
+
+	//returns the oldest live record, and moves the oldest index over the dead records before it
+	protected LogRecord<K,V> getOldestRecord()
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long size = chunks.getSize(published);
+		for (long index=chunks.mOldestIndex.get() ; index<size ; ++index)
+		{
+			LogRecord<K,V> record = chunks.get(index);
+			if (getLiveEntry(record) != null)
+			{
+				chunks.advanceOldestIndex(index);
+				return record;
+			}
+		}
+
+		chunks.advanceOldestIndex(size);
+		return null;
+	}
+
+
+	//returns the latest live record, and remembers the run of dead records after it
+	protected LogRecord<K,V> getLatestRecord()
+	{
+		long published = advancePublished();
+		LogChunks<K,V> chunks = mChunks.get();
+		long size = chunks.getSize(published);
+		long oldest = chunks.mOldestIndex.get();
+		DeadRun deadRun = chunks.mLatestDeadRun.get();
+		for (long index=size - 1 ; index>=oldest ; --index)
+		{
+			if (index >= deadRun.mFrom && index < deadRun.mTo)
+			{
+				//skip the known dead records
+				index = deadRun.mFrom;
+				continue;
+			}
+
+			LogRecord<K,V> record = chunks.get(index);
+			if (getLiveEntry(record) != null)
+			{
+				chunks.addLatestDeadRun(index + 1, size);
+				return record;
+			}
+		}
+
+		chunks.addLatestDeadRun(oldest, size);
+		return null;
+	}
+
+
+	public V getOldest()
+	{
+		while (true)
+		{
+			LogRecord<K,V> record = getOldestRecord();
+			if (record == null)
+			{
+				return null;
+			}
+
+			//retry when the oldest entry was removed meanwhile
+			HistoryEntry<K,V> entry = record.mEntry;
+			if (entry != null)
+			{
+				return entry.getValue();
+			}
+		}
+	}
+
+	public V getLatest()
+	{
+		while (true)
+		{
+			LogRecord<K,V> record = getLatestRecord();
+			if (record == null)
+			{
+				return null;
+			}
+
+			HistoryEntry<K,V> entry = record.mEntry;
+			if (entry != null)
+			{
+				return entry.getValue();
+			}
+		}
+	}
+
+
+	public void removeOldest()
+	{
+		LogRecord<K,V> record;
+		do
+		{
+			record = getOldestRecord();
+		}
+		//retry when the oldest entry was replaced or removed meanwhile
+		while (record != null && !removeRecord(record));
+
+		compactIfNeeded();
+	}
+
+	public void removeLatest()
+	{
+		LogRecord<K,V> record;
+		do
+		{
+			record = getLatestRecord();
+		}
+		while (record != null && !removeRecord(record));
+
+		compactIfNeeded();
+	}
+
+
+	public HistoryEntry<K,V> getHistoryEntry(K aKey)
+	{
+		return getEntry(aKey);
+	}
+
+
+	/**
+	 * removes all the entries. the puts that run concurrently may stay
+	 */
+	public void clear()
+	{
+		for (LogRecord<K,V> record:mEntries.values())
+		{
+			removeRecord(record);
+		}
+
+		compactIfNeeded();
+	}
+
+	public boolean containsKey(Object aKey)
+	{
+		return mEntries.containsKey(aKey);
+	}
+
+	public boolean containsValue(Object aValue)
+	{
+		Iterator<HistoryEntry<K,V>> entriesIterator = new EntriesIterator();
+		while (entriesIterator.hasNext())
+		{
+			V value = entriesIterator.next().getValue();
+			if (aValue == null ? value == null : aValue.equals(value))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public V get(Object aKey)
+	{
+		HistoryEntry<K,V> entry = getEntry(aKey);
+		return entry == null ? null : entry.getValue();
+	}
+
+	public boolean isEmpty()
+	{
+		return mEntries.isEmpty();
+	}
+
+	public int size()
+	{
+		return mEntries.size();
+	}
+
+	public void putAll(Map<? extends K, ? extends V> aMap)
+	{
+		for (Entry<? extends K, ? extends V> entry:aMap.entrySet())
+		{
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public V remove(Object aKey)
+	{
+		HistoryEntry<K,V> entry = kill(mEntries.remove(aKey));
+		compactIfNeeded();
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * returns the keys. removing a key from the set removes it from the map
+	 */
+	public Set<K> keySet()
+	{
+		return new AbstractSet<K>()
+		{
+			public Iterator<K> iterator()
+			{
+				final Iterator<HistoryEntry<K,V>> entriesIterator = new EntriesIterator();
+				return new Iterator<K>()
+				{
+					public boolean hasNext()
+					{
+						return entriesIterator.hasNext();
+					}
+
+					public K next()
+					{
+						return entriesIterator.next().getKey();
+					}
+
+					public void remove()
+					{
+						entriesIterator.remove();
+					}
+				};
+			}
+
+			public int size()
+			{
+				return mEntries.size();
+			}
+
+			public boolean contains(Object aKey)
+			{
+				return mEntries.containsKey(aKey);
+			}
+
+			public boolean remove(Object aKey)
+			{
+				boolean removed = kill(mEntries.remove(aKey)) != null;
+				compactIfNeeded();
+				return removed;
+			}
+		};
+	}
+
+	public Collection<V> values()
+	{
+		return new AbstractCollection<V>()
+		{
+			public Iterator<V> iterator()
+			{
+				final Iterator<HistoryEntry<K,V>> entriesIterator = new EntriesIterator();
+				return new Iterator<V>()
+				{
+					public boolean hasNext()
+					{
+						return entriesIterator.hasNext();
+					}
+
+					public V next()
+					{
+						return entriesIterator.next().getValue();
+					}
+
+					public void remove()
+					{
+						entriesIterator.remove();
+					}
+				};
+			}
+
+			public int size()
+			{
+				return mEntries.size();
+			}
+		};
+	}
+
+	public Set<Entry<K,V>> entrySet()
+	{
+		return new AbstractSet<Entry<K,V>>()
+		{
+			public Iterator<Entry<K,V>> iterator()
+			{
+				final Iterator<HistoryEntry<K,V>> entriesIterator = new EntriesIterator();
+				return new Iterator<Entry<K,V>>()
+				{
+					public boolean hasNext()
+					{
+						return entriesIterator.hasNext();
+					}
+
+					public Entry<K,V> next()
+					{
+						HistoryEntry<K,V> entry = entriesIterator.next();
+						return new AbstractMap.SimpleImmutableEntry<K,V>(entry.getKey(), entry.getValue());
+					}
+
+					public void remove()
+					{
+						entriesIterator.remove();
+					}
+				};
+			}
+
+			public int size()
+			{
+				return mEntries.size();
+			}
+		};
+	}
+
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("(");
+
+		boolean first = true;
+		for (HistoryEntry<K,V> entry:getEntriesAfterInclusive(Long.MIN_VALUE))
+		{
+			if (!first)
+			{
+				sb.append(",");
+			}
+			sb.append(entry.toString());
+			first = false;
+		}
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+
+
+	/////////EntriesIterator class ////////////////////
+	//iterates over the current entries. the records that are killed while iterating are skipped,
+	//and remove() removes the record of the last entry only if it was not replaced meanwhile
+	protected class EntriesIterator implements Iterator<HistoryEntry<K,V>>
+	{
+		protected final Iterator<LogRecord<K,V>> mRecordsIterator = mEntries.values().iterator();
+		protected LogRecord<K,V> mNextRecord;
+		protected HistoryEntry<K,V> mNextEntry;
+		protected LogRecord<K,V> mLastRecord;
+
+		public boolean hasNext()
+		{
+			while (mNextEntry == null && mRecordsIterator.hasNext())
+			{
+				mNextRecord = mRecordsIterator.next();
+				mNextEntry = mNextRecord.mEntry;
+			}
+			return mNextEntry != null;
+		}
+
+		public HistoryEntry<K,V> next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			HistoryEntry<K,V> entry = mNextEntry;
+			mLastRecord = mNextRecord;
+			mNextRecord = null;
+			mNextEntry = null;
+			return entry;
+		}
+
+		public void remove()
+		{
+			if (mLastRecord == null)
+			{
+				throw new IllegalStateException();
+			}
+
+			removeRecord(mLastRecord);
+			mLastRecord = null;
+			compactIfNeeded();
+		}
+	}
+
+
+
+	/////////LogPosition class ////////////////////
+	protected static class LogPosition
+	{
+		protected final long mPosition;
+		protected final long mTime;
+
+		protected LogPosition(long aPosition, long aTime)
+		{
+			mPosition = aPosition;
+			mTime = aTime;
+		}
+	}
+
+
+
+	/////////LogRecord class ////////////////////
+	//the record of a put in the log. holds the entry while it is the current entry of its key, and only the time after it
+	protected static class LogRecord<K,V>
+	{
+		protected final long mTime;
+		protected volatile HistoryEntry<K,V> mEntry;
+
+		protected LogRecord(long aTime, HistoryEntry<K,V> aEntry)
+		{
+			mTime = aTime;
+			mEntry = aEntry;
+		}
+	}
+
+
+
+	/////////DeadRun class ////////////////////
+	//a run of indexes [mFrom, mTo) of the log whose records are dead
+	protected static class DeadRun
+	{
+		protected final long mFrom;
+		protected final long mTo;
+
+		protected DeadRun(long aFrom, long aTo)
+		{
+			mFrom = aFrom;
+			mTo = aTo;
+		}
+	}
+
+
+
+	/////////LogChunks class ////////////////////
+	//an immutable view of the log: the compacted records, followed by the chunks from a first chunk. replaced when
+	//chunks are added or the log is compacted. the records are addressed by their index in the view
+	protected static class LogChunks<K,V>
+	{
+		protected final LogRecord<K,V>[] mCompacted;
+		protected final long mFirstChunk;
+		protected final AtomicReferenceArray<LogRecord<K,V>>[] mChunks;
+
+		//the records before the oldest index are dead, and so are the records of the latest dead run. a record never
+		//lives again, so these only save scanning. the indexes change on a compaction, so they start over with the view
+		protected final AtomicLong mOldestIndex = new AtomicLong();
+		protected final AtomicReference<DeadRun> mLatestDeadRun = new AtomicReference<DeadRun>(new DeadRun(0, 0));
+
+		protected LogChunks(LogRecord<K,V>[] aCompacted, long aFirstChunk, AtomicReferenceArray<LogRecord<K,V>>[] aChunks)
+		{
+			mCompacted = aCompacted;
+			mFirstChunk = aFirstChunk;
+			mChunks = aChunks;
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		protected static <K,V> AtomicReferenceArray<LogRecord<K,V>>[] newChunks(int aCount)
+		{
+			return new AtomicReferenceArray[aCount];
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		protected static <K,V> LogRecord<K,V>[] newRecords(int aCount)
+		{
+			return new LogRecord[aCount];
+		}
+
+		protected long getFirstPosition()
+		{
+			return mFirstChunk << CHUNK_BITS;
+		}
+
+		//returns the number of records up to the given published position. the published position should be taken
+		//before this view, so the view does not miss the chunks of the published positions
+		protected long getSize(long aPublished)
+		{
+			return mCompacted.length + Math.max(aPublished - getFirstPosition(), 0);
+		}
+
+		//returns the record of an index below getSize()
+		protected LogRecord<K,V> get(long aIndex)
+		{
+			if (aIndex < mCompacted.length)
+			{
+				return mCompacted[(int)aIndex];
+			}
+
+			return getAt(getFirstPosition() + aIndex - mCompacted.length);
+		}
+
+		//returns the record of a position, or null for a position that was not stored, or whose chunk is not in the view
+		protected LogRecord<K,V> getAt(long aPosition)
+		{
+			long chunkIndex = (aPosition >>> CHUNK_BITS) - mFirstChunk;
+			if (chunkIndex < 0 || chunkIndex >= mChunks.length)
+			{
+				return null;
+			}
+
+			return mChunks[(int)chunkIndex].get((int)(aPosition & CHUNK_MASK));
+		}
+
+		protected void advanceOldestIndex(long aIndex)
+		{
+			long oldest;
+			do
+			{
+				oldest = mOldestIndex.get();
+				if (aIndex <= oldest)
+				{
+					return;
+				}
+			}
+			while (!mOldestIndex.compareAndSet(oldest, aIndex));
+		}
+
+		//remembers a run of dead records, merged with the remembered run when they overlap. any dead run is correct,
+		//so a concurrent update may be lost
+		protected void addLatestDeadRun(long aFrom, long aTo)
+		{
+			if (aFrom >= aTo)
+			{
+				return;
+			}
+
+			DeadRun deadRun = mLatestDeadRun.get();
+			if (deadRun.mFrom <= aTo && aFrom <= deadRun.mTo)
+			{
+				mLatestDeadRun.set(new DeadRun(Math.min(aFrom, deadRun.mFrom), Math.max(aTo, deadRun.mTo)));
+			}
+			else if (aTo >= deadRun.mTo)
+			{
+				mLatestDeadRun.set(new DeadRun(aFrom, aTo));
+			}
+		}
+	}
+}
@@ -13,6 +13,24 @@ import java.util.Map;
  */
 public class HashHistoryMap<K,V> extends HistoryMap<K,V>
 {
+	
+	public HashHistoryMap()
+	{
+		super();
+	}
+	
+	
+	/**
+	 * creates a bounded map, which evicts its oldest entries (see HistoryMap(int, long))
+	 * 
+	 * @param aMaxEntries the maximal number of entries. 0 for no limit
+	 * @param aMaxAgeMillis the maximal time since the insertion of an entry. 0 for no limit
+	 */
+	public HashHistoryMap(int aMaxEntries, long aMaxAgeMillis)
+	{
+		super(aMaxEntries, aMaxAgeMillis);
+	}
+	
 
 	@Override
 	protected Map<K, V> createMap()
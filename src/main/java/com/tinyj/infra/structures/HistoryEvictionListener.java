@@ -0,0 +1,21 @@
+package com.tinyj.infra.structures;
+
+
+/**
+ * gets the entries a bounded HistoryMap evicts (see HistoryMap(int, long))
+ *
+ * @author asaf.peeri
+ *
+ */
+public interface HistoryEvictionListener<K,V>
+{
+	public static enum Cause {MAX_ENTRIES, MAX_AGE}
+
+	/**
+	 * called after an entry was evicted from the map
+	 *
+	 * @param aEntry the evicted entry
+	 * @param aCause MAX_ENTRIES if the map exceeded its maximal number of entries, MAX_AGE if the entry exceeded the maximal age
+	 */
+	public void entryEvicted(HistoryMap.HistoryEntry<K,V> aEntry, Cause aCause);
+}
@@ -1,11 +1,15 @@
 package com.tinyj.infra.structures;
 
 import java.sql.Timestamp;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 
 
@@ -14,6 +18,30 @@ import java.util.Set;
  * on the insertions to it.
  * It is possible to extract from the map entries that were inserted 
  * before/after given time, to extract the oldest entry,and to extract the newest entry
+ * 
+ * the history entries are linked to each other in a doubly linked list, in the order of their insertion,
+ * and each entry is also held by its key. so removing an entry (by its key, the oldest or the latest) 
+ * unlinks it in O(1), without searching or shifting the history.
+ * putting a key that is already in the map moves it to the end of the history, with its new insertion time.
+ * 
+ * the entries are also held in a time index: an array in the order of insertion, which is also the order of
+ * the insertion times (the insertion time never goes back, even when the clock does). so the time range
+ * operations find their boundary by a binary search, in O(log n). an entry removed from the middle of the history
+ * is only marked as removed in the index, and the index is compacted when the removed entries outnumber the
+ * live ones, so the removals stay O(1) amortized.
+ * the time range queries return random access views of the history (get() and size() are O(1)), which are valid
+ * until the map is modified. a view is backed by the range of the time index, and is returned in O(log n). when there
+ * are removed entries in the index (which was not compacted since), the live entries of the range are copied to the
+ * view, in O(log n + k). the time range removals remove the k entries in a single pass.
+ * 
+ * the map can be bounded by a maximal number of entries and a maximal age (see HistoryMap(int, long)), to serve as
+ * a sliding window. every put evicts the oldest entries while the map exceeds its maximal number of entries, and while
+ * the oldest entry is older than the maximal age. only the oldest entry is checked, so the check is O(1) per put, and
+ * each entry is evicted once. the reads (get(), containsKey(), size(), the oldest and the latest entries, the time range
+ * queries and the views) check the oldest entry first too, so a map that is not put to does not return expired entries.
+ * so on a map bounded by age a read may evict entries, and invalidate the views of the history that were taken before it.
+ * evictExpired() evicts the expired entries of a map that is not used for a while.
+ * the evicted entries are reported to the eviction listener, if set.
  * @author asaf.peeri
  *
  * @param <K>
@@ -22,10 +50,34 @@ import java.util.Set;
 public abstract class HistoryMap<K,V> implements Map<K,V>
 {
 	
-	protected ArrayList<HistoryEntry<K,V>> mHistoryEntries = new ArrayList<HistoryEntry<K,V>>();
+	//the ends of the history list, by the insertion order. null when the map is empty
+	protected HistoryEntry<K,V> mOldestEntry;
+	protected HistoryEntry<K,V> mLatestEntry;
+	
+	//the time index. the entries in [mIndexStart, mIndexEnd) are sorted by time, and include
+	//mIndexRemovedEntries entries that were removed from the history (their index position is REMOVED)
+	protected HistoryEntry<K,V>[] mTimeIndex = newTimeIndex(INITIAL_TIME_INDEX_CAPACITY);
+	protected int mIndexStart;
+	protected int mIndexEnd;
+	protected int mIndexRemovedEntries;
+	
+	//the number of structural modifications, which invalidate the views of the history
+	protected int mModCount;
+	
 	protected Map<K,HistoryEntry<K,V>> mHistoryEntriesByKey;
 	protected Map<K,V> mMap;
 	
+	//the bounds of the map. 0 for no bound
+	protected final int mMaxEntries;
+	protected final long mMaxAgeMillis;
+	
+	protected HistoryEvictionListener<K,V> mEvictionListener;
+	
+	protected static final int INITIAL_TIME_INDEX_CAPACITY = 16;
+	
+	//the index position of an entry that was removed from the history
+	protected static final int REMOVED = -1;
+	
 	/**
 	 * Creates the internal map
 	 * @return the niternal map
@@ -37,6 +89,25 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	
 	public HistoryMap()
 	{
+		this(0, 0);
+	}
+	
+	
+	/**
+	 * creates a bounded map, which evicts its oldest entries
+	 * 
+	 * @param aMaxEntries the maximal number of entries. 0 for no limit
+	 * @param aMaxAgeMillis the maximal time since the insertion of an entry. 0 for no limit
+	 */
+	public HistoryMap(int aMaxEntries, long aMaxAgeMillis)
+	{
+		if (aMaxEntries < 0 || aMaxAgeMillis < 0)
+		{
+			throw new IllegalArgumentException("The bounds of the map must not be negative: maxEntries=" + aMaxEntries + ", maxAgeMillis=" + aMaxAgeMillis);
+		}
+		
+		mMaxEntries = aMaxEntries;
+		mMaxAgeMillis = aMaxAgeMillis;
 		mMap = createMap();
 		mHistoryEntriesByKey = createHistoryByKeysMap();
 		
@@ -48,10 +119,9 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 		StringBuilder sb = new StringBuilder();
 		sb.append("(");
 		
-		int counter = 0;
-		for (HistoryEntry<K, V> entry:mHistoryEntries)
+		for (HistoryEntry<K, V> entry = mOldestEntry ; entry != null ; entry = entry.mNext)
 		{
-			if (counter > 1)
+			if (entry != mOldestEntry)
 			{
 				sb.append(",");
 			}
@@ -70,6 +140,11 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 		private V mValue;
 		private K mKey;
 		
+		//the neighbours of the entry in the history list, and its position in the time index
+		protected HistoryEntry<K,V> mPrevious;
+		protected HistoryEntry<K,V> mNext;
+		protected int mIndexPosition = REMOVED;
+		
 		public HistoryEntry(long aEntryTime,K aKey,V aValue)
 		{
 			setEntryTime(aEntryTime);
@@ -92,6 +167,7 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 			return sb.toString();
 		}
 
+		//the time of an entry in a HistoryMap should not be changed, since the map is sorted by it
 		public void setEntryTime(long entryTime)
 		{
 			mEntryTime = entryTime;
@@ -124,61 +200,440 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	}
 	
 	//////////End of HistoryEntry class ///////////////
+	
+	
+	
+	//appends an entry to the end of the history list and the time index
+	protected void linkLatest(HistoryEntry<K,V> aEntry)
+	{
+		addToIndex(aEntry);
+		++mModCount;
+		aEntry.mPrevious = mLatestEntry;
+		aEntry.mNext = null;
+		if (mLatestEntry == null)
+		{
+			mOldestEntry = aEntry;
+		}
+		else
+		{
+			mLatestEntry.mNext = aEntry;
+		}
+		mLatestEntry = aEntry;
+	}
+	
+	
+	//removes an entry from the history list and the time index
+	protected void unlink(HistoryEntry<K,V> aEntry)
+	{
+		removeFromIndex(aEntry);
+		++mModCount;
+		if (aEntry.mPrevious == null)
+		{
+			mOldestEntry = aEntry.mNext;
+		}
+		else
+		{
+			aEntry.mPrevious.mNext = aEntry.mNext;
+		}
+		
+		if (aEntry.mNext == null)
+		{
+			mLatestEntry = aEntry.mPrevious;
+		}
+		else
+		{
+			aEntry.mNext.mPrevious = aEntry.mPrevious;
+		}
+		
+		aEntry.mPrevious = null;
+		aEntry.mNext = null;
+	}
+	
+	
+	//removes an entry from the history and the maps
+	protected void removeEntry(HistoryEntry<K,V> aEntry)
+	{
+		unlink(aEntry);
+		mMap.remove(aEntry.getKey());
+		mHistoryEntriesByKey.remove(aEntry.getKey());
+	}
+	
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected static <K,V> HistoryEntry<K,V>[] newTimeIndex(int aCapacity)
+	{
+		return new HistoryEntry[aCapacity];
+	}
+	
+	
+	//appends an entry to the end of the time index
+	protected void addToIndex(HistoryEntry<K,V> aEntry)
+	{
+		if (mIndexEnd == mTimeIndex.length)
+		{
+			compactIndex(true);
+		}
+		
+		mTimeIndex[mIndexEnd] = aEntry;
+		aEntry.mIndexPosition = mIndexEnd++;
+	}
+	
+	
+	//marks an entry as removed in the time index. the removed entries at the ends of the index are dropped
+	protected void removeFromIndex(HistoryEntry<K,V> aEntry)
+	{
+		int position = aEntry.mIndexPosition;
+		aEntry.mIndexPosition = REMOVED;
+		if (position == mIndexStart)
+		{
+			mTimeIndex[mIndexStart++] = null;
+			dropRemovedIndexEnds();
+		}
+		else if (position == mIndexEnd - 1)
+		{
+			mTimeIndex[--mIndexEnd] = null;
+			dropRemovedIndexEnds();
+		}
+		else
+		{
+			//the entry stays in the index (its time is still needed by the binary search) until the next compaction
+			++mIndexRemovedEntries;
+			if (mIndexRemovedEntries > INITIAL_TIME_INDEX_CAPACITY && mIndexRemovedEntries > mIndexEnd - mIndexStart - mIndexRemovedEntries)
+			{
+				compactIndex(false);
+			}
+		}
+	}
+	
+	
+	protected void dropRemovedIndexEnds()
+	{
+		while (mIndexStart < mIndexEnd && mTimeIndex[mIndexStart].mIndexPosition == REMOVED)
+		{
+			mTimeIndex[mIndexStart++] = null;
+			--mIndexRemovedEntries;
+		}
+		
+		while (mIndexStart < mIndexEnd && mTimeIndex[mIndexEnd - 1].mIndexPosition == REMOVED)
+		{
+			mTimeIndex[--mIndexEnd] = null;
+			--mIndexRemovedEntries;
+		}
+		
+		if (mIndexStart == mIndexEnd)
+		{
+			mIndexStart = 0;
+			mIndexEnd = 0;
+		}
+	}
+	
+	
+	//moves the live entries to the start of the time index, without the removed entries. 
+	//when making room for a new entry, the index is doubled if the live entries fill more than half of it
+	protected void compactIndex(boolean aMakeRoom)
+	{
+		int liveEntries = mIndexEnd - mIndexStart - mIndexRemovedEntries;
+		HistoryEntry<K,V>[] timeIndex = mTimeIndex;
+		if (aMakeRoom && liveEntries * 2 >= timeIndex.length)
+		{
+			timeIndex = newTimeIndex(timeIndex.length * 2);
+		}
+		
+		int position = 0;
+		for (int i=mIndexStart ; i<mIndexEnd ; ++i)
+		{
+			HistoryEntry<K,V> entry = mTimeIndex[i];
+			if (entry.mIndexPosition != REMOVED)
+			{
+				timeIndex[position] = entry;
+				entry.mIndexPosition = position++;
+			}
+		}
+		
+		if (timeIndex == mTimeIndex)
+		{
+			Arrays.fill(timeIndex, position, mIndexEnd, null);
+		}
+		
+		mTimeIndex = timeIndex;
+		mIndexStart = 0;
+		mIndexEnd = position;
+		mIndexRemovedEntries = 0;
+	}
+	
+	
+	//returns the first position in the time index whose time is above aTime (or equal to it, when aInclusive),
+	//or mIndexEnd if there is no such position
+	protected int findIndexPosition(long aTime, boolean aInclusive)
+	{
+		int low = mIndexStart;
+		int high = mIndexEnd;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			long middleTime = mTimeIndex[middle].getEntryTime();
+			if (middleTime > aTime || (aInclusive && middleTime == aTime))
+			{
+				high = middle;
+			}
+			else
+			{
+				low = middle + 1;
+			}
+		}
+		
+		return low;
+	}
+	
+	
+	//returns the first live entry at the given position of the time index or after it, or null if there is none
+	protected HistoryEntry<K,V> getLiveEntryFrom(int aPosition)
+	{
+		for (int i=aPosition ; i<mIndexEnd ; ++i)
+		{
+			if (mTimeIndex[i].mIndexPosition != REMOVED)
+			{
+				return mTimeIndex[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	//removes the entries before the given position of the time index, in a single pass
+	protected void removeIndexHead(int aPosition)
+	{
+		if (aPosition == mIndexStart)
+		{
+			return;
+		}
+		
+		HistoryEntry<K,V> newOldestEntry = getLiveEntryFrom(aPosition);
+		for (int i=mIndexStart ; i<aPosition ; ++i)
+		{
+			forgetIndexEntry(i);
+		}
+		mIndexStart = aPosition;
+		dropRemovedIndexEnds();
+		
+		mOldestEntry = newOldestEntry;
+		if (newOldestEntry == null)
+		{
+			mLatestEntry = null;
+		}
+		else
+		{
+			newOldestEntry.mPrevious = null;
+		}
+		++mModCount;
+	}
+	
+	
+	//removes the entries from the given position of the time index to its end, in a single pass
+	protected void removeIndexTail(int aPosition)
+	{
+		if (aPosition == mIndexEnd)
+		{
+			return;
+		}
+		
+		for (int i=aPosition ; i<mIndexEnd ; ++i)
+		{
+			forgetIndexEntry(i);
+		}
+		mIndexEnd = aPosition;
+		dropRemovedIndexEnds();
+		
+		//the entry before the position may be removed, so the new latest entry is taken after dropping the removed entries
+		HistoryEntry<K,V> newLatestEntry = mIndexStart == mIndexEnd ? null : mTimeIndex[mIndexEnd - 1];
+		mLatestEntry = newLatestEntry;
+		if (newLatestEntry == null)
+		{
+			mOldestEntry = null;
+		}
+		else
+		{
+			newLatestEntry.mNext = null;
+		}
+		++mModCount;
+	}
+	
+	
+	//removes the entry at the given position of the time index from the index and the maps, without relinking its neighbours
+	protected void forgetIndexEntry(int aPosition)
+	{
+		HistoryEntry<K,V> entry = mTimeIndex[aPosition];
+		mTimeIndex[aPosition] = null;
+		if (entry.mIndexPosition == REMOVED)
+		{
+			--mIndexRemovedEntries;
+			return;
+		}
+		
+		entry.mIndexPosition = REMOVED;
+		entry.mPrevious = null;
+		entry.mNext = null;
+		mMap.remove(entry.getKey());
+		mHistoryEntriesByKey.remove(entry.getKey());
+	}
 
 
 	
 	public HistoryEntry<K,V> getHistoryEntry(K aKey)
 	{
+		evictExpired();
 		return mHistoryEntriesByKey.get(aKey);
 	}
 
 
 	public void clear()
 	{
-		mHistoryEntries.clear();
+		mOldestEntry = null;
+		mLatestEntry = null;
+		mTimeIndex = newTimeIndex(INITIAL_TIME_INDEX_CAPACITY);
+		mIndexStart = 0;
+		mIndexEnd = 0;
+		mIndexRemovedEntries = 0;
+		++mModCount;
 		mMap.clear();
+		mHistoryEntriesByKey.clear();
 	}
 
 	public boolean containsKey(Object aKey)
 	{
+		evictExpired();
 		return mMap.containsKey(aKey);
 	}
 
 	public boolean containsValue(Object aValue)
 	{
+		evictExpired();
 		return mMap.containsValue(aValue);
 	}
 
 	public Set<java.util.Map.Entry<K, V>> entrySet()
 	{
+		evictExpired();
 		return mMap.entrySet();
 	}
 
 	public V get(Object aKey)
 	{
+		evictExpired();
 		return mMap.get(aKey);
 	}
 
 	public boolean isEmpty()
 	{
+		evictExpired();
 		return mMap.isEmpty();
 	}
 
 	public Set<K> keySet()
 	{
+		evictExpired();
 		return mMap.keySet();
 	}
 
 	public V put(K aKey, V aValue)
 	{
 		V oldValue = mMap.put(aKey,aValue);
-		HistoryEntry<K,V> obj = new HistoryEntry<K,V>(System.currentTimeMillis(),aKey,aValue);
-		mHistoryEntries.add(obj);
 		
-		mHistoryEntriesByKey.put(aKey,obj);
+		//the history is sorted by time, so the time does not go back when the clock does
+		long entryTime = System.currentTimeMillis();
+		if (mLatestEntry != null && entryTime < mLatestEntry.getEntryTime())
+		{
+			entryTime = mLatestEntry.getEntryTime();
+		}
+		HistoryEntry<K,V> obj = new HistoryEntry<K,V>(entryTime,aKey,aValue);
+		
+		//the previous insertion of the key is replaced by this one
+		HistoryEntry<K,V> previousEntry = mHistoryEntriesByKey.put(aKey,obj);
+		if (previousEntry != null)
+		{
+			unlink(previousEntry);
+		}
+		linkLatest(obj);
+		evict(entryTime);
 		return oldValue;
 		
 	}
+	
+	
+	//evicts the expired entries and the entries above the maximal number of entries, from the oldest
+	protected void evict(long aNow)
+	{
+		if (mMaxAgeMillis > 0)
+		{
+			evictExpired(aNow);
+		}
+		
+		if (mMaxEntries > 0)
+		{
+			while (mMap.size() > mMaxEntries)
+			{
+				evictOldest(HistoryEvictionListener.Cause.MAX_ENTRIES);
+			}
+		}
+	}
+	
+	
+	protected void evictExpired(long aNow)
+	{
+		while (mOldestEntry != null && aNow - mOldestEntry.getEntryTime() > mMaxAgeMillis)
+		{
+			evictOldest(HistoryEvictionListener.Cause.MAX_AGE);
+		}
+	}
+	
+	
+	protected void evictOldest(HistoryEvictionListener.Cause aCause)
+	{
+		HistoryEntry<K,V> entry = mOldestEntry;
+		removeEntry(entry);
+		if (mEvictionListener != null)
+		{
+			mEvictionListener.entryEvicted(entry, aCause);
+		}
+	}
+	
+	
+	/**
+	 * evicts the entries that are older than the maximal age. the puts and the reads evict them too, so this is needed
+	 * only to release the expired entries of a map that is not used for a while
+	 */
+	public void evictExpired()
+	{
+		if (mMaxAgeMillis > 0)
+		{
+			evictExpired(System.currentTimeMillis());
+		}
+	}
+	
+	
+	public int getMaxEntries()
+	{
+		return mMaxEntries;
+	}
+	
+	
+	public long getMaxAgeMillis()
+	{
+		return mMaxAgeMillis;
+	}
+	
+	
+	public HistoryEvictionListener<K,V> getEvictionListener()
+	{
+		return mEvictionListener;
+	}
+	
+	
+	public void setEvictionListener(HistoryEvictionListener<K,V> aEvictionListener)
+	{
+		mEvictionListener = aEvictionListener;
+	}
 
 	public void putAll(Map<? extends K, ? extends V> aMap)
 	{
@@ -196,62 +651,54 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	public V remove(Object aKey)
 	{
 		V oldValue = mMap.remove(aKey);
-		if (oldValue == null)
+		HistoryEntry<K,V> entry = mHistoryEntriesByKey.remove(aKey);
+		if (entry != null)
 		{
-			return null;
-		}
-		
-		int counter = 0;
-		for (HistoryEntry<K,V> aEntry:mHistoryEntries)
-		{
-			if (aEntry.getKey().equals(aKey))
-			{
-				break;
-			}
-			counter++;
+			unlink(entry);
 		}
 		
-		mHistoryEntries.remove(counter);
-		mHistoryEntriesByKey.remove(aKey);
-		
 		return oldValue;
 	}
 
 	public int size()
 	{
+		evictExpired();
 		return mMap.size(); 
 	}
 
 	public Collection<V> values()
 	{
+		evictExpired();
 		return mMap.values();
 	}
 	
 	
 	public V getOldest()
 	{
+		evictExpired();
 		if (isEmpty())
 		{
 			return null;
 		}
 		
-		return mHistoryEntries.get(0).getValue();
+		return mOldestEntry.getValue();
 	}
 	
 	public V getLatest()
 	{
+		evictExpired();
 		if (isEmpty())
 		{
 			return null;
 		}
 		
-		return mHistoryEntries.get(mHistoryEntries.size()-1).getValue();
+		return mLatestEntry.getValue();
 	}
 	
 	
 	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(java.sql.Date aTime)
 	{
-		return getEntriesBefore(aTime.getTime());
+		return getEntriesBeforeInclusive(aTime.getTime());
 	}
 	
 	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(java.sql.Date aTime)
@@ -273,7 +720,7 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	
 	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(Date aTime)
 	{
-		return getEntriesBefore(aTime.getTime());
+		return getEntriesBeforeInclusive(aTime.getTime());
 	}
 	
 	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(Date aTime)
@@ -296,7 +743,7 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	
 	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(Timestamp aTime)
 	{
-		return getEntriesBefore(aTime.getTime());
+		return getEntriesBeforeInclusive(aTime.getTime());
 	}
 	
 	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(Timestamp aTime)
@@ -317,89 +764,90 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	
 
 	
+	/**
+	 * returns a view of the entries inserted at the given time or before it, from the oldest.
+	 * the view is valid until the map is modified
+	 */
 	public List<HistoryEntry<K,V>> getEntriesBeforeInclusive(long aTime)
 	{
-		List<HistoryEntry<K, V>> results = new ArrayList<HistoryEntry<K,V>>();
-		for (HistoryEntry<K, V> historyEntry:mHistoryEntries)
-		{
-			if (historyEntry.getEntryTime() <= aTime)
-			{
-				results.add(historyEntry);
-			}
-		}
-		return results;
+		evictExpired();
+		return newHistoryView(mIndexStart, findIndexPosition(aTime, false));
 	}
 	
+	/**
+	 * returns a view of the entries inserted at the given time or after it, from the oldest.
+	 * the view is valid until the map is modified
+	 */
 	public List<HistoryEntry<K,V>> getEntriesAfterInclusive(long aTime)
 	{
-		List<HistoryEntry<K, V>> results = new ArrayList<HistoryEntry<K,V>>();
-		for (HistoryEntry<K, V> historyEntry:mHistoryEntries)
-		{
-			if (historyEntry.getEntryTime() >= aTime)
-			{
-				results.add(historyEntry);
-			}
-		}
-		return results;
-
+		evictExpired();
+		return newHistoryView(findIndexPosition(aTime, true), mIndexEnd);
 	}
 	
+	/**
+	 * returns a view of the entries inserted after the given time, from the oldest.
+	 * the view is valid until the map is modified
+	 */
 	public List<HistoryEntry<K,V>> getEntriesAfter(long aTime)
 	{
-		List<HistoryEntry<K, V>> results = new ArrayList<HistoryEntry<K,V>>();
-		for (HistoryEntry<K, V> historyEntry:mHistoryEntries)
-		{
-			if (historyEntry.getEntryTime() > aTime)
-			{
-				results.add(historyEntry);
-			}
-		}
-		return results;
-
+		evictExpired();
+		return newHistoryView(findIndexPosition(aTime, false), mIndexEnd);
 	}
 	
+	/**
+	 * returns a view of the entries inserted before the given time, from the oldest.
+	 * the view is valid until the map is modified
+	 */
+	public List<HistoryEntry<K, V>> getEntriesBefore(long aTime)
+	{
+		evictExpired();
+		return newHistoryView(mIndexStart, findIndexPosition(aTime, true));
+	}
 	
-
 	
-	public List<HistoryEntry<K, V>> getEntriesBefore(long aTime)
+	//returns a view of the entries in the given range of the time index. when the index has no removed entries, the view
+	//is backed by the range itself. otherwise, the live entries of the range are copied, so the view holds only them
+	protected List<HistoryEntry<K,V>> newHistoryView(int aFromPosition, int aToPosition)
 	{
-		List<HistoryEntry<K, V>> results = new ArrayList<HistoryEntry<K,V>>();
-		for (HistoryEntry<K, V> historyEntry:mHistoryEntries)
+		if (mIndexRemovedEntries == 0)
+		{
+			return new HistoryView(mTimeIndex, aFromPosition, aToPosition - aFromPosition);
+		}
+		
+		HistoryEntry<K,V>[] entries = newTimeIndex(aToPosition - aFromPosition);
+		int size = 0;
+		for (int i=aFromPosition ; i<aToPosition ; ++i)
 		{
-			if (historyEntry.getEntryTime() < aTime)
+			if (mTimeIndex[i].mIndexPosition != REMOVED)
 			{
-				results.add(historyEntry);
+				entries[size++] = mTimeIndex[i];
 			}
 		}
-		return results;
-
+		
+		return new HistoryView(entries, 0, size);
 	}
 	
 	
 	public void removeOldest()
 	{
+		evictExpired();
 		if (mMap.size() == 0)
 		{
 			return;
 		}
 		
-		HistoryEntry<K, V> entry = mHistoryEntries.get(0);
-		mHistoryEntries.remove(0);
-		mMap.remove(entry.getKey());
+		removeEntry(mOldestEntry);
 	}
 	
 	public void removeLatest()
 	{
+		evictExpired();
 		if (mMap.size() == 0)
 		{
 			return;
 		}
 		
-		int index = mMap.size()-1;
-			 
-		HistoryEntry<K, V> entry = mHistoryEntries.get(index);
-		mHistoryEntries.remove(0);
-		mMap.remove(entry.getKey());
+		removeEntry(mLatestEntry);
 	}
 	
 	
@@ -472,94 +920,76 @@ public abstract class HistoryMap<K,V> implements Map<K,V>
 	
 	public void removeBefore(long aTime)
 	{
-		if (mMap.size() == 0)
-		{
-			return;
-		}
-		
-		ArrayList<HistoryEntry<K, V>> toRemove = new ArrayList<HistoryEntry<K,V>>();
-		
-		for (HistoryEntry<K,V> entry:mHistoryEntries)
-		{
-			if (entry.getEntryTime() < aTime)
-			{
-				toRemove.add(entry);
-			}
-		}
-		
-		removeEntries(toRemove);
+		removeIndexHead(findIndexPosition(aTime, true));
 	}
 	
 	public void removeBeforeInclusive(long aTime)
 	{
-		if (mMap.size() == 0)
-		{
-			return;
-		}
-		
-		ArrayList<HistoryEntry<K, V>> toRemove = new ArrayList<HistoryEntry<K,V>>();
-		
-		for (HistoryEntry<K,V> entry:mHistoryEntries)
-		{
-			if (entry.getEntryTime() <= aTime)
-			{
-				toRemove.add(entry);
-			}
-		}
-		
-		removeEntries(toRemove);
+		removeIndexHead(findIndexPosition(aTime, false));
 	}
 	
 
 	public void removeAfter(long aTime)
 	{
-		if (mMap.size() == 0)
-		{
-			return;
-		}
-		
-		ArrayList<HistoryEntry<K, V>> toRemove = new ArrayList<HistoryEntry<K,V>>();
+		removeIndexTail(findIndexPosition(aTime, false));
+	}
+	
+	public void removeAfterInclusive(long aTime)
+	{
+		removeIndexTail(findIndexPosition(aTime, true));
+	}
+	
+	protected void removeEntries(ArrayList<HistoryEntry<K, V>> aToRemove)
+	{
 		
-		for (HistoryEntry<K,V> entry:mHistoryEntries)
+		for (HistoryEntry<K, V> aEntry:aToRemove)
 		{
-			if (entry.getEntryTime() > aTime)
-			{
-				toRemove.add(entry);
-			}
+			removeEntry(aEntry);
 		}
-		
-		removeEntries(toRemove);
 	}
 	
-	public void removeAfterInclusive(long aTime)
+	
+	
+	/////////HistoryView class ////////////////////
+	//a read only view of the history, over a range of an array of entries in the order of the history (the time index,
+	//or a copy of the live entries of a range of it). it has a random access
+	protected class HistoryView extends AbstractList<HistoryEntry<K,V>> implements RandomAccess
 	{
-		if (mMap.size() == 0)
+		protected final HistoryEntry<K,V>[] mEntries;
+		protected final int mFrom;
+		protected final int mSize;
+		protected final int mExpectedModCount = mModCount;
+		
+		protected HistoryView(HistoryEntry<K,V>[] aEntries, int aFrom, int aSize)
 		{
-			return;
+			mEntries = aEntries;
+			mFrom = aFrom;
+			mSize = aSize;
 		}
 		
-		ArrayList<HistoryEntry<K, V>> toRemove = new ArrayList<HistoryEntry<K,V>>();
+		protected void checkForModification()
+		{
+			if (mModCount != mExpectedModCount)
+			{
+				throw new ConcurrentModificationException("The HistoryMap was modified after the view was created.");
+			}
+		}
 		
-		for (HistoryEntry<K,V> entry:mHistoryEntries)
+		public HistoryEntry<K,V> get(int aIndex)
 		{
-			if (entry.getEntryTime() >= aTime)
+			checkForModification();
+			if (aIndex < 0 || aIndex >= mSize)
 			{
-				toRemove.add(entry);
+				throw new IndexOutOfBoundsException("Index: " + aIndex + ", Size: " + mSize);
 			}
+			
+			return mEntries[mFrom + aIndex];
 		}
-		removeEntries(toRemove);
-	}
-	
-	protected void removeEntries(ArrayList<HistoryEntry<K, V>> aToRemove)
-	{
 		
-		for (HistoryEntry<K, V> aEntry:aToRemove)
+		public int size()
 		{
-			mHistoryEntries.remove(aEntry);
-			mMap.remove(aEntry.getKey());
-			mHistoryEntriesByKey.remove(aEntry.getKey());
+			checkForModification();
+			return mSize;
 		}
 	}
-
-	
 }
@@ -0,0 +1,144 @@
+package com.tinyj.infra.structures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * measures the throughput of ConcurrentHistoryMap from 1 to 32 threads, against a HashHistoryMap that is
+ * synchronized on every call.
+ *
+ * every thread runs a mix of puts and gets of random keys, and every 1024 operations a range query of the last
+ * millisecond and a removal of the entries older than the trim age. every run is repeated a few times, and the best
+ * run is reported, so the JIT warm up is not measured. the numbers depend on the number of cores of the machine.
+ *
+ * run with: java -cp target/classes:target/test-classes com.tinyj.infra.structures.ConcurrentHistoryMapBenchmark [operations per run]
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConcurrentHistoryMapBenchmark
+{
+	private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+	private static final int DEFAULT_OPERATIONS = 2000000;
+	private static final int KEYS = 100000;
+	private static final int PUT_PERCENT = 50;
+	private static final long TRIM_AGE_MILLIS = 100;
+	private static final int ROUNDS = 3;
+
+
+	public static void main(String[] aArgs)
+		throws Exception
+	{
+		int operations = aArgs.length > 0 ? Integer.parseInt(aArgs[0]) : DEFAULT_OPERATIONS;
+
+		System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+		System.out.println(String.format("%-8s %22s %22s", "threads", "concurrent Mops/s", "synchronized Mops/s"));
+		for (int threads:THREADS)
+		{
+			double concurrent = 0;
+			double synchronizedMap = 0;
+			for (int round=0 ; round<ROUNDS ; ++round)
+			{
+				final ConcurrentHistoryMap<Integer, Integer> map = new ConcurrentHistoryMap<Integer, Integer>();
+				concurrent = Math.max(concurrent, run(threads, operations, new HistoryOps()
+				{
+					public void put(Integer aKey, Integer aValue) {map.put(aKey, aValue);}
+					public void get(Integer aKey) {map.get(aKey);}
+					public void queryAndTrim(long aNow)
+					{
+						map.getEntriesAfter(aNow - 1);
+						map.removeBefore(aNow - TRIM_AGE_MILLIS);
+					}
+				}));
+
+				final HashHistoryMap<Integer, Integer> lockedMap = new HashHistoryMap<Integer, Integer>();
+				synchronizedMap = Math.max(synchronizedMap, run(threads, operations, new HistoryOps()
+				{
+					public void put(Integer aKey, Integer aValue) {synchronized (lockedMap) {lockedMap.put(aKey, aValue);}}
+					public void get(Integer aKey) {synchronized (lockedMap) {lockedMap.get(aKey);}}
+					public void queryAndTrim(long aNow)
+					{
+						synchronized (lockedMap)
+						{
+							lockedMap.getEntriesAfter(aNow - 1);
+							lockedMap.removeBefore(aNow - TRIM_AGE_MILLIS);
+						}
+					}
+				}));
+			}
+
+			System.out.println(String.format("%-8d %22.2f %22.2f", threads, concurrent, synchronizedMap));
+		}
+	}
+
+
+	//returns the throughput in millions of operations per second
+	private static double run(int aThreads, int aOperations, final HistoryOps aOps)
+		throws InterruptedException
+	{
+		final int operations = aOperations / aThreads;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t=0 ; t<aThreads ; ++t)
+		{
+			final Random random = new Random(t);
+			Thread thread = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException ie)
+					{
+						return;
+					}
+
+					for (int i=0 ; i<operations ; ++i)
+					{
+						Integer key = random.nextInt(KEYS);
+						if (random.nextInt(100) < PUT_PERCENT)
+						{
+							aOps.put(key, i);
+						}
+						else
+						{
+							aOps.get(key);
+						}
+
+						if ((i & 1023) == 0)
+						{
+							aOps.queryAndTrim(System.currentTimeMillis());
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		long startNanos = System.nanoTime();
+		start.countDown();
+		for (Thread thread:threads)
+		{
+			thread.join();
+		}
+		long nanos = System.nanoTime() - startNanos;
+
+		return (double)operations * aThreads / nanos * 1000;
+	}
+
+
+
+	/////////HistoryOps class ////////////////////
+	private static interface HistoryOps
+	{
+		public void put(Integer aKey, Integer aValue);
+		public void get(Integer aKey);
+		public void queryAndTrim(long aNow);
+	}
+}
@@ -0,0 +1,317 @@
+package com.tinyj.infra.structures;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.tinyj.infra.structures.HistoryMap.HistoryEntry;
+
+
+/**
+ * checks ConcurrentHistoryMap against a model, under concurrent writers, and for the retention of its log.
+ *
+ * the model check runs random operations on the map and on a LinkedHashMap (whose insertion order is the order of the
+ * history, since a put of an existing key moves it to the end), and compares the results, the order of the entries
+ * and the oldest and latest values.
+ * the concurrency check runs writers with a reader that checks the order of the range queries and trims the old
+ * entries, and then checks that the log and the map hold the same keys.
+ * the retention check rewrites a few keys many times, and checks that the log stays bounded by the live entries,
+ * and that the dead records do not hold their values.
+ *
+ * run with: java -cp target/classes:target/test-classes com.tinyj.infra.structures.ConcurrentHistoryMapCheck
+ *
+ * @author asaf.peeri
+ *
+ */
+public class ConcurrentHistoryMapCheck
+{
+	private static final int MODEL_ROUNDS = 50;
+	private static final int MODEL_OPERATIONS = 20000;
+	private static final int MODEL_KEYS = 300;
+	private static final int CONCURRENT_PUTS = 1000000;
+	private static final int CONCURRENT_KEYS = 100000;
+	private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+	private static final int REWRITES = 100000;
+
+
+	public static void main(String[] aArgs)
+		throws Exception
+	{
+		checkModel();
+		System.out.println("model check passed");
+		checkNullKey();
+		System.out.println("null key check passed");
+		for (int threads:THREADS)
+		{
+			checkConcurrent(threads);
+		}
+		System.out.println("concurrency check passed");
+		checkRetention();
+		System.out.println("retention check passed");
+	}
+
+
+	private static void checkModel()
+	{
+		Random random = new Random(1);
+		for (int round=0 ; round<MODEL_ROUNDS ; ++round)
+		{
+			ConcurrentHistoryMap<Integer, Integer> map = new ConcurrentHistoryMap<Integer, Integer>();
+			LinkedHashMap<Integer, Integer> model = new LinkedHashMap<Integer, Integer>();
+			for (int i=0 ; i<MODEL_OPERATIONS ; ++i)
+			{
+				int operation = random.nextInt(100);
+				Integer key = random.nextInt(MODEL_KEYS);
+				if (operation < 60)
+				{
+					Integer previous = model.remove(key);
+					model.put(key, i);
+					check(equal(map.put(key, i), previous), "put", i);
+				}
+				else if (operation < 72)
+				{
+					check(equal(map.remove(key), model.remove(key)), "remove", i);
+				}
+				else if (operation < 74)
+				{
+					check(map.keySet().remove(key) == (model.remove(key) != null), "keySet().remove", i);
+				}
+				else if (operation < 79)
+				{
+					map.removeOldest();
+					Iterator<Integer> modelKeys = model.keySet().iterator();
+					if (modelKeys.hasNext())
+					{
+						modelKeys.next();
+						modelKeys.remove();
+					}
+				}
+				else if (operation < 83)
+				{
+					map.removeLatest();
+					Integer latestKey = null;
+					for (Integer modelKey:model.keySet())
+					{
+						latestKey = modelKey;
+					}
+					if (latestKey != null)
+					{
+						model.remove(latestKey);
+					}
+				}
+				else if (operation < 85)
+				{
+					map.removeBefore(Long.MAX_VALUE);
+					model.clear();
+				}
+				else if (operation < 86)
+				{
+					map.clear();
+					model.clear();
+				}
+				else if (operation < 88)
+				{
+					Iterator<Integer> mapValues = map.values().iterator();
+					while (mapValues.hasNext())
+					{
+						if (mapValues.next() % 7 == 0)
+						{
+							mapValues.remove();
+						}
+					}
+					Iterator<Integer> modelValues = model.values().iterator();
+					while (modelValues.hasNext())
+					{
+						if (modelValues.next() % 7 == 0)
+						{
+							modelValues.remove();
+						}
+					}
+				}
+				else
+				{
+					check(equal(map.get(key), model.get(key)), "get", i);
+				}
+
+				if (i % 97 == 0)
+				{
+					checkHistory(map, model, i);
+				}
+			}
+		}
+	}
+
+
+	//compares the order of the history, the size, and the oldest and latest values
+	private static void checkHistory(ConcurrentHistoryMap<Integer, Integer> aMap, LinkedHashMap<Integer, Integer> aModel, int aOperation)
+	{
+		List<Integer> keys = new ArrayList<Integer>();
+		for (HistoryEntry<Integer, Integer> entry:aMap.getEntriesAfterInclusive(Long.MIN_VALUE))
+		{
+			keys.add(entry.getKey());
+		}
+		check(keys.equals(new ArrayList<Integer>(aModel.keySet())), "history order " + keys + " vs " + aModel.keySet(), aOperation);
+		check(aMap.size() == aModel.size(), "size", aOperation);
+
+		Integer oldest = null;
+		Integer latest = null;
+		for (Integer value:aModel.values())
+		{
+			if (oldest == null)
+			{
+				oldest = value;
+			}
+			latest = value;
+		}
+		check(equal(aMap.getOldest(), oldest), "getOldest", aOperation);
+		check(equal(aMap.getLatest(), latest), "getLatest", aOperation);
+	}
+
+
+	//a rejected null key must not leave an unstored position, which would hide the later puts from the readers
+	private static void checkNullKey()
+	{
+		ConcurrentHistoryMap<Integer, Integer> map = new ConcurrentHistoryMap<Integer, Integer>();
+		map.put(1, 1);
+		try
+		{
+			map.put(null, 2);
+			check(false, "put(null) was accepted", 0);
+		}
+		catch (NullPointerException npe)
+		{
+			//expected
+		}
+		map.put(3, 3);
+		check(map.getEntriesAfterInclusive(Long.MIN_VALUE).size() == 2, "a put after a null key is not visible", 0);
+		check(equal(map.getLatest(), 3), "getLatest after a null key", 0);
+	}
+
+
+	private static void checkConcurrent(int aThreads)
+		throws Exception
+	{
+		final ConcurrentHistoryMap<Integer, Integer> map = new ConcurrentHistoryMap<Integer, Integer>();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					while (!stop.get())
+					{
+						long previousTime = Long.MIN_VALUE;
+						for (HistoryEntry<Integer, Integer> entry:map.getEntriesAfter(System.currentTimeMillis() - 50))
+						{
+							check(entry.getEntryTime() >= previousTime, "unsorted range query", 0);
+							previousTime = entry.getEntryTime();
+						}
+						map.removeBefore(System.currentTimeMillis() - 20);
+						map.getLatest();
+					}
+				}
+				catch (Throwable t)
+				{
+					failure.compareAndSet(null, t);
+				}
+			}
+		};
+		reader.start();
+
+		final int puts = CONCURRENT_PUTS / aThreads;
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t=0 ; t<aThreads ; ++t)
+		{
+			final Random random = new Random(t);
+			Thread writer = new Thread()
+			{
+				public void run()
+				{
+					for (int i=0 ; i<puts ; ++i)
+					{
+						map.put(random.nextInt(CONCURRENT_KEYS), i);
+						map.get(random.nextInt(CONCURRENT_KEYS));
+						if (i % 64 == 0)
+						{
+							map.remove(random.nextInt(CONCURRENT_KEYS));
+						}
+					}
+				}
+			};
+			writers.add(writer);
+			writer.start();
+		}
+		for (Thread writer:writers)
+		{
+			writer.join();
+		}
+		stop.set(true);
+		reader.join();
+		if (failure.get() != null)
+		{
+			throw new AssertionError("the reader failed with " + aThreads + " writers", failure.get());
+		}
+
+		//every key of the map is in the log exactly once
+		Set<Integer> keys = new HashSet<Integer>();
+		for (HistoryEntry<Integer, Integer> entry:map.getEntriesAfterInclusive(Long.MIN_VALUE))
+		{
+			check(keys.add(entry.getKey()), "a key appears twice in the log", 0);
+			check(map.getHistoryEntry(entry.getKey()) == entry, "a log entry is not the current entry", 0);
+		}
+		check(keys.size() == map.size(), "the log has " + keys.size() + " keys and the map " + map.size(), 0);
+	}
+
+
+	//a stable key and a few rewritten keys must not grow the log with the number of puts
+	private static void checkRetention()
+	{
+		ConcurrentHistoryMap<Integer, byte[]> map = new ConcurrentHistoryMap<Integer, byte[]>();
+		map.put(-1, new byte[16]);
+		for (int i=0 ; i<REWRITES ; ++i)
+		{
+			map.put(i % 4, new byte[16]);
+		}
+
+		ConcurrentHistoryMap.LogChunks<Integer, byte[]> chunks = map.mChunks.get();
+		long records = chunks.getSize(map.advancePublished());
+		check(records <= map.size() + 3L * ConcurrentHistoryMap.CHUNK_SIZE, "the log holds " + records + " records for " + map.size() + " entries", 0);
+		check(chunks.mChunks.length <= 8, "the log holds " + chunks.mChunks.length + " chunks for " + map.size() + " entries", 0);
+
+		int deadWithEntries = 0;
+		for (long index=0 ; index<records ; ++index)
+		{
+			ConcurrentHistoryMap.LogRecord<Integer, byte[]> record = chunks.get(index);
+			if (record.mEntry != null && map.getHistoryEntry(record.mEntry.getKey()) != record.mEntry)
+			{
+				++deadWithEntries;
+			}
+		}
+		check(deadWithEntries == 0, deadWithEntries + " dead records hold their entries", 0);
+		check(equal(map.getEntriesAfterInclusive(Long.MIN_VALUE).get(0).getKey(), -1), "the stable key is not the oldest", 0);
+	}
+
+
+	private static boolean equal(Object aFirst, Object aSecond)
+	{
+		return aFirst == null ? aSecond == null : aFirst.equals(aSecond);
+	}
+
+
+	private static void check(boolean aCondition, String aMessage, int aOperation)
+	{
+		if (!aCondition)
+		{
+			throw new AssertionError(aMessage + " (operation " + aOperation + ")");
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.tinyj.infra.structures;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * compares the removals of HistoryMap to the ArrayList based HistoryMap it replaced.
+ *
+ * each size is filled with distinct keys, and then emptied by removeOldest(), or by remove() of the keys in a random
+ * order. every scenario runs a few rounds, and the best round is reported, so the JIT warm up is not measured.
+ * the old map scans and shifts its array on every removal, so its times grow quadratically with the size.
+ *
+ * run with: java -cp target/classes:target/test-classes com.tinyj.infra.structures.HistoryMapBenchmark [sizes...]
+ *
+ * @author asaf.peeri
+ *
+ */
+public class HistoryMapBenchmark
+{
+	private static final int[] DEFAULT_SIZES = {5000, 10000, 20000, 40000};
+	private static final int ROUNDS = 3;
+
+
+	public static void main(String[] aArgs)
+	{
+		int[] sizes = DEFAULT_SIZES;
+		if (aArgs.length > 0)
+		{
+			sizes = new int[aArgs.length];
+			for (int i=0 ; i<aArgs.length ; ++i)
+			{
+				sizes[i] = Integer.parseInt(aArgs[i]);
+			}
+		}
+
+		System.out.println(String.format("%-8s %-14s %12s %12s %12s", "size", "map", "put ms", "oldest ms", "remove ms"));
+		for (int size:sizes)
+		{
+			run(size, "ArrayList", new MapFactory()
+			{
+				public HistoryOps create()
+				{
+					final ArrayListHistoryMap<Integer, Integer> map = new ArrayListHistoryMap<Integer, Integer>();
+					return new HistoryOps()
+					{
+						public void put(Integer aKey) {map.put(aKey, aKey);}
+						public void remove(Integer aKey) {map.remove(aKey);}
+						public void removeOldest() {map.removeOldest();}
+						public int size() {return map.size();}
+					};
+				}
+			});
+
+			run(size, "HistoryMap", new MapFactory()
+			{
+				public HistoryOps create()
+				{
+					final HashHistoryMap<Integer, Integer> map = new HashHistoryMap<Integer, Integer>();
+					return new HistoryOps()
+					{
+						public void put(Integer aKey) {map.put(aKey, aKey);}
+						public void remove(Integer aKey) {map.remove(aKey);}
+						public void removeOldest() {map.removeOldest();}
+						public int size() {return map.size();}
+					};
+				}
+			});
+		}
+	}
+
+
+	private static void run(int aSize, String aName, MapFactory aFactory)
+	{
+		List<Integer> keys = new ArrayList<Integer>(aSize);
+		for (int i=0 ; i<aSize ; ++i)
+		{
+			keys.add(i);
+		}
+		List<Integer> shuffledKeys = new ArrayList<Integer>(keys);
+		Collections.shuffle(shuffledKeys, new Random(aSize));
+
+		long bestPut = Long.MAX_VALUE;
+		long bestOldest = Long.MAX_VALUE;
+		long bestRemove = Long.MAX_VALUE;
+		for (int round=0 ; round<ROUNDS ; ++round)
+		{
+			HistoryOps ops = aFactory.create();
+			bestPut = Math.min(bestPut, fill(ops, keys));
+			long start = System.nanoTime();
+			while (ops.size() > 0)
+			{
+				ops.removeOldest();
+			}
+			bestOldest = Math.min(bestOldest, System.nanoTime() - start);
+
+			ops = aFactory.create();
+			fill(ops, keys);
+			start = System.nanoTime();
+			for (Integer key:shuffledKeys)
+			{
+				ops.remove(key);
+			}
+			bestRemove = Math.min(bestRemove, System.nanoTime() - start);
+			if (ops.size() != 0)
+			{
+				throw new IllegalStateException(aName + " was not emptied: " + ops.size());
+			}
+		}
+
+		System.out.println(String.format("%-8d %-14s %12.2f %12.2f %12.2f", aSize, aName, bestPut / 1e6, bestOldest / 1e6, bestRemove / 1e6));
+	}
+
+
+	private static long fill(HistoryOps aOps, List<Integer> aKeys)
+	{
+		long start = System.nanoTime();
+		for (Integer key:aKeys)
+		{
+			aOps.put(key);
+		}
+		return System.nanoTime() - start;
+	}
+
+
+
+	/////////HistoryOps class ////////////////////
+	private static interface HistoryOps
+	{
+		public void put(Integer aKey);
+		public void remove(Integer aKey);
+		public void removeOldest();
+		public int size();
+	}
+
+
+
+	/////////MapFactory class ////////////////////
+	private static interface MapFactory
+	{
+		public HistoryOps create();
+	}
+
+
+
+	/////////ArrayListHistoryMap class ////////////////////
+	//the removals of HistoryMap before it was linked (an ArrayList of the entries in insertion order)
+	private static class ArrayListHistoryMap<K,V>
+	{
+		protected ArrayList<HistoryMap.HistoryEntry<K,V>> mHistoryEntries = new ArrayList<HistoryMap.HistoryEntry<K,V>>();
+		protected Map<K,HistoryMap.HistoryEntry<K,V>> mHistoryEntriesByKey = new HashMap<K, HistoryMap.HistoryEntry<K,V>>();
+		protected Map<K,V> mMap = new HashMap<K, V>();
+
+		public V put(K aKey, V aValue)
+		{
+			V oldValue = mMap.put(aKey,aValue);
+			HistoryMap.HistoryEntry<K,V> obj = new HistoryMap.HistoryEntry<K,V>(System.currentTimeMillis(),aKey,aValue);
+			mHistoryEntries.add(obj);
+
+			mHistoryEntriesByKey.put(aKey,obj);
+			return oldValue;
+		}
+
+		public V remove(Object aKey)
+		{
+			V oldValue = mMap.remove(aKey);
+			if (oldValue == null)
+			{
+				return null;
+			}
+
+			int counter = 0;
+			for (HistoryMap.HistoryEntry<K,V> aEntry:mHistoryEntries)
+			{
+				if (aEntry.getKey().equals(aKey))
+				{
+					break;
+				}
+				counter++;
+			}
+
+			mHistoryEntries.remove(counter);
+			mHistoryEntriesByKey.remove(aKey);
+
+			return oldValue;
+		}
+
+		public void removeOldest()
+		{
+			if (mMap.size() == 0)
+			{
+				return;
+			}
+
+			HistoryMap.HistoryEntry<K, V> entry = mHistoryEntries.get(0);
+			mHistoryEntries.remove(0);
+			mMap.remove(entry.getKey());
+		}
+
+		public int size()
+		{
+			return mMap.size();
+		}
+	}
+}